@@ -0,0 +1,58 @@
+package com.kuroha.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.NoBenchmarksException;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * 基准测试入口
+ * getUri及完整调用链路分别在1/4/16/64线程下运行,其余按注解配置运行,
+ * 全部开启GC统计以输出每次操作的内存分配量(gc.alloc.rate.norm)
+ * mvn -P benchmark compile exec:exec -Dbenchmark.include=RouterBenchmark
+ * @author kuroha
+ */
+public class BenchmarkRunner {
+
+    /**
+     * 线程扩展性测试使用的线程数
+     */
+    private static final int[] THREAD_COUNTS = {1, 4, 16, 64};
+    /**
+     * 按线程数分别运行的基准
+     */
+    private static final String SCALING_BENCHMARKS = "RouterBenchmark\\.getUri(Warm|Cold|ByKey)$|InvocationBenchmark\\.";
+    /**
+     * 按注解线程配置运行的基准
+     */
+    private static final String OTHER_BENCHMARKS = "RouterBenchmark\\.(refresh|failover)";
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : ".*";
+        for (int threads : THREAD_COUNTS) {
+            run(include, SCALING_BENCHMARKS, threads);
+        }
+        run(include, OTHER_BENCHMARKS, 0);
+    }
+
+    /**
+     * @param include 命令行指定的过滤条件
+     * @param benchmarks 本轮运行的基准
+     * @param threads 线程数,0时使用注解配置
+     */
+    private static void run(String include, String benchmarks, int threads) throws RunnerException {
+        OptionsBuilder builder = new OptionsBuilder();
+        // jmh的多个include为或关系,这里需要同时满足
+        builder.include("^(?=.*(" + include + ")).*(" + benchmarks + ")");
+        builder.addProfiler(GCProfiler.class);
+        if (threads > 0) {
+            builder.threads(threads);
+        }
+        try {
+            new Runner(builder.build()).run();
+        } catch (NoBenchmarksException e) {
+            // 本轮没有符合过滤条件的基准
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.kuroha.benchmark;
+
+import com.alibaba.nacos.api.naming.NamingService;
+import com.alibaba.nacos.api.naming.pojo.Instance;
+import com.kuroha.cache.ResponseCache;
+import com.kuroha.config.CloudSettingsLoader;
+import com.kuroha.http.BodyCodec;
+import com.kuroha.http.CodecSelector;
+import com.kuroha.metrics.CallMetrics;
+import com.kuroha.metrics.CallTracer;
+import com.kuroha.policy.BulkheadRegistry;
+import com.kuroha.policy.ConcurrencyLimiter;
+import com.kuroha.policy.RetryBudget;
+import com.kuroha.routing.LoadBalanceStrategy;
+import com.kuroha.routing.ServiceRouter;
+import com.kuroha.routing.SlowStart;
+import com.kuroha.routing.ZoneAffinity;
+import com.kuroha.service.impl.AsyncCloudServiceImpl;
+import com.kuroha.service.impl.CloudServiceImpl;
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 完整调用链路基准测试
+ * 路由选择 + 连接池 + RestTemplate编解码 + 统计,请求发往进程内的HTTP桩服务
+ * @author kuroha
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class InvocationBenchmark {
+
+    private static final String SERVICE_NAME = "benchmark-service";
+    private static final byte[] RESPONSE = "{\"message\":\"hello\"}".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * 桩服务实例数
+     */
+    @Param({"1", "3"})
+    public int instanceCount;
+
+    private final List<HttpServer> servers = new ArrayList<>();
+    private ExecutorService serverExecutor;
+    private AsyncCloudServiceImpl asyncCloudService;
+    private CloudServiceImpl cloudService;
+
+    @Setup
+    public void setup() throws IOException {
+        // 桩服务分开写响应头和响应体,不关闭Nagle时每次请求会多出约40ms的延迟确认
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        serverExecutor = Executors.newFixedThreadPool(64);
+        List<Instance> instances = new ArrayList<>(instanceCount);
+        for (int i = 0; i < instanceCount; i++) {
+            HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+            server.createContext("/", exchange -> {
+                try (InputStream in = exchange.getRequestBody()) {
+                    byte[] buffer = new byte[4096];
+                    while (in.read(buffer) >= 0) {
+                        // 读完请求体,保持长连接
+                    }
+                }
+                exchange.getResponseHeaders().set("Content-Type", "application/json;charset=utf-8");
+                exchange.sendResponseHeaders(200, RESPONSE.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(RESPONSE);
+                }
+            });
+            server.setExecutor(serverExecutor);
+            server.start();
+            servers.add(server);
+            Instance instance = new Instance();
+            instance.setIp("127.0.0.1");
+            instance.setPort(server.getAddress().getPort());
+            instance.setWeight(1 + i);
+            instances.add(instance);
+        }
+        NamingService namingService = StubNamingService.create(serviceName -> instances);
+        ServiceRouter router = new ServiceRouter(namingService, LoadBalanceStrategy.WEIGHTED_RANDOM, ZoneAffinity.NONE, SlowStart.NONE);
+        RetryBudget retryBudget = new RetryBudget(20);
+        CallMetrics callMetrics = new CallMetrics();
+        CodecSelector codecSelector = new CodecSelector(BodyCodec.JSON, new String[0], 0);
+        ConcurrencyLimiter concurrencyLimiter = new ConcurrencyLimiter(false, 20, 4, 200, 50, 50);
+        CloudSettingsLoader cloudSettingsLoader = new CloudSettingsLoader(null, "", "", 3000, 30000, 1000, 60000, 3, 3600000);
+        asyncCloudService = new AsyncCloudServiceImpl(router, retryBudget, callMetrics, codecSelector, concurrencyLimiter,
+                cloudSettingsLoader, false, 95, 10);
+        cloudService = new CloudServiceImpl(router, asyncCloudService, retryBudget, callMetrics,
+                new ResponseCache(false, 0, 0, new String[0]), codecSelector, concurrencyLimiter, cloudSettingsLoader,
+                new CallTracer(0, 0, 0), new BulkheadRegistry("", new String[0]), false);
+    }
+
+    @TearDown
+    public void tearDown() {
+        cloudService.destroy();
+        asyncCloudService.destroy();
+        servers.forEach(server -> server.stop(0));
+        serverExecutor.shutdownNow();
+    }
+
+    @Benchmark
+    public String get() {
+        return cloudService.get(SERVICE_NAME, "say");
+    }
+
+    @Benchmark
+    public String post() {
+        return cloudService.post(SERVICE_NAME, "say", "{\"name\":\"kuroha\"}");
+    }
+
+    @Benchmark
+    public String asyncGet() {
+        return asyncCloudService.get(SERVICE_NAME, "say").join();
+    }
+}
@@ -0,0 +1,193 @@
+package com.kuroha.benchmark;
+
+import com.kuroha.metrics.LatencyHistogram;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * 压测驱动
+ * 闭环:固定数量的线程连续调用,吞吐随响应时间变化
+ * 开环:按固定速率发起调用,响应时间从计划发起时间开始计算,调用积压时的排队时间计入响应时间(避免协同遗漏)
+ * 调用返回null或false记为失败,抛出异常按异常类型分别计数
+ * @author kuroha
+ */
+public final class LoadDriver {
+
+    /**
+     * 压测结束后等待未完成调用的最长时间
+     */
+    private static final int DRAIN_TIME_OUT = 30000;
+
+    private LoadDriver() {
+    }
+
+    /**
+     * 闭环压测
+     * @param name 名称
+     * @param concurrency 并发线程数
+     * @param duration 压测时间,毫秒
+     * @param call 一次调用
+     * @return 结果
+     */
+    public static Report closedLoop(String name, int concurrency, long duration, Supplier<?> call) {
+        Report report = new Report(name, "closed concurrency=" + concurrency);
+        ExecutorService executor = newExecutor(name, concurrency);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(duration);
+        for (int i = 0; i < concurrency; i++) {
+            executor.execute(() -> {
+                while (System.nanoTime() < end && !Thread.currentThread().isInterrupted()) {
+                    report.invoke(System.nanoTime(), call);
+                }
+            });
+        }
+        report.finish(executor, start);
+        return report;
+    }
+
+    /**
+     * 开环压测
+     * @param name 名称
+     * @param rate 每秒发起的调用数
+     * @param maxThreads 执行调用的最大线程数,线程全部占用时调用排队,排队时间计入响应时间
+     * @param duration 压测时间,毫秒
+     * @param call 一次调用
+     * @return 结果
+     */
+    public static Report openLoop(String name, double rate, int maxThreads, long duration, Supplier<?> call) {
+        Report report = new Report(name, String.format(Locale.ROOT, "open rate=%.0f/s threads=%d", rate, maxThreads));
+        ExecutorService executor = newExecutor(name, maxThreads);
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(duration);
+        for (long intended = start; intended < end; intended += interval) {
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            long scheduled = intended;
+            executor.execute(() -> report.invoke(scheduled, call));
+        }
+        report.finish(executor, start);
+        return report;
+    }
+
+    private static ExecutorService newExecutor(String name, int threads) {
+        AtomicInteger threadNum = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "load-" + name + "-" + threadNum.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 压测结果
+     */
+    public static final class Report {
+        private static final String SUCCESS = "success";
+        private static final String FAILED = "failed";
+
+        private final String name;
+        private final String mode;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final ConcurrentHashMap<String, LongAdder> outcomeMap = new ConcurrentHashMap<>();
+        private long elapsedNanos;
+        private boolean drained;
+
+        private Report(String name, String mode) {
+            this.name = name;
+            this.mode = mode;
+        }
+
+        /**
+         * 执行一次调用并记录
+         * @param start 开始计时的时间,纳秒
+         * @param call 调用
+         */
+        private void invoke(long start, Supplier<?> call) {
+            String outcome;
+            try {
+                Object result = call.get();
+                outcome = result == null || Boolean.FALSE.equals(result) ? FAILED : SUCCESS;
+            } catch (RuntimeException e) {
+                outcome = e.getClass().getSimpleName();
+            }
+            histogram.recordNanos(System.nanoTime() - start);
+            LongAdder counter = outcomeMap.get(outcome);
+            if (counter == null) {
+                counter = outcomeMap.computeIfAbsent(outcome, key -> new LongAdder());
+            }
+            counter.increment();
+        }
+
+        private void finish(ExecutorService executor, long start) {
+            executor.shutdown();
+            try {
+                drained = executor.awaitTermination(DRAIN_TIME_OUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executor.shutdownNow();
+            elapsedNanos = System.nanoTime() - start;
+        }
+
+        public long getCount() {
+            return histogram.getCount();
+        }
+
+        /**
+         * @return 每秒完成的调用数
+         */
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : histogram.getCount() * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * @return 成功率,百分比
+         */
+        public double getSuccessPercent() {
+            LongAdder success = outcomeMap.get(SUCCESS);
+            long count = histogram.getCount();
+            return count == 0 ? 0 : (success == null ? 0 : success.sum()) * 100.0 / count;
+        }
+
+        /**
+         * @param percentile 百分位
+         * @return 响应时间,毫秒
+         */
+        public double getPercentileMillis(double percentile) {
+            return histogram.getPercentile(percentile) / 1000.0;
+        }
+
+        /**
+         * @return 调用结果 -> 次数
+         */
+        public Map<String, Long> getOutcomes() {
+            Map<String, Long> map = new TreeMap<>();
+            outcomeMap.forEach((outcome, counter) -> map.put(outcome, counter.sum()));
+            return map;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "%-10s %-28s calls=%-8d tps=%-9.1f success=%6.2f%% p50=%.2fms p90=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms %s%s",
+                    name, mode, getCount(), getThroughput(), getSuccessPercent(),
+                    getPercentileMillis(50), getPercentileMillis(90), getPercentileMillis(99), getPercentileMillis(99.9),
+                    histogram.getMax() / 1000.0, getOutcomes(), drained ? "" : " (未等到全部调用完成)");
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.kuroha.benchmark;
+
+import com.alibaba.nacos.api.naming.NamingService;
+import com.alibaba.nacos.api.naming.listener.EventListener;
+import com.alibaba.nacos.api.naming.listener.NamingEvent;
+import com.alibaba.nacos.api.naming.pojo.Instance;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * 压测使用的可变naming服务,不连接nacos
+ * 实例可随时增加、删除、调整权重及健康状态,每次变化与nacos一样在单独线程上向订阅者推送NamingEvent
+ * 变化可按计划执行,用于压测路由表变化时的调用性能
+ * @author kuroha
+ */
+public final class LoadNamingService {
+
+    private final ConcurrentHashMap<String, List<Instance>> serviceMap = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, List<EventListener>> listenerMap = new ConcurrentHashMap<>();
+    /**
+     * 推送事件及执行计划变化,单线程保证推送顺序与变化顺序一致
+     */
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "load-naming");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final NamingService namingService;
+
+    public LoadNamingService() {
+        this.namingService = (NamingService) Proxy.newProxyInstance(NamingService.class.getClassLoader(),
+                new Class<?>[]{NamingService.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getAllInstances":
+                            return this.getInstances((String) args[0]);
+                        case "subscribe":
+                            listenerMap.computeIfAbsent((String) args[0], key -> new CopyOnWriteArrayList<>())
+                                    .add((EventListener) args[args.length - 1]);
+                            return null;
+                        case "unsubscribe":
+                            List<EventListener> listeners = listenerMap.get(args[0]);
+                            if (listeners != null) {
+                                listeners.remove(args[args.length - 1]);
+                            }
+                            return null;
+                        case "getServerStatus":
+                            return "UP";
+                        case "toString":
+                            return "LoadNamingService";
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    public NamingService getNamingService() {
+        return namingService;
+    }
+
+    /**
+     * 获取服务的实例列表
+     * @param serviceName 服务名
+     * @return 实例列表的副本
+     */
+    public List<Instance> getInstances(String serviceName) {
+        List<Instance> instances = serviceMap.get(serviceName);
+        List<Instance> copy = new ArrayList<>();
+        if (instances != null) {
+            for (Instance instance : instances) {
+                copy.add(copy(instance));
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * 增加实例,已存在时替换
+     * @param serviceName 服务名
+     * @param ip 实例ip
+     * @param port 实例端口
+     * @param weight 权重
+     */
+    public void add(String serviceName, String ip, int port, double weight) {
+        Instance instance = new Instance();
+        instance.setIp(ip);
+        instance.setPort(port);
+        instance.setWeight(weight);
+        this.update(serviceName, list -> {
+            list.removeIf(matcher(ip, port));
+            list.add(instance);
+            return true;
+        });
+    }
+
+    /**
+     * 删除实例
+     * @param serviceName 服务名
+     * @param ip 实例ip
+     * @param port 实例端口
+     * @return 实例不存在时返回false
+     */
+    public boolean remove(String serviceName, String ip, int port) {
+        return this.update(serviceName, list -> list.removeIf(matcher(ip, port)));
+    }
+
+    /**
+     * 调整实例权重
+     * @param serviceName 服务名
+     * @param ip 实例ip
+     * @param port 实例端口
+     * @param weight 权重
+     * @return 实例不存在时返回false
+     */
+    public boolean reweight(String serviceName, String ip, int port, double weight) {
+        return this.update(serviceName, list -> this.replace(list, ip, port, instance -> instance.setWeight(weight)));
+    }
+
+    /**
+     * 调整实例健康状态
+     * @param serviceName 服务名
+     * @param ip 实例ip
+     * @param port 实例端口
+     * @param healthy 是否健康
+     * @return 实例不存在时返回false
+     */
+    public boolean setHealthy(String serviceName, String ip, int port, boolean healthy) {
+        return this.update(serviceName, list -> this.replace(list, ip, port, instance -> instance.setHealthy(healthy)));
+    }
+
+    /**
+     * 延迟执行一次变化
+     * @param delay 延迟,毫秒
+     * @param change 变化
+     */
+    public void schedule(long delay, Runnable change) {
+        executor.schedule(change, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 定期执行变化
+     * @param period 间隔,毫秒
+     * @param change 变化
+     */
+    public void scheduleAtFixedRate(long period, Runnable change) {
+        executor.scheduleAtFixedRate(change, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 修改实例列表,修改成功后推送事件
+     * @param serviceName 服务名
+     * @param change 修改列表副本,返回是否有变化
+     * @return 是否有变化
+     */
+    private synchronized boolean update(String serviceName, Predicate<List<Instance>> change) {
+        List<Instance> list = new ArrayList<>(serviceMap.getOrDefault(serviceName, Collections.emptyList()));
+        if (!change.test(list)) {
+            return false;
+        }
+        serviceMap.put(serviceName, Collections.unmodifiableList(list));
+        List<EventListener> listeners = listenerMap.get(serviceName);
+        if (listeners != null && !listeners.isEmpty()) {
+            List<Instance> instances = this.getInstances(serviceName);
+            executor.execute(() -> listeners.forEach(listener -> listener.onEvent(new NamingEvent(serviceName, instances))));
+        }
+        return true;
+    }
+
+    /**
+     * 用修改后的副本替换实例,已推送的实例不修改
+     * @param list 实例列表
+     * @param ip 实例ip
+     * @param port 实例端口
+     * @param change 修改
+     * @return 实例不存在时返回false
+     */
+    private boolean replace(List<Instance> list, String ip, int port, Consumer<Instance> change) {
+        Predicate<Instance> matcher = matcher(ip, port);
+        for (int i = 0; i < list.size(); i++) {
+            if (matcher.test(list.get(i))) {
+                Instance instance = copy(list.get(i));
+                change.accept(instance);
+                list.set(i, instance);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Predicate<Instance> matcher(String ip, int port) {
+        return instance -> instance.getPort() == port && instance.getIp().equals(ip);
+    }
+
+    private static Instance copy(Instance source) {
+        Instance instance = new Instance();
+        instance.setIp(source.getIp());
+        instance.setPort(source.getPort());
+        instance.setWeight(source.getWeight());
+        instance.setHealthy(source.isHealthy());
+        instance.setEnabled(source.isEnabled());
+        instance.setClusterName(source.getClusterName());
+        instance.setMetadata(source.getMetadata());
+        return instance;
+    }
+}
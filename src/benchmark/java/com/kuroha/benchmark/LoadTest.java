@@ -0,0 +1,217 @@
+package com.kuroha.benchmark;
+
+import com.kuroha.cache.ResponseCache;
+import com.kuroha.config.CloudSettingsLoader;
+import com.kuroha.http.BodyCodec;
+import com.kuroha.http.CodecSelector;
+import com.kuroha.metrics.CallMetrics;
+import com.kuroha.metrics.CallTracer;
+import com.kuroha.policy.BulkheadRegistry;
+import com.kuroha.policy.ConcurrencyLimiter;
+import com.kuroha.policy.RetryBudget;
+import com.kuroha.routing.LoadBalanceStrategy;
+import com.kuroha.routing.ServiceRouter;
+import com.kuroha.routing.SlowStart;
+import com.kuroha.routing.ZoneAffinity;
+import com.kuroha.service.impl.AsyncCloudServiceImpl;
+import com.kuroha.service.impl.CloudServiceImpl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 本机端到端压测,不需要nacos及下游服务
+ * 使用可变naming服务及进程内的HTTP桩服务,按场景压测完整的同步调用链路,输出吞吐、响应时间百分位、
+ * 调用结果分类及各桩服务收到的请求数,用于对比路由相关修改前后的性能
+ * 场景:
+ * steady 3个实例,对数正态响应时间
+ * churn 实例定期上下线、调整权重及健康状态,新实例慢启动
+ * faults 实例分别注入500、连接重置及长时间不响应
+ * slow 压测中途一个实例变慢
+ * mvn -P benchmark compile exec:exec@load -Dload.scenario=all -Dload.mode=both -Dload.duration=20
+ * @author kuroha
+ */
+public class LoadTest {
+
+    private static final String SERVICE_NAME = "load-service";
+    private static final String IP = "127.0.0.1";
+    private static final String[] SCENARIOS = {"steady", "churn", "faults", "slow"};
+    /**
+     * 全部场景开始前的JVM预热时间,毫秒,使首个场景的结果不受JIT编译影响
+     */
+    private static final int JVM_WARMUP_TIME = 10000;
+    /**
+     * 每个场景正式压测前的预热时间,毫秒
+     */
+    private static final int WARMUP_TIME = 3000;
+    /**
+     * 调用读取超时时间,桩服务不响应时按该时间失败并重试
+     */
+    private static final int READ_TIME_OUT = 1000;
+    /**
+     * 桩服务默认的响应时间分布
+     */
+    private static final StubBackend.Latency DEFAULT_LATENCY = StubBackend.Latency.logNormal(2, 0.5);
+
+    /**
+     * @param args 场景(all或场景名,逗号分隔) 模式(closed/open/both) 每个场景的压测时间(秒) 闭环并发数 开环速率(每秒) 负载均衡策略
+     */
+    public static void main(String[] args) throws IOException {
+        String scenario = arg(args, 0, "all");
+        String mode = arg(args, 1, "both");
+        long duration = Long.parseLong(arg(args, 2, "20")) * 1000;
+        int concurrency = Integer.parseInt(arg(args, 3, "32"));
+        double rate = Double.parseDouble(arg(args, 4, "2000"));
+        LoadBalanceStrategy strategy = LoadBalanceStrategy.valueOf(arg(args, 5, "WEIGHTED_RANDOM"));
+        List<String> scenarios = "all".equals(scenario) ? Arrays.asList(SCENARIOS) : Arrays.asList(scenario.split(","));
+        System.out.println(String.format(Locale.ROOT, "scenarios=%s mode=%s duration=%ds concurrency=%d rate=%.0f/s strategy=%s",
+                scenarios, mode, duration / 1000, concurrency, rate, strategy));
+        try (Stack stack = new Stack(strategy)) {
+            setup("steady", stack, duration);
+            LoadDriver.closedLoop("jvm-warmup", concurrency, JVM_WARMUP_TIME, () -> stack.cloudService.get(SERVICE_NAME, "say"));
+        }
+        for (String name : scenarios) {
+            for (String loop : "both".equals(mode) ? new String[]{"closed", "open"} : new String[]{mode}) {
+                try (Stack stack = new Stack(strategy)) {
+                    setup(name.trim(), stack, duration);
+                    Supplier<String> call = () -> stack.cloudService.get(SERVICE_NAME, "say");
+                    LoadDriver.closedLoop("warmup", concurrency, WARMUP_TIME, call);
+                    stack.backends.forEach(StubBackend::resetStats);
+                    stack.startPlan();
+                    LoadDriver.Report report = "open".equals(loop)
+                            ? LoadDriver.openLoop(name, rate, concurrency * 4, duration, call)
+                            : LoadDriver.closedLoop(name, concurrency, duration, call);
+                    System.out.println(report);
+                    stack.backends.forEach(backend -> System.out.println("    " + backend.getStats()));
+                }
+            }
+        }
+    }
+
+    /**
+     * 按场景启动桩服务并注册实例,注册计划中的路由变化
+     * @param scenario 场景
+     * @param stack 调用链路
+     * @param duration 压测时间,毫秒
+     */
+    private static void setup(String scenario, Stack stack, long duration) throws IOException {
+        StubBackend.Profile healthy = StubBackend.Profile.healthy(DEFAULT_LATENCY);
+        switch (scenario) {
+            case "steady":
+                stack.register(healthy, healthy, healthy);
+                break;
+            case "churn": {
+                stack.register(healthy, healthy, healthy);
+                StubBackend spare = stack.start(healthy);
+                int port0 = stack.backends.get(0).getPort();
+                int port1 = stack.backends.get(1).getPort();
+                AtomicInteger step = new AtomicInteger();
+                // 每秒一次变化,依次为:新实例上线、调整权重、实例不健康、恢复健康、新实例下线
+                stack.every(1000, () -> {
+                    switch (step.getAndIncrement() % 5) {
+                        case 0:
+                            stack.naming.add(SERVICE_NAME, IP, spare.getPort(), 1);
+                            break;
+                        case 1:
+                            stack.naming.reweight(SERVICE_NAME, IP, port0, 3);
+                            break;
+                        case 2:
+                            stack.naming.setHealthy(SERVICE_NAME, IP, port1, false);
+                            break;
+                        case 3:
+                            stack.naming.setHealthy(SERVICE_NAME, IP, port1, true);
+                            stack.naming.reweight(SERVICE_NAME, IP, port0, 1);
+                            break;
+                        default:
+                            stack.naming.remove(SERVICE_NAME, IP, spare.getPort());
+                            break;
+                    }
+                });
+                break;
+            }
+            case "faults":
+                stack.register(healthy,
+                        healthy.withErrors(0.05).withResets(0.02),
+                        healthy.withStalls(0.01, READ_TIME_OUT * 3));
+                break;
+            case "slow": {
+                stack.register(healthy, healthy, healthy);
+                StubBackend backend = stack.backends.get(2);
+                stack.once(duration / 3, () -> backend.setProfile(healthy.withLatency(StubBackend.Latency.logNormal(50, 0.5))));
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("未知场景:" + scenario + ",可选:" + Arrays.toString(SCENARIOS));
+        }
+    }
+
+    private static String arg(String[] args, int index, String defaultValue) {
+        return args.length > index && !args[index].trim().isEmpty() ? args[index].trim() : defaultValue;
+    }
+
+    /**
+     * 一个场景使用的桩服务及调用链路
+     */
+    private static final class Stack implements AutoCloseable {
+        private final LoadNamingService naming = new LoadNamingService();
+        private final List<StubBackend> backends = new ArrayList<>();
+        /**
+         * 计划中的路由及桩服务变化,预热结束后才开始执行
+         */
+        private final List<Runnable> plan = new ArrayList<>();
+        private final AsyncCloudServiceImpl asyncCloudService;
+        private final CloudServiceImpl cloudService;
+
+        private Stack(LoadBalanceStrategy strategy) {
+            ServiceRouter router = new ServiceRouter(naming.getNamingService(), strategy, ZoneAffinity.NONE,
+                    new SlowStart(2000, 10, "", 0, 0));
+            RetryBudget retryBudget = new RetryBudget(20);
+            CallMetrics callMetrics = new CallMetrics();
+            CodecSelector codecSelector = new CodecSelector(BodyCodec.JSON, new String[0], 0);
+            ConcurrencyLimiter concurrencyLimiter = new ConcurrencyLimiter(false, 20, 4, 200, 50, 50);
+            CloudSettingsLoader cloudSettingsLoader = new CloudSettingsLoader(null, "", "", 1000, READ_TIME_OUT, 1000, 10000, 3, 3600000);
+            asyncCloudService = new AsyncCloudServiceImpl(router, retryBudget, callMetrics, codecSelector, concurrencyLimiter,
+                    cloudSettingsLoader, false, 95, 10);
+            cloudService = new CloudServiceImpl(router, asyncCloudService, retryBudget, callMetrics,
+                    new ResponseCache(false, 0, 0, new String[0]), codecSelector, concurrencyLimiter, cloudSettingsLoader,
+                    new CallTracer(0, 0, 0), new BulkheadRegistry("", new String[0]), false);
+        }
+
+        private StubBackend start(StubBackend.Profile profile) throws IOException {
+            StubBackend backend = new StubBackend(String.valueOf(backends.size()), profile);
+            backends.add(backend);
+            return backend;
+        }
+
+        private void register(StubBackend.Profile... profiles) throws IOException {
+            for (StubBackend.Profile profile : profiles) {
+                naming.add(SERVICE_NAME, IP, this.start(profile).getPort(), 1);
+            }
+        }
+
+        private void every(long period, Runnable change) {
+            plan.add(() -> naming.scheduleAtFixedRate(period, change));
+        }
+
+        private void once(long delay, Runnable change) {
+            plan.add(() -> naming.schedule(delay, change));
+        }
+
+        private void startPlan() {
+            plan.forEach(Runnable::run);
+        }
+
+        @Override
+        public void close() {
+            naming.shutdown();
+            cloudService.destroy();
+            asyncCloudService.destroy();
+            backends.forEach(StubBackend::stop);
+        }
+    }
+}
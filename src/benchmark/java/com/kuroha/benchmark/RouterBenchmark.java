@@ -0,0 +1,118 @@
+package com.kuroha.benchmark;
+
+import com.alibaba.nacos.api.naming.NamingService;
+import com.alibaba.nacos.api.naming.pojo.Instance;
+import com.kuroha.routing.FailureKind;
+import com.kuroha.routing.InstanceState;
+import com.kuroha.routing.LoadBalanceStrategy;
+import com.kuroha.routing.ServiceRouter;
+import com.kuroha.routing.SlowStart;
+import com.kuroha.routing.ZoneAffinity;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 路由表基准测试
+ * getUri在路由表已有/没有服务时及按路由键选择时的吞吐,refresh(即getServiceList)随实例数的开销,
+ * 以及部分实例持续失败时getUriThrow的吞吐
+ * @author kuroha
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RouterBenchmark {
+
+    private static final String SERVICE_NAME = "benchmark-service";
+
+    @Param({"1", "10", "100", "500"})
+    public int instanceCount;
+
+    @Param({"WEIGHTED_RANDOM", "POWER_OF_TWO_CHOICES"})
+    public LoadBalanceStrategy strategy;
+
+    private NamingService namingService;
+    private ServiceRouter router;
+    private String[] uris;
+    private String[] keys;
+
+    @Setup
+    public void setup() {
+        List<Instance> instances = StubNamingService.instances("127.0.0.1", 10000, instanceCount);
+        namingService = StubNamingService.create(serviceName -> instances);
+        router = new ServiceRouter(namingService, strategy, ZoneAffinity.NONE, SlowStart.NONE);
+        router.getUri(SERVICE_NAME);
+        uris = new String[instanceCount];
+        for (int i = 0; i < instanceCount; i++) {
+            uris[i] = "http://127.0.0.1:" + (10000 + i) + "/";
+        }
+        keys = new String[4096];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "user-" + i;
+        }
+    }
+
+    /**
+     * 路由表中已有该服务
+     */
+    @Benchmark
+    public String getUriWarm() {
+        return router.getUri(SERVICE_NAME);
+    }
+
+    /**
+     * 按路由键一致性哈希选择,包括有界负载检查
+     */
+    @Benchmark
+    public String getUriByKey() {
+        return router.getUri(SERVICE_NAME, null, keys[ThreadLocalRandom.current().nextInt(keys.length)]);
+    }
+
+    /**
+     * 路由表中没有该服务,需加锁从naming服务拉取并订阅
+     */
+    @Benchmark
+    public String getUriCold() {
+        return new ServiceRouter(namingService, strategy, ZoneAffinity.NONE, SlowStart.NONE).getUri(SERVICE_NAME);
+    }
+
+    /**
+     * 重新拉取实例列表并重建选择器
+     */
+    @Benchmark
+    public void refresh() {
+        router.refresh();
+    }
+
+    /**
+     * 排除一个已失败实例后重新选择,同组的outcome线程持续向随机实例记录调用结果(30%连接失败),使熔断器反复打开
+     */
+    @Benchmark
+    @Group("failover")
+    @GroupThreads(3)
+    public String getUriThrow() {
+        Set<String> uriSet = Collections.singleton(uris[ThreadLocalRandom.current().nextInt(uris.length)]);
+        return router.getUriThrow(SERVICE_NAME, uriSet);
+    }
+
+    @Benchmark
+    @Group("failover")
+    @GroupThreads(1)
+    public void outcome() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        InstanceState state = router.getInstanceState(uris[random.nextInt(uris.length)]);
+        long start = state.begin();
+        if (random.nextInt(10) < 3) {
+            state.onFailure(start, FailureKind.CONNECT);
+        } else {
+            state.onSuccess(start);
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package com.kuroha.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 压测使用的HTTP桩服务,支持长连接
+ * 每个请求按当前故障配置随机决定:直接重置连接(RST)、长时间不响应后关闭连接、延迟后返回500或延迟后正常返回
+ * 故障配置可在压测过程中修改
+ * 直接使用ServerSocket实现,以便构造真实的连接重置,每个连接一个线程
+ * @author kuroha
+ */
+public final class StubBackend {
+
+    private static final byte[] RESPONSE_200 = response("200 OK", "{\"message\":\"hello\"}");
+    private static final byte[] RESPONSE_500 = response("500 Internal Server Error", "{\"message\":\"injected error\"}");
+    /**
+     * 请求行及请求头的最大长度
+     */
+    private static final int MAX_HEAD_SIZE = 16384;
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor;
+    private volatile Profile profile;
+    private volatile boolean running = true;
+
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder stalls = new LongAdder();
+    private final LongAdder resets = new LongAdder();
+
+    /**
+     * 在127.0.0.1的随机端口启动
+     * @param name 名称,用于线程名
+     * @param profile 故障配置
+     * @throws IOException 监听失败
+     */
+    public StubBackend(String name, Profile profile) throws IOException {
+        this.profile = profile;
+        this.serverSocket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "stub-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.execute(this::accept);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public Profile getProfile() {
+        return profile;
+    }
+
+    /**
+     * 修改故障配置,对之后收到的请求生效
+     * @param profile 故障配置
+     */
+    public void setProfile(Profile profile) {
+        this.profile = profile;
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return 新建连接数、请求数及各类故障次数
+     */
+    public String getStats() {
+        return String.format(Locale.ROOT, "port=%d connections=%d requests=%d errors=%d stalls=%d resets=%d",
+                getPort(), connections.sum(), requests.sum(), errors.sum(), stalls.sum(), resets.sum());
+    }
+
+    /**
+     * 清空统计,如预热结束后
+     */
+    public void resetStats() {
+        connections.reset();
+        requests.reset();
+        errors.reset();
+        stalls.reset();
+        resets.reset();
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // 关闭时忽略
+        }
+        executor.shutdownNow();
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                connections.increment();
+                executor.execute(() -> this.serve(socket));
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 处理一个连接上的全部请求
+     * @param accepted 连接,处理结束后关闭
+     */
+    private void serve(Socket accepted) {
+        try (Socket socket = accepted;
+             InputStream in = new BufferedInputStream(socket.getInputStream());
+             OutputStream out = new BufferedOutputStream(socket.getOutputStream())) {
+            while (running) {
+                Request request = readRequest(in);
+                if (request == null) {
+                    return;
+                }
+                requests.increment();
+                Profile current = profile;
+                double random = ThreadLocalRandom.current().nextDouble();
+                if (random < current.resetRate) {
+                    resets.increment();
+                    socket.setSoLinger(true, 0);
+                    return;
+                }
+                random -= current.resetRate;
+                if (random < current.stallRate) {
+                    stalls.increment();
+                    sleepMicros(TimeUnit.MILLISECONDS.toMicros(current.stallMillis));
+                    return;
+                }
+                random -= current.stallRate;
+                sleepMicros(current.latency.sampleMicros(ThreadLocalRandom.current()));
+                if (random < current.errorRate) {
+                    errors.increment();
+                    out.write(RESPONSE_500);
+                } else {
+                    out.write(RESPONSE_200);
+                }
+                out.flush();
+                if (request.close) {
+                    return;
+                }
+            }
+        } catch (SocketException e) {
+            // 调用方超时或关闭连接
+        } catch (IOException e) {
+            if (running) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 读取一个请求,读完请求体
+     * @param in 输入流
+     * @return 请求,连接已关闭时返回null
+     */
+    private static Request readRequest(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null) {
+            return null;
+        }
+        long contentLength = 0;
+        boolean chunked = false;
+        boolean close = requestLine.endsWith("HTTP/1.0");
+        int headSize = requestLine.length();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            headSize += line.length();
+            if (headSize > MAX_HEAD_SIZE) {
+                throw new IOException("请求头过长");
+            }
+            int index = line.indexOf(':');
+            if (index < 0) {
+                continue;
+            }
+            String name = line.substring(0, index).trim().toLowerCase(Locale.ROOT);
+            String value = line.substring(index + 1).trim().toLowerCase(Locale.ROOT);
+            if ("content-length".equals(name)) {
+                contentLength = Long.parseLong(value);
+            } else if ("transfer-encoding".equals(name)) {
+                chunked = value.contains("chunked");
+            } else if ("connection".equals(name)) {
+                close = "close".equals(value);
+            }
+        }
+        if (line == null) {
+            return null;
+        }
+        if (chunked) {
+            long size;
+            do {
+                String sizeLine = readLine(in);
+                if (sizeLine == null) {
+                    return null;
+                }
+                int extension = sizeLine.indexOf(';');
+                size = Long.parseLong((extension < 0 ? sizeLine : sizeLine.substring(0, extension)).trim(), 16);
+                skip(in, size);
+                if (size > 0) {
+                    readLine(in);
+                }
+            } while (size > 0);
+            // trailer
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                // 忽略
+            }
+        } else {
+            skip(in, contentLength);
+        }
+        return new Request(close);
+    }
+
+    /**
+     * 读取一行,不含CRLF
+     * @param in 输入流
+     * @return 行,流已结束时返回null
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder builder = new StringBuilder(64);
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                int length = builder.length();
+                if (length > 0 && builder.charAt(length - 1) == '\r') {
+                    builder.setLength(length - 1);
+                }
+                return builder.toString();
+            }
+            if (builder.length() > MAX_HEAD_SIZE) {
+                throw new IOException("请求行过长");
+            }
+            builder.append((char) b);
+        }
+        return null;
+    }
+
+    private static void skip(InputStream in, long n) throws IOException {
+        byte[] buffer = new byte[4096];
+        while (n > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, n));
+            if (read < 0) {
+                throw new IOException("请求体不完整");
+            }
+            n -= read;
+        }
+    }
+
+    private static void sleepMicros(long micros) {
+        long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(micros);
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+        }
+    }
+
+    private static byte[] response(String status, String body) {
+        byte[] content = body.getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: application/json;charset=utf-8\r\n"
+                + "Content-Length: " + content.length + "\r\n\r\n";
+        byte[] headBytes = head.getBytes(StandardCharsets.US_ASCII);
+        byte[] bytes = new byte[headBytes.length + content.length];
+        System.arraycopy(headBytes, 0, bytes, 0, headBytes.length);
+        System.arraycopy(content, 0, bytes, headBytes.length, content.length);
+        return bytes;
+    }
+
+    private static final class Request {
+        /**
+         * 响应后关闭连接
+         */
+        private final boolean close;
+
+        private Request(boolean close) {
+            this.close = close;
+        }
+    }
+
+    /**
+     * 响应时间分布
+     */
+    @FunctionalInterface
+    public interface Latency {
+
+        /**
+         * 无延迟
+         */
+        Latency NONE = random -> 0;
+
+        /**
+         * @param random 随机数
+         * @return 本次响应时间,微秒
+         */
+        long sampleMicros(ThreadLocalRandom random);
+
+        /**
+         * 固定响应时间
+         * @param millis 毫秒
+         * @return 分布
+         */
+        static Latency fixed(double millis) {
+            long micros = (long) (millis * 1000);
+            return random -> micros;
+        }
+
+        /**
+         * 均匀分布
+         * @param minMillis 最小值,毫秒
+         * @param maxMillis 最大值,毫秒
+         * @return 分布
+         */
+        static Latency uniform(double minMillis, double maxMillis) {
+            return random -> (long) (random.nextDouble(minMillis, maxMillis) * 1000);
+        }
+
+        /**
+         * 指数分布
+         * @param meanMillis 平均值,毫秒
+         * @return 分布
+         */
+        static Latency exponential(double meanMillis) {
+            return random -> (long) (-Math.log(1 - random.nextDouble()) * meanMillis * 1000);
+        }
+
+        /**
+         * 对数正态分布,长尾
+         * @param medianMillis 中位数,毫秒
+         * @param sigma 对数标准差,越大尾部越长,如0.5时p99约为中位数的3.2倍
+         * @return 分布
+         */
+        static Latency logNormal(double medianMillis, double sigma) {
+            return random -> (long) (Math.exp(random.nextGaussian() * sigma) * medianMillis * 1000);
+        }
+    }
+
+    /**
+     * 故障配置,不可变,各故障概率之和不大于1
+     */
+    public static final class Profile {
+        private final Latency latency;
+        private final double errorRate;
+        private final double stallRate;
+        private final long stallMillis;
+        private final double resetRate;
+
+        private Profile(Latency latency, double errorRate, double stallRate, long stallMillis, double resetRate) {
+            if (errorRate < 0 || stallRate < 0 || resetRate < 0 || errorRate + stallRate + resetRate > 1) {
+                throw new IllegalArgumentException("故障概率需在0~1之间且总和不大于1");
+            }
+            this.latency = latency;
+            this.errorRate = errorRate;
+            this.stallRate = stallRate;
+            this.stallMillis = stallMillis;
+            this.resetRate = resetRate;
+        }
+
+        /**
+         * 正常响应
+         * @param latency 响应时间分布
+         * @return 故障配置
+         */
+        public static Profile healthy(Latency latency) {
+            return new Profile(latency, 0, 0, 0, 0);
+        }
+
+        /**
+         * @param rate 返回500的概率
+         * @return 新的故障配置
+         */
+        public Profile withErrors(double rate) {
+            return new Profile(latency, rate, stallRate, stallMillis, resetRate);
+        }
+
+        /**
+         * @param rate 不响应的概率
+         * @param millis 不响应的时间,之后关闭连接
+         * @return 新的故障配置
+         */
+        public Profile withStalls(double rate, long millis) {
+            return new Profile(latency, errorRate, rate, millis, resetRate);
+        }
+
+        /**
+         * @param rate 收到请求后直接重置连接的概率
+         * @return 新的故障配置
+         */
+        public Profile withResets(double rate) {
+            return new Profile(latency, errorRate, stallRate, stallMillis, rate);
+        }
+
+        /**
+         * @param latency 响应时间分布
+         * @return 新的故障配置
+         */
+        public Profile withLatency(Latency latency) {
+            return new Profile(latency, errorRate, stallRate, stallMillis, resetRate);
+        }
+    }
+}
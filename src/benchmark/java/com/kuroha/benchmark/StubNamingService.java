@@ -0,0 +1,66 @@
+package com.kuroha.benchmark;
+
+import com.alibaba.nacos.api.naming.NamingService;
+import com.alibaba.nacos.api.naming.pojo.Instance;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * 基准测试使用的naming服务,不连接nacos
+ * 只实现路由表用到的getAllInstances/subscribe/unsubscribe,其余方法抛出UnsupportedOperationException
+ * @author kuroha
+ */
+public final class StubNamingService {
+
+    private StubNamingService() {
+    }
+
+    /**
+     * @param instances 服务名 -> 实例列表
+     * @return naming服务
+     */
+    public static NamingService create(Function<String, List<Instance>> instances) {
+        return (NamingService) Proxy.newProxyInstance(NamingService.class.getClassLoader(), new Class<?>[]{NamingService.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getAllInstances":
+                            return instances.apply((String) args[0]);
+                        case "subscribe":
+                        case "unsubscribe":
+                            return null;
+                        case "getServerStatus":
+                            return "UP";
+                        case "toString":
+                            return "StubNamingService";
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * 生成实例列表,权重在1~10之间交替
+     * @param ip 实例ip
+     * @param firstPort 第一个实例的端口,其余依次递增
+     * @param count 实例数
+     * @return 实例列表
+     */
+    public static List<Instance> instances(String ip, int firstPort, int count) {
+        List<Instance> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Instance instance = new Instance();
+            instance.setIp(ip);
+            instance.setPort(firstPort + i);
+            instance.setWeight(1 + (i * 7) % 10);
+            list.add(instance);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,289 @@
+package com.kuroha.cache;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.kuroha.utility.StringUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * get请求响应缓存
+ * 只缓存配置了过期时间的接口,同一key的并发未命中只请求一次后端,
+ * 可选在过期后的一段时间内先返回旧值并在后台刷新
+ * 缓存的对象由所有调用方共享,调用方不应修改
+ * @author kuroha
+ */
+@Slf4j
+@Component
+public class ResponseCache {
+
+    /**
+     * 后台刷新线程数
+     */
+    private static final int REFRESH_THREADS = 2;
+
+    private final boolean enabled;
+    private final long staleTime;
+    private final List<CacheRule> ruleList = new ArrayList<>();
+    private final Cache<CacheKey, CacheEntry> cache;
+    /**
+     * 后台刷新中的key
+     */
+    private final Set<CacheKey> refreshingSet = ConcurrentHashMap.newKeySet();
+    private final ExecutorService refreshExecutor;
+
+    /**
+     * @param enabled 是否开启
+     * @param maximumSize 最多缓存的响应数,超过后淘汰最近最少使用的
+     * @param staleTime 过期后仍可返回旧值的时间,毫秒,0表示不返回旧值
+     * @param ttlRules 各接口的过期时间,格式为 服务名/接口名=毫秒,接口名以*结尾时按前缀匹配
+     */
+    public ResponseCache(@Value("${cloud.cache.enabled:false}") boolean enabled,
+                         @Value("${cloud.cache.maximum-size:10000}") long maximumSize,
+                         @Value("${cloud.cache.stale-time:0}") long staleTime,
+                         @Value("${cloud.cache.ttl:}") String[] ttlRules) {
+        this.enabled = enabled;
+        this.staleTime = staleTime;
+        for (String rule : ttlRules) {
+            if (StringUtil.isNotBlank(rule)) {
+                ruleList.add(CacheRule.parse(rule.trim()));
+            }
+        }
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+        this.refreshExecutor = Executors.newFixedThreadPool(REFRESH_THREADS, r -> {
+            Thread thread = new Thread(r, "cloud-cache-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void destroy() {
+        refreshExecutor.shutdownNow();
+    }
+
+    /**
+     * 获取接口对应的缓存规则
+     * @param serviceName 服务名
+     * @param apiName 服务接口名,可带查询参数
+     * @return 缓存规则,未开启或不缓存时返回null
+     */
+    public CacheRule getRule(String serviceName, String apiName) {
+        if (!enabled) {
+            return null;
+        }
+        for (CacheRule rule : ruleList) {
+            if (rule.matches(serviceName, apiName)) {
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 从缓存获取响应,未命中时调用loader,loader返回null时不缓存
+     * @param rule 缓存规则
+     * @param serviceName 服务名
+     * @param apiName 服务接口名
+     * @param clazz 返回类型
+     * @param loader 实际调用
+     * @return 响应
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(CacheRule rule, String serviceName, String apiName, Class<T> clazz, Supplier<T> loader) {
+        CacheKey key = new CacheKey(serviceName, apiName, clazz);
+        CacheEntry entry = cache.getIfPresent(key);
+        long now = System.currentTimeMillis();
+        if (entry != null) {
+            if (now < entry.expireTime) {
+                rule.hit.increment();
+                return (T) entry.value;
+            }
+            if (now < entry.expireTime + staleTime) {
+                rule.stale.increment();
+                this.refresh(rule, key, loader);
+                return (T) entry.value;
+            }
+            cache.asMap().remove(key, entry);
+        }
+        rule.miss.increment();
+        try {
+            // 同一key并发加载时只有一个线程调用loader
+            return (T) cache.get(key, () -> this.load(rule, loader)).value;
+        } catch (CacheLoader.InvalidCacheLoadException e) {
+            // loader返回null,不缓存
+            return null;
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * 导出为Prometheus文本格式
+     * @return 文本
+     */
+    public String export() {
+        StringBuilder builder = new StringBuilder(512);
+        builder.append("# HELP cloud_cache_requests_total 响应缓存请求次数,stale为返回旧值并后台刷新\n");
+        builder.append("# TYPE cloud_cache_requests_total counter\n");
+        for (CacheRule rule : ruleList) {
+            String labels = "rule=\"" + rule.pattern + '"';
+            builder.append("cloud_cache_requests_total{").append(labels).append(",result=\"hit\"} ").append(rule.hit.sum()).append('\n');
+            builder.append("cloud_cache_requests_total{").append(labels).append(",result=\"stale\"} ").append(rule.stale.sum()).append('\n');
+            builder.append("cloud_cache_requests_total{").append(labels).append(",result=\"miss\"} ").append(rule.miss.sum()).append('\n');
+        }
+        builder.append("# HELP cloud_cache_loads_total 实际请求后端的次数\n");
+        builder.append("# TYPE cloud_cache_loads_total counter\n");
+        for (CacheRule rule : ruleList) {
+            builder.append("cloud_cache_loads_total{rule=\"").append(rule.pattern).append("\"} ").append(rule.load.sum()).append('\n');
+        }
+        builder.append("# HELP cloud_cache_evictions_total 因容量淘汰的响应数\n");
+        builder.append("# TYPE cloud_cache_evictions_total counter\n");
+        builder.append("cloud_cache_evictions_total ").append(cache.stats().evictionCount()).append('\n');
+        builder.append("# HELP cloud_cache_size 当前缓存的响应数\n");
+        builder.append("# TYPE cloud_cache_size gauge\n");
+        builder.append("cloud_cache_size ").append(cache.size()).append('\n');
+        return builder.toString();
+    }
+
+    private CacheEntry load(CacheRule rule, Supplier<?> loader) {
+        rule.load.increment();
+        Object value = loader.get();
+        // 返回null时guava抛出InvalidCacheLoadException,不缓存
+        return value == null ? null : new CacheEntry(value, System.currentTimeMillis() + rule.ttl);
+    }
+
+    /**
+     * 后台刷新,同一key同时只有一个刷新任务
+     */
+    private void refresh(CacheRule rule, CacheKey key, Supplier<?> loader) {
+        if (!refreshingSet.add(key)) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    CacheEntry entry = this.load(rule, loader);
+                    if (entry != null) {
+                        cache.put(key, entry);
+                    }
+                } catch (Exception e) {
+                    log.error(e.getMessage(), e);
+                } finally {
+                    refreshingSet.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshingSet.remove(key);
+        }
+    }
+
+    /**
+     * 缓存规则
+     */
+    public static final class CacheRule {
+        private final String pattern;
+        private final String serviceName;
+        private final String apiName;
+        private final boolean prefix;
+        private final long ttl;
+        private final LongAdder hit = new LongAdder();
+        private final LongAdder stale = new LongAdder();
+        private final LongAdder miss = new LongAdder();
+        private final LongAdder load = new LongAdder();
+
+        private CacheRule(String pattern, String serviceName, String apiName, boolean prefix, long ttl) {
+            this.pattern = pattern;
+            this.serviceName = serviceName;
+            this.apiName = apiName;
+            this.prefix = prefix;
+            this.ttl = ttl;
+        }
+
+        /**
+         * @param rule 服务名/接口名=毫秒
+         * @return 缓存规则
+         */
+        static CacheRule parse(String rule) {
+            int equals = rule.lastIndexOf('=');
+            int slash = rule.indexOf('/');
+            if (equals < 0 || slash < 0 || slash > equals) {
+                throw new IllegalArgumentException("缓存规则格式应为 服务名/接口名=毫秒:" + rule);
+            }
+            String pattern = rule.substring(0, equals).trim();
+            String apiName = pattern.substring(slash + 1);
+            boolean prefix = apiName.endsWith("*");
+            if (prefix) {
+                apiName = apiName.substring(0, apiName.length() - 1);
+            }
+            return new CacheRule(pattern, pattern.substring(0, slash), apiName, prefix,
+                    Long.parseLong(rule.substring(equals + 1).trim()));
+        }
+
+        private boolean matches(String serviceName, String apiName) {
+            if (!this.serviceName.equals(serviceName) || !apiName.startsWith(this.apiName)) {
+                return false;
+            }
+            // 精确匹配时忽略查询参数
+            return prefix || apiName.length() == this.apiName.length() || apiName.charAt(this.apiName.length()) == '?';
+        }
+    }
+
+    private static final class CacheKey {
+        private final String serviceName;
+        private final String apiName;
+        private final Class<?> clazz;
+        private final int hash;
+
+        private CacheKey(String serviceName, String apiName, Class<?> clazz) {
+            this.serviceName = serviceName;
+            this.apiName = apiName;
+            this.clazz = clazz;
+            this.hash = Objects.hash(serviceName, apiName, clazz);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return serviceName.equals(other.serviceName) && apiName.equals(other.apiName) && clazz == other.clazz;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class CacheEntry {
+        private final Object value;
+        private final long expireTime;
+
+        private CacheEntry(Object value, long expireTime) {
+            this.value = value;
+            this.expireTime = expireTime;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.kuroha.config;
+
+import com.kuroha.policy.RetryPolicy;
+import com.kuroha.routing.BreakerSettings;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * 调用客户端的可调参数,不可变,更新时整体替换
+ * 全局参数以cloud.开头,按服务覆盖的参数以cloud.services.服务名.开头,未配置的参数使用本地默认值
+ * 熔断阈值以cloud.breaker.开头,只有全局参数
+ * @author kuroha
+ */
+public final class CloudSettings {
+
+    private static final String PREFIX = "cloud.";
+    private static final String SERVICE_PREFIX = "cloud.services.";
+    private static final String CONNECT_TIMEOUT = "connect-timeout";
+    private static final String READ_TIMEOUT = "read-timeout";
+    private static final String POOL_WAIT_TIMEOUT = "pool-wait-timeout";
+    private static final String CALL_TIMEOUT = "call-timeout";
+    private static final String MAX_ATTEMPTS = "max-attempts";
+    private static final String REFRESH_INTERVAL = "refresh-interval";
+    private static final String BREAKER_PREFIX = "cloud.breaker.";
+    private static final String BREAKER_MIN_CALLS = "min-calls";
+    private static final String BREAKER_CONNECT_ERROR_RATE = "connect-error-rate";
+    private static final String BREAKER_TIMEOUT_RATE = "timeout-rate";
+    private static final String BREAKER_SERVER_ERROR_RATE = "server-error-rate";
+    private static final String BREAKER_OPEN_TIME = "open-time";
+    private static final String BREAKER_HALF_OPEN_PERMITS = "half-open-permits";
+    private static final String BREAKER_HALF_OPEN_SUCCESS = "half-open-success";
+
+    /**
+     * 链接超时时间
+     */
+    private final int connectTimeout;
+    /**
+     * 从连接池获取连接的等待时间
+     */
+    private final int poolWaitTimeout;
+    /**
+     * 定时重新从nacos拉取实例的间隔
+     */
+    private final long refreshInterval;
+    private final ServiceSettings defaultSettings;
+    /**
+     * 熔断阈值
+     */
+    private final BreakerSettings breakerSettings;
+    /**
+     * 服务名 -> 按服务覆盖后的参数
+     */
+    private final Map<String, ServiceSettings> serviceMap;
+
+    /**
+     * @param connectTimeout 链接超时时间,毫秒
+     * @param readTimeout 读取超时时间,毫秒
+     * @param poolWaitTimeout 从连接池获取连接的等待时间,毫秒
+     * @param callTimeout 未指定重试策略时的整体超时时间,毫秒
+     * @param maxAttempts 未指定重试策略时的最大尝试次数
+     * @param refreshInterval 定时重新从nacos拉取实例的间隔,毫秒
+     */
+    public CloudSettings(int connectTimeout, int readTimeout, int poolWaitTimeout, long callTimeout, int maxAttempts,
+                         long refreshInterval) {
+        this(connectTimeout, poolWaitTimeout, refreshInterval, new ServiceSettings(readTimeout, callTimeout, maxAttempts),
+                Collections.emptyMap(), BreakerSettings.DEFAULT);
+    }
+
+    private CloudSettings(int connectTimeout, int poolWaitTimeout, long refreshInterval, ServiceSettings defaultSettings,
+                          Map<String, ServiceSettings> serviceMap, BreakerSettings breakerSettings) {
+        if (connectTimeout <= 0 || poolWaitTimeout <= 0 || refreshInterval <= 0) {
+            throw new IllegalArgumentException("超时时间及刷新间隔需大于0");
+        }
+        this.connectTimeout = connectTimeout;
+        this.poolWaitTimeout = poolWaitTimeout;
+        this.refreshInterval = refreshInterval;
+        this.defaultSettings = defaultSettings;
+        this.serviceMap = serviceMap;
+        this.breakerSettings = breakerSettings;
+    }
+
+    /**
+     * 以当前参数为默认值解析配置,任一参数不合法时抛出异常,不会部分生效
+     * @param properties 配置
+     * @return 新的参数
+     */
+    public CloudSettings merge(Properties properties) {
+        ServiceSettings merged = defaultSettings.merge(properties, PREFIX);
+        Map<String, ServiceSettings> services = new HashMap<>();
+        for (String key : properties.stringPropertyNames()) {
+            if (!key.startsWith(SERVICE_PREFIX)) {
+                continue;
+            }
+            int dot = key.lastIndexOf('.');
+            if (dot <= SERVICE_PREFIX.length()) {
+                throw new IllegalArgumentException("按服务覆盖的参数格式应为 cloud.services.服务名.参数名:" + key);
+            }
+            String serviceName = key.substring(SERVICE_PREFIX.length(), dot);
+            services.computeIfAbsent(serviceName, name -> merged.merge(properties, SERVICE_PREFIX + name + '.'));
+        }
+        return new CloudSettings(getInt(properties, PREFIX + CONNECT_TIMEOUT, connectTimeout),
+                getInt(properties, PREFIX + POOL_WAIT_TIMEOUT, poolWaitTimeout),
+                getLong(properties, PREFIX + REFRESH_INTERVAL, refreshInterval),
+                merged, Collections.unmodifiableMap(services), this.mergeBreaker(properties));
+    }
+
+    private BreakerSettings mergeBreaker(Properties properties) {
+        BreakerSettings current = breakerSettings;
+        return new BreakerSettings(getInt(properties, BREAKER_PREFIX + BREAKER_MIN_CALLS, current.getMinCallNum()),
+                getDouble(properties, BREAKER_PREFIX + BREAKER_CONNECT_ERROR_RATE, current.getConnectErrorRate()),
+                getDouble(properties, BREAKER_PREFIX + BREAKER_TIMEOUT_RATE, current.getTimeoutRate()),
+                getDouble(properties, BREAKER_PREFIX + BREAKER_SERVER_ERROR_RATE, current.getServerErrorRate()),
+                getLong(properties, BREAKER_PREFIX + BREAKER_OPEN_TIME, current.getOpenTime()),
+                getInt(properties, BREAKER_PREFIX + BREAKER_HALF_OPEN_PERMITS, current.getHalfOpenPermits()),
+                getInt(properties, BREAKER_PREFIX + BREAKER_HALF_OPEN_SUCCESS, current.getHalfOpenSuccessNum()));
+    }
+
+    /**
+     * @param serviceName 服务名
+     * @return 服务的参数,未单独配置时返回全局参数
+     */
+    public ServiceSettings getService(String serviceName) {
+        return serviceMap.getOrDefault(serviceName, defaultSettings);
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return defaultSettings.readTimeout;
+    }
+
+    public int getPoolWaitTimeout() {
+        return poolWaitTimeout;
+    }
+
+    public long getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    public BreakerSettings getBreakerSettings() {
+        return breakerSettings;
+    }
+
+    @Override
+    public String toString() {
+        return "connectTimeout=" + connectTimeout + ",poolWaitTimeout=" + poolWaitTimeout
+                + ",refreshInterval=" + refreshInterval + ",default={" + defaultSettings + "},services=" + serviceMap
+                + ",breaker={" + breakerSettings + "}";
+    }
+
+    private static int getInt(Properties properties, String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    private static long getLong(Properties properties, String key, long defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    private static double getDouble(Properties properties, String key, double defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Double.parseDouble(value.trim());
+    }
+
+    /**
+     * 可按服务覆盖的参数
+     */
+    public static final class ServiceSettings {
+        /**
+         * 单次尝试的读取超时时间
+         */
+        private final int readTimeout;
+        /**
+         * 未指定重试策略时使用的重试策略
+         */
+        private final RetryPolicy retryPolicy;
+
+        private ServiceSettings(int readTimeout, long callTimeout, int maxAttempts) {
+            if (readTimeout <= 0 || callTimeout <= 0 || maxAttempts <= 0) {
+                throw new IllegalArgumentException("超时时间及尝试次数需大于0");
+            }
+            this.readTimeout = readTimeout;
+            this.retryPolicy = RetryPolicy.DEFAULT.toBuilder()
+                    .timeout(callTimeout)
+                    .maxAttempts(maxAttempts)
+                    .build();
+        }
+
+        private ServiceSettings merge(Properties properties, String prefix) {
+            return new ServiceSettings(getInt(properties, prefix + READ_TIMEOUT, readTimeout),
+                    getLong(properties, prefix + CALL_TIMEOUT, retryPolicy.getTimeout()),
+                    getInt(properties, prefix + MAX_ATTEMPTS, retryPolicy.getMaxAttempts()));
+        }
+
+        public int getReadTimeout() {
+            return readTimeout;
+        }
+
+        /**
+         * 调用方未指定重试策略时,以该策略代替RetryPolicy.DEFAULT
+         * @param retryPolicy 调用方传入的重试策略
+         * @return 实际使用的重试策略
+         */
+        public RetryPolicy resolve(RetryPolicy retryPolicy) {
+            return retryPolicy == RetryPolicy.DEFAULT ? this.retryPolicy : retryPolicy;
+        }
+
+        @Override
+        public String toString() {
+            return "readTimeout=" + readTimeout + ",callTimeout=" + retryPolicy.getTimeout()
+                    + ",maxAttempts=" + retryPolicy.getMaxAttempts();
+        }
+    }
+}
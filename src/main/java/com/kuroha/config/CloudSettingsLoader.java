@@ -0,0 +1,137 @@
+package com.kuroha.config;
+
+import com.alibaba.nacos.api.config.ConfigService;
+import com.alibaba.nacos.api.config.listener.AbstractListener;
+import com.alibaba.nacos.api.exception.NacosException;
+import com.kuroha.utility.StringUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * 从nacos配置中心加载调用客户端参数,配置变化后整体替换,无需重启
+ * 本地setting.properties中的值为默认值,nacos配置中删除某项后恢复为默认值,
+ * 配置有误时保留当前参数
+ * @author kuroha
+ */
+@Slf4j
+@Component
+public class CloudSettingsLoader {
+
+    /**
+     * 启动时读取配置的超时时间
+     */
+    private static final int GET_CONFIG_TIME_OUT = 3000;
+
+    private final ConfigService configService;
+    private final String dataId;
+    private final String group;
+    private final CloudSettings localSettings;
+    private final List<Consumer<CloudSettings>> listenerList = new CopyOnWriteArrayList<>();
+    private final AbstractListener configListener = new AbstractListener() {
+        @Override
+        public void receiveConfigInfo(String configInfo) {
+            CloudSettingsLoader.this.apply(configInfo);
+        }
+    };
+    private volatile CloudSettings settings;
+
+    /**
+     * @param configService 配置服务,为null时只使用本地默认值
+     * @param dataId 配置的dataId
+     * @param group 配置的分组
+     * @param connectTimeout 链接超时时间
+     * @param readTimeout 读取超时时间
+     * @param poolWaitTimeout 从连接池获取连接的等待时间
+     * @param callTimeout 未指定重试策略时的整体超时时间
+     * @param maxAttempts 未指定重试策略时的最大尝试次数
+     * @param refreshInterval 定时重新从nacos拉取实例的间隔
+     */
+    public CloudSettingsLoader(@Nullable ConfigService configService,
+                               @Value("${cloud.settings.data-id:spring-nacos.properties}") String dataId,
+                               @Value("${cloud.settings.group:DEFAULT_GROUP}") String group,
+                               @Value("${cloud.connect-timeout:3000}") int connectTimeout,
+                               @Value("${cloud.read-timeout:30000}") int readTimeout,
+                               @Value("${cloud.pool-wait-timeout:1000}") int poolWaitTimeout,
+                               @Value("${cloud.call-timeout:60000}") long callTimeout,
+                               @Value("${cloud.max-attempts:3}") int maxAttempts,
+                               @Value("${cloud.refresh-interval:3600000}") long refreshInterval) {
+        this.configService = configService;
+        this.dataId = dataId;
+        this.group = group;
+        this.localSettings = new CloudSettings(connectTimeout, readTimeout, poolWaitTimeout, callTimeout, maxAttempts,
+                refreshInterval);
+        this.settings = localSettings;
+    }
+
+    /**
+     * 读取配置并监听变化
+     */
+    @PostConstruct
+    public void init() {
+        if (configService == null) {
+            return;
+        }
+        try {
+            this.apply(configService.getConfigAndSignListener(dataId, group, GET_CONFIG_TIME_OUT, configListener));
+        } catch (NacosException e) {
+            log.error("读取客户端配置失败,使用本地默认值:" + dataId, e);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (configService != null) {
+            configService.removeListener(dataId, group, configListener);
+        }
+    }
+
+    /**
+     * 添加参数变化监听,添加时以当前参数调用一次
+     * @param listener 监听
+     */
+    public void addListener(Consumer<CloudSettings> listener) {
+        listenerList.add(listener);
+        listener.accept(settings);
+    }
+
+    /**
+     * @return 当前参数,同一次调用应只获取一次
+     */
+    public CloudSettings get() {
+        return settings;
+    }
+
+    /**
+     * 解析配置并替换当前参数
+     * @param config properties格式的配置,为空时恢复为本地默认值
+     */
+    public synchronized void apply(String config) {
+        CloudSettings updated;
+        try {
+            Properties properties = new Properties();
+            if (StringUtil.isNotBlank(config)) {
+                properties.load(new StringReader(config));
+            }
+            updated = localSettings.merge(properties);
+        } catch (IOException | IllegalArgumentException e) {
+            log.error("客户端配置有误,保留当前参数:" + e.getMessage());
+            return;
+        }
+        settings = updated;
+        log.info("客户端参数更新:" + updated);
+        for (Consumer<CloudSettings> listener : listenerList) {
+            listener.accept(updated);
+        }
+    }
+}
@@ -10,9 +10,6 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.util.Properties;
 
 /**
@@ -49,12 +46,9 @@ public class NacosConfiguration {
         try {
             Properties properties = new Properties();
             properties.put("serverAddr",nacosServerAddr);
-            ConfigService configService = NacosFactory.createConfigService(properties);
-            String config = configService.getConfig("spring-nacos.properties", "DEFAULT_GROUP", 2000);
-            // 为可用properties,如果有需要可以进行改造,创建一个新的类,仿造Spring的注入方法进行属性注入
-            properties.load(new ByteArrayInputStream(config.getBytes(StandardCharsets.UTF_8)));
-            return configService;
-        }catch (NacosException | IOException e) {
+            // 客户端参数由CloudSettingsLoader读取并监听
+            return NacosFactory.createConfigService(properties);
+        }catch (NacosException e) {
             e.printStackTrace();
         }
         return null;
@@ -1,10 +1,22 @@
 package com.kuroha.controller;
 
+import com.alibaba.fastjson.JSON;
+import com.kuroha.metrics.CallTracer;
+import com.kuroha.routing.RoutingView;
+import com.kuroha.service.AsyncCloudService;
 import com.kuroha.service.CloudService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
 
 /**
  * @author kuroha
@@ -14,10 +26,50 @@ public class RootController {
 
 	@Autowired
 	private CloudService cloudService;
+	@Autowired
+	private AsyncCloudService asyncCloudService;
+	@Autowired
+	private RoutingView routingView;
+	@Autowired
+	private CallTracer callTracer;
 
 	@GetMapping(value = "naming",produces = "application/json;charset=utf-8")
-	public String getAllUri(){
-		return cloudService.getAllUri();
+	public ResponseEntity<String> getAllUri(@RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch){
+		String etag = "\"" + routingView.getVersion() + "\"";
+		if (etag.equals(ifNoneMatch)) {
+			return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+		}
+		return ResponseEntity.ok().eTag(etag).body(cloudService.getAllUri());
+	}
+
+	/**
+	 * 带版本号的路由表,每个实例只出现一次
+	 * @param since 已有的版本号,指定时只返回该版本之后变化的服务
+	 * @param ifNoneMatch 上次响应的ETag,路由表未变化时返回304
+	 */
+	@GetMapping(value = "routing",produces = "application/json;charset=utf-8")
+	public ResponseEntity<String> getRouting(@RequestParam(required = false) Long since,
+											 @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch){
+		String etag = "\"" + routingView.getVersion() + "\"";
+		if (etag.equals(ifNoneMatch)) {
+			return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+		}
+		return ResponseEntity.ok().eTag(etag).body(since == null ? routingView.getFull() : routingView.getDelta(since));
+	}
+	@GetMapping(value = "pool",produces = "application/json;charset=utf-8")
+	public String getPoolStats(){
+		return cloudService.getPoolStats();
+	}
+	@GetMapping(value = "metrics",produces = "text/plain;version=0.0.4;charset=utf-8")
+	public String getMetrics(){
+		return cloudService.getMetrics();
+	}
+	/**
+	 * 采样及超过慢调用阈值的同步调用,按阶段列出耗时,最新的在前
+	 */
+	@GetMapping(value = "traces",produces = "application/json;charset=utf-8")
+	public String getTraces(){
+		return callTracer.export();
 	}
 	@GetMapping(value = "initRouting",produces = "application/json;charset=utf-8")
 	public String initRouting(){
@@ -32,6 +84,15 @@ public class RootController {
 	public String say2() {
 		return cloudService.get("cloud-service","say");
 	}
+	@GetMapping(value = "sayAsync",produces = "application/json;charset=utf-8")
+	public CompletableFuture<String> sayAsync() {
+		return asyncCloudService.get("service-algorithm","say");
+	}
+	@GetMapping(value = "sayAll",produces = "application/json;charset=utf-8")
+	public CompletableFuture<String> sayAll() {
+		return asyncCloudService.get("service-algorithm","say")
+				.thenCombine(asyncCloudService.get("cloud-service","say"), (a, b) -> JSON.toJSONString(Arrays.asList(a, b)));
+	}
 
 
 }
@@ -0,0 +1,381 @@
+package com.kuroha.http;
+
+import com.kuroha.routing.RoutingListener;
+import com.kuroha.routing.WeightedSelector;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.web.client.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * 基于HttpAsyncClient的非阻塞调用
+ * 消息转换及错误处理与RestTemplate保持一致,每个实例的连接数按路由表权重占比限制
+ * 请求声明接受gzip/deflate压缩的响应,请求体超过阈值时gzip压缩
+ * 响应体的解析及结果的完成在独立的回调线程池中执行,不占用io线程
+ * @author kuroha
+ */
+@Slf4j
+public class AsyncHttpTransport implements RoutingListener, Closeable {
+
+    /**
+     * 未登记实例的最大连接数
+     */
+    private static final int DEFAULT_MAX_PER_ROUTE = 10;
+    /**
+     * io线程检查超时的间隔,毫秒,默认1秒时小于1秒的读取超时无法及时生效
+     */
+    private static final int SELECT_INTERVAL = 100;
+    /**
+     * 回调线程数,解析响应体及执行调用方的后续处理
+     */
+    private static final int CALLBACK_THREAD_NUM = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private final PoolingNHttpClientConnectionManager connectionManager;
+    private final CloseableHttpAsyncClient httpClient;
+    private final Map<BodyCodec, List<HttpMessageConverter<?>>> messageConverterMap = new EnumMap<>(BodyCodec.class);
+    private final int gzipThreshold;
+    private final ResponseErrorHandler errorHandler = new DefaultResponseErrorHandler();
+    /**
+     * 未指定本次请求超时时间时使用的超时设置,可在运行中替换
+     */
+    private volatile RequestConfig requestConfig;
+    private final long idleTimeout;
+    private final int serviceMaxConnections;
+    private final int instanceMinConnections;
+    /**
+     * 服务所拥有的实例及其连接数
+     */
+    private final ConcurrentHashMap<String, Map<String, Integer>> servicePoolMap = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+    private final ExecutorService callbackExecutor;
+
+    /**
+     * @param connectTimeout 链接超时时间
+     * @param readTimeout 读取超时时间
+     * @param poolWaitTimeout 从连接池获取连接的等待时间
+     * @param idleTimeout 空闲连接保留时间
+     * @param serviceMaxConnections 单个服务的最大连接数,按权重占比分配给各实例
+     * @param instanceMinConnections 单个实例的最小连接数
+     * @param gzipThreshold 请求体超过该字节数时gzip压缩,0表示不压缩
+     */
+    public AsyncHttpTransport(int connectTimeout, int readTimeout, int poolWaitTimeout, long idleTimeout,
+                              int serviceMaxConnections, int instanceMinConnections, int gzipThreshold) {
+        this.idleTimeout = idleTimeout;
+        this.serviceMaxConnections = serviceMaxConnections;
+        this.instanceMinConnections = instanceMinConnections;
+        this.gzipThreshold = gzipThreshold;
+        for (BodyCodec codec : BodyCodec.values()) {
+            messageConverterMap.put(codec, codec.createMessageConverters());
+        }
+        try {
+            connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(IOReactorConfig.custom()
+                    .setSelectInterval(SELECT_INTERVAL)
+                    .build()));
+        } catch (IOReactorException e) {
+            throw new IllegalStateException(e);
+        }
+        connectionManager.setDefaultMaxPerRoute(DEFAULT_MAX_PER_ROUTE);
+        this.setTimeouts(connectTimeout, readTimeout, poolWaitTimeout);
+        httpClient = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .build();
+        httpClient.start();
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cloud-async-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(idleTimeout / 2, 1000);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+        callbackExecutor = Executors.newFixedThreadPool(CALLBACK_THREAD_NUM, r -> {
+            Thread thread = new Thread(r, "cloud-async-callback");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 替换超时设置,对之后创建的请求生效
+     * @param connectTimeout 链接超时时间
+     * @param readTimeout 读取超时时间
+     * @param poolWaitTimeout 从连接池获取连接的等待时间
+     */
+    public void setTimeouts(int connectTimeout, int readTimeout, int poolWaitTimeout) {
+        requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .setConnectionRequestTimeout(poolWaitTimeout)
+                .build();
+    }
+
+    /**
+     * 异步调用
+     * @param method 请求方法
+     * @param url 完整地址
+     * @param body 请求体,可为HttpEntity
+     * @param responseType 返回类型,为null时不解析响应体
+     * @return 调用结果,失败时异常与RestTemplate一致
+     */
+    public <T> CompletableFuture<T> execute(HttpMethod method, String url, Object body, Class<T> responseType) {
+        return execute(method, url, body, responseType, 0, BodyCodec.JSON);
+    }
+
+    /**
+     * 异步调用
+     * @param method 请求方法
+     * @param url 完整地址
+     * @param body 请求体,可为HttpEntity
+     * @param responseType 返回类型,为null时不解析响应体
+     * @param timeout 本次请求的读取超时时间,毫秒,不大于0时使用默认设置
+     * @param codec 请求体及响应体编码
+     * @return 调用结果,失败时异常与RestTemplate一致
+     */
+    public <T> CompletableFuture<T> execute(HttpMethod method, String url, Object body, Class<T> responseType, int timeout,
+                                            BodyCodec codec) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        List<HttpMessageConverter<?>> messageConverters = messageConverterMap.get(codec);
+        HttpUriRequest request;
+        try {
+            request = createRequest(method, url, body, responseType, timeout, messageConverters);
+        } catch (Exception e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        Future<HttpResponse> future = httpClient.execute(request, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse httpResponse) {
+                dispatch(() -> {
+                    ClientHttpResponse response = new BufferedClientHttpResponse(httpResponse);
+                    try {
+                        if (errorHandler.hasError(response)) {
+                            errorHandler.handleError(response);
+                        }
+                        T value = null;
+                        if (responseType != null) {
+                            value = new HttpMessageConverterExtractor<>(responseType, messageConverters).extractData(response);
+                        }
+                        result.complete(value);
+                    } catch (Exception e) {
+                        result.completeExceptionally(e);
+                    } finally {
+                        response.close();
+                    }
+                });
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                dispatch(() -> {
+                    if (ex instanceof IOException) {
+                        result.completeExceptionally(new ResourceAccessException("I/O error on " + method.name() +
+                                " request for \"" + url + "\": " + ex.getMessage(), (IOException) ex));
+                    } else {
+                        result.completeExceptionally(ex);
+                    }
+                });
+            }
+
+            @Override
+            public void cancelled() {
+                dispatch(() -> result.cancel(false));
+            }
+        });
+        result.whenComplete((value, e) -> {
+            if (result.isCancelled()) {
+                future.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public synchronized void onUpdate(String serviceName, WeightedSelector selector) {
+        Map<String, Integer> poolSizeMap = PooledClientHttpRequestFactory.poolSizeMap(selector, serviceMaxConnections, instanceMinConnections);
+        Map<String, Integer> old = servicePoolMap.put(serviceName, poolSizeMap);
+        Set<String> addresses = new HashSet<>(poolSizeMap.keySet());
+        if (old != null) {
+            addresses.addAll(old.keySet());
+        }
+        addresses.forEach(this::resizeRoute);
+        resizeTotal();
+    }
+
+    @Override
+    public synchronized void onRemove(String serviceName) {
+        Map<String, Integer> old = servicePoolMap.remove(serviceName);
+        if (old != null) {
+            old.keySet().forEach(this::resizeRoute);
+            resizeTotal();
+        }
+    }
+
+    @Override
+    public void close() {
+        evictor.shutdownNow();
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+        }
+        callbackExecutor.shutdown();
+    }
+
+    /**
+     * 在回调线程池中执行回调,线程池已关闭时在当前线程执行,保证结果一定完成
+     * @param callback 回调
+     */
+    private void dispatch(Runnable callback) {
+        try {
+            callbackExecutor.execute(callback);
+        } catch (RejectedExecutionException e) {
+            callback.run();
+        }
+    }
+
+    private HttpUriRequest createRequest(HttpMethod method, String url, Object body, Class<?> responseType, int timeout,
+                                         List<HttpMessageConverter<?>> messageConverters) throws IOException {
+        RequestBuilder builder = RequestBuilder.create(method.name()).setUri(url);
+        RequestConfig config = requestConfig;
+        if (timeout > 0 && timeout != config.getSocketTimeout()) {
+            builder.setConfig(RequestConfig.copy(config)
+                    .setConnectTimeout(Math.min(config.getConnectTimeout(), timeout))
+                    .setSocketTimeout(timeout)
+                    .setConnectionRequestTimeout(Math.min(config.getConnectionRequestTimeout(), timeout))
+                    .build());
+        } else {
+            builder.setConfig(config);
+        }
+        HttpHeaders headers = new HttpHeaders();
+        if (responseType != null) {
+            List<MediaType> mediaTypes = new ArrayList<>();
+            for (HttpMessageConverter<?> converter : messageConverters) {
+                if (converter.canRead(responseType, null)) {
+                    mediaTypes.addAll(converter.getSupportedMediaTypes());
+                }
+            }
+            MediaType.sortBySpecificity(mediaTypes);
+            headers.setAccept(mediaTypes);
+        }
+        headers.set(HttpHeaders.ACCEPT_ENCODING, "gzip,deflate");
+        byte[] content = writeBody(body, headers, messageConverters);
+        if (content != null && gzipThreshold > 0 && content.length >= gzipThreshold && !headers.containsKey(HttpHeaders.CONTENT_ENCODING)) {
+            content = GzipRequestInterceptor.gzip(content);
+            headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        headers.forEach((name, values) -> {
+            if (!HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name)) {
+                values.forEach(value -> builder.addHeader(name, value));
+            }
+        });
+        if (content != null) {
+            builder.setEntity(new ByteArrayEntity(content));
+        }
+        return builder.build();
+    }
+
+    @SuppressWarnings("unchecked")
+    private byte[] writeBody(Object body, HttpHeaders headers, List<HttpMessageConverter<?>> messageConverters) throws IOException {
+        Object requestBody = body;
+        if (body instanceof HttpEntity) {
+            HttpEntity<?> entity = (HttpEntity<?>) body;
+            headers.putAll(entity.getHeaders());
+            requestBody = entity.getBody();
+        }
+        if (requestBody == null) {
+            return null;
+        }
+        MediaType contentType = headers.getContentType();
+        for (HttpMessageConverter<?> converter : messageConverters) {
+            if (converter.canWrite(requestBody.getClass(), contentType)) {
+                BufferedHttpOutputMessage message = new BufferedHttpOutputMessage(headers);
+                ((HttpMessageConverter<Object>) converter).write(requestBody, contentType, message);
+                return message.body.toByteArray();
+            }
+        }
+        throw new RestClientException("No HttpMessageConverter for " + requestBody.getClass().getName() +
+                (contentType != null ? " and content type \"" + contentType + "\"" : ""));
+    }
+
+    /**
+     * 实例的连接数为引用该实例的各服务分配的连接数之和,没有服务引用时恢复默认值
+     * @param address 实例地址(ip:port)
+     */
+    private void resizeRoute(String address) {
+        int size = 0;
+        for (Map<String, Integer> poolSizeMap : servicePoolMap.values()) {
+            size += poolSizeMap.getOrDefault(address, 0);
+        }
+        connectionManager.setMaxPerRoute(route(address), size > 0 ? size : DEFAULT_MAX_PER_ROUTE);
+    }
+
+    private void resizeTotal() {
+        int total = 0;
+        for (Map<String, Integer> poolSizeMap : servicePoolMap.values()) {
+            for (Integer size : poolSizeMap.values()) {
+                total += size;
+            }
+        }
+        connectionManager.setMaxTotal(Math.max(total, serviceMaxConnections));
+    }
+
+    private void evictIdle() {
+        try {
+            connectionManager.closeExpiredConnections();
+            connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    private static HttpRoute route(String address) {
+        return new HttpRoute(HttpHost.create(address));
+    }
+
+    /**
+     * 缓存请求体的输出
+     */
+    private static class BufferedHttpOutputMessage implements HttpOutputMessage {
+        private final HttpHeaders headers;
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+
+        private BufferedHttpOutputMessage(HttpHeaders headers) {
+            this.headers = headers;
+        }
+
+        @Override
+        public OutputStream getBody() {
+            return body;
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+    }
+}
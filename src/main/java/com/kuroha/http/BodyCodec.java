@@ -0,0 +1,45 @@
+package com.kuroha.http;
+
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.http.converter.smile.MappingJackson2SmileHttpMessageConverter;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.List;
+
+/**
+ * 请求体及响应体的编码
+ * 只影响对象类型的请求体及返回类型,String/byte[]等仍按原样发送
+ * @author kuroha
+ */
+public enum BodyCodec {
+
+    /**
+     * JSON文本
+     */
+    JSON,
+    /**
+     * smile二进制JSON,字段名及重复的短字符串只写一次,体积及编解码开销均小于JSON,
+     * 对方不支持smile而返回JSON时仍可解析
+     */
+    SMILE;
+
+    /**
+     * 创建该编码使用的消息转换器
+     * @return 消息转换器,在RestTemplate默认转换器的基础上调整
+     */
+    public List<HttpMessageConverter<?>> createMessageConverters() {
+        List<HttpMessageConverter<?>> converters = new RestTemplate().getMessageConverters();
+        converters.removeIf(converter -> converter instanceof MappingJackson2SmileHttpMessageConverter);
+        if (this == SMILE) {
+            // 放在JSON之前,对象请求体按smile编码,Accept中smile优先
+            for (int i = 0; i < converters.size(); i++) {
+                if (converters.get(i) instanceof MappingJackson2HttpMessageConverter) {
+                    converters.add(i, new MappingJackson2SmileHttpMessageConverter());
+                    break;
+                }
+            }
+        }
+        return converters;
+    }
+}
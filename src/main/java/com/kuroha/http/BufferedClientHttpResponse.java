@@ -0,0 +1,89 @@
+package com.kuroha.http;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 将HttpAsyncClient的响应适配为ClientHttpResponse,以便复用RestTemplate的消息转换与异常处理
+ * gzip/deflate压缩的响应体在读取时解压
+ * @author kuroha
+ */
+class BufferedClientHttpResponse implements ClientHttpResponse {
+
+    private final HttpResponse httpResponse;
+    private HttpHeaders headers;
+    private InputStream body;
+
+    BufferedClientHttpResponse(HttpResponse httpResponse) {
+        this.httpResponse = httpResponse;
+    }
+
+    @Override
+    public HttpStatus getStatusCode() throws IOException {
+        return HttpStatus.valueOf(getRawStatusCode());
+    }
+
+    @Override
+    public int getRawStatusCode() {
+        return httpResponse.getStatusLine().getStatusCode();
+    }
+
+    @Override
+    public String getStatusText() {
+        return httpResponse.getStatusLine().getReasonPhrase();
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+        if (headers == null) {
+            headers = new HttpHeaders();
+            for (Header header : httpResponse.getAllHeaders()) {
+                headers.add(header.getName(), header.getValue());
+            }
+        }
+        return headers;
+    }
+
+    @Override
+    public InputStream getBody() throws IOException {
+        if (body == null) {
+            HttpEntity entity = httpResponse.getEntity();
+            if (entity == null || entity.getContentLength() == 0) {
+                body = StreamUtils.emptyInput();
+            } else {
+                body = decode(entity.getContent(), httpResponse.getFirstHeader(HttpHeaders.CONTENT_ENCODING));
+            }
+        }
+        return body;
+    }
+
+    private static InputStream decode(InputStream in, Header contentEncoding) throws IOException {
+        if (contentEncoding == null) {
+            return in;
+        }
+        String encoding = contentEncoding.getValue().trim();
+        if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
+            return new GZIPInputStream(in);
+        }
+        if ("deflate".equalsIgnoreCase(encoding)) {
+            return new InflaterInputStream(in);
+        }
+        return in;
+    }
+
+    @Override
+    public void close() {
+        EntityUtils.consumeQuietly(httpResponse.getEntity());
+    }
+}
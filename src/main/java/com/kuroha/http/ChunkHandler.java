@@ -0,0 +1,18 @@
+package com.kuroha.http;
+
+import java.io.IOException;
+
+/**
+ * 分块响应处理,缓冲区在每次回调间复用
+ * @author kuroha
+ */
+@FunctionalInterface
+public interface ChunkHandler {
+    /**
+     * 处理一块响应数据
+     * @param buffer 缓冲区,回调返回后会被覆盖
+     * @param length 本块数据长度
+     * @throws IOException 处理失败
+     */
+    void onChunk(byte[] buffer, int length) throws IOException;
+}
@@ -0,0 +1,55 @@
+package com.kuroha.http;
+
+import com.kuroha.utility.StringUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 按服务选择请求体编码,同步与异步调用共用
+ * @author kuroha
+ */
+@Component
+public class CodecSelector {
+
+    private final BodyCodec defaultCodec;
+    private final Map<String, BodyCodec> serviceCodecMap = new HashMap<>();
+    private final int gzipThreshold;
+
+    /**
+     * @param defaultCodec 未单独配置的服务使用的编码
+     * @param serviceCodecs 各服务的编码,格式为 服务名=编码
+     * @param gzipThreshold 请求体超过该字节数时gzip压缩,0表示不压缩
+     */
+    public CodecSelector(@Value("${cloud.codec.default:JSON}") BodyCodec defaultCodec,
+                         @Value("${cloud.codec.services:}") String[] serviceCodecs,
+                         @Value("${cloud.codec.gzip-threshold:0}") int gzipThreshold) {
+        this.defaultCodec = defaultCodec;
+        this.gzipThreshold = gzipThreshold;
+        for (String serviceCodec : serviceCodecs) {
+            if (StringUtil.isBlank(serviceCodec)) {
+                continue;
+            }
+            int index = serviceCodec.indexOf('=');
+            if (index < 0) {
+                throw new IllegalArgumentException("编码配置格式应为 服务名=编码:" + serviceCodec);
+            }
+            serviceCodecMap.put(serviceCodec.substring(0, index).trim(),
+                    BodyCodec.valueOf(serviceCodec.substring(index + 1).trim().toUpperCase()));
+        }
+    }
+
+    /**
+     * @param serviceName 服务名
+     * @return 服务使用的编码
+     */
+    public BodyCodec getCodec(String serviceName) {
+        return serviceCodecMap.getOrDefault(serviceName, defaultCodec);
+    }
+
+    public int getGzipThreshold() {
+        return gzipThreshold;
+    }
+}
@@ -0,0 +1,48 @@
+package com.kuroha.http;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 请求体超过阈值时gzip压缩,对方服务需支持Content-Encoding: gzip的请求
+ * @author kuroha
+ */
+public class GzipRequestInterceptor implements ClientHttpRequestInterceptor {
+
+    private final int threshold;
+
+    /**
+     * @param threshold 压缩阈值,字节
+     */
+    public GzipRequestInterceptor(int threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+        if (body.length < threshold || request.getHeaders().containsKey(HttpHeaders.CONTENT_ENCODING)) {
+            return execution.execute(request, body);
+        }
+        request.getHeaders().set(HttpHeaders.CONTENT_ENCODING, "gzip");
+        return execution.execute(request, gzip(body));
+    }
+
+    /**
+     * @param body 请求体
+     * @return gzip压缩后的请求体
+     */
+    static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(body);
+        }
+        return out.toByteArray();
+    }
+}
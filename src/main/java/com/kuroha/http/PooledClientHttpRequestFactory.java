@@ -0,0 +1,390 @@
+package com.kuroha.http;
+
+import com.kuroha.routing.RoutingListener;
+import com.kuroha.routing.ServiceInstance;
+import com.kuroha.routing.WeightedSelector;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 按实例划分连接池的请求工厂
+ * 每个实例(ip:port)持有独立的长连接池,连接池大小由路由表中的权重占比决定,
+ * 实例从nacos下线后连接池进入回收状态,借出的连接全部归还或超过回收等待时间后关闭
+ * @author kuroha
+ */
+@Slf4j
+public class PooledClientHttpRequestFactory implements ClientHttpRequestFactory, RoutingListener, Closeable {
+
+    /**
+     * 未登记实例使用的公共连接池每个实例最大连接数
+     */
+    private static final int DEFAULT_MAX_PER_ROUTE = 10;
+    /**
+     * 公共连接池最大连接数
+     */
+    private static final int DEFAULT_MAX_TOTAL = 50;
+    /**
+     * 连接空闲多久后进行校验,毫秒
+     */
+    private static final int VALIDATE_AFTER_INACTIVITY = 2000;
+    /**
+     * 检查回收中的连接池的间隔,毫秒
+     */
+    private static final long DRAIN_CHECK_INTERVAL = 1000;
+    /**
+     * 回收中的连接池最长等待时间,毫秒,超过后不再等待借出的连接归还直接关闭
+     */
+    private static final long DRAIN_TIMEOUT = 60000;
+    /**
+     * 当前线程本次尝试的超时时间,毫秒
+     */
+    private static final ThreadLocal<Integer> ATTEMPT_TIMEOUT = new ThreadLocal<>();
+
+    /**
+     * 未设置本次尝试超时时间时使用的超时设置,可在运行中替换
+     */
+    private volatile RequestConfig requestConfig;
+    private final long idleTimeout;
+    private final int serviceMaxConnections;
+    private final int instanceMinConnections;
+    /**
+     * 实例连接池 key为ip:port
+     */
+    private final ConcurrentHashMap<String, InstancePool> poolMap = new ConcurrentHashMap<>();
+    /**
+     * 服务所拥有的实例及该服务分配给实例的连接数 key为服务名
+     */
+    private final ConcurrentHashMap<String, Map<String, Integer>> serviceInstanceMap = new ConcurrentHashMap<>();
+    /**
+     * 已从路由表移除,等待借出的连接归还后关闭的连接池
+     */
+    private final Set<InstancePool> drainingPools = ConcurrentHashMap.newKeySet();
+    private final InstancePool sharedPool;
+    private final ScheduledExecutorService evictor;
+
+    /**
+     * @param connectTimeout 链接超时时间
+     * @param readTimeout 读取超时时间
+     * @param poolWaitTimeout 从连接池获取连接的等待时间
+     * @param idleTimeout 空闲连接保留时间
+     * @param serviceMaxConnections 单个服务的最大连接数,按权重占比分配给各实例
+     * @param instanceMinConnections 单个实例的最小连接数
+     */
+    public PooledClientHttpRequestFactory(int connectTimeout, int readTimeout, int poolWaitTimeout, long idleTimeout,
+                                          int serviceMaxConnections, int instanceMinConnections) {
+        this.setTimeouts(connectTimeout, readTimeout, poolWaitTimeout);
+        this.idleTimeout = idleTimeout;
+        this.serviceMaxConnections = serviceMaxConnections;
+        this.instanceMinConnections = instanceMinConnections;
+        this.sharedPool = new InstancePool("shared", DEFAULT_MAX_TOTAL, DEFAULT_MAX_PER_ROUTE);
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cloud-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(idleTimeout / 2, 1000);
+        this.evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+        this.evictor.scheduleWithFixedDelay(this::closeDrained, DRAIN_CHECK_INTERVAL, DRAIN_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod) throws IOException {
+        return this.getPool(uri).requestFactory.createRequest(uri, httpMethod);
+    }
+
+    /**
+     * 不缓冲请求体的请求工厂,与本工厂共用连接池,用于流式调用
+     * @return 请求工厂
+     */
+    public ClientHttpRequestFactory streaming() {
+        return (uri, httpMethod) -> this.getPool(uri).streamingRequestFactory.createRequest(uri, httpMethod);
+    }
+
+    private InstancePool getPool(URI uri) {
+        InstancePool pool = poolMap.get(uri.getRawAuthority());
+        return pool == null ? sharedPool : pool;
+    }
+
+    /**
+     * 替换超时设置,对之后创建的请求生效
+     * @param connectTimeout 链接超时时间
+     * @param readTimeout 读取超时时间
+     * @param poolWaitTimeout 从连接池获取连接的等待时间
+     */
+    public void setTimeouts(int connectTimeout, int readTimeout, int poolWaitTimeout) {
+        requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .setConnectionRequestTimeout(poolWaitTimeout)
+                .build();
+    }
+
+    /**
+     * 以指定的读取超时时间执行调用,调用中创建的请求链接及获取连接的超时不超过该时间,调用结束后恢复原设置
+     * @param timeout 超时时间,毫秒
+     * @param call 调用
+     * @return 调用结果
+     */
+    public <T> T withAttemptTimeout(int timeout, Supplier<T> call) {
+        Integer old = ATTEMPT_TIMEOUT.get();
+        ATTEMPT_TIMEOUT.set(timeout);
+        try {
+            return call.get();
+        } finally {
+            if (old == null) {
+                ATTEMPT_TIMEOUT.remove();
+            } else {
+                ATTEMPT_TIMEOUT.set(old);
+            }
+        }
+    }
+
+    @Override
+    public void onUpdate(String serviceName, WeightedSelector selector) {
+        updateService(serviceName, poolSizeMap(selector, serviceMaxConnections, instanceMinConnections));
+    }
+
+    @Override
+    public void onRemove(String serviceName) {
+        removeService(serviceName);
+    }
+
+    /**
+     * 按权重占比计算各实例连接池大小
+     * @param selector 服务实例选择器
+     * @param serviceMaxConnections 单个服务的最大连接数
+     * @param instanceMinConnections 单个实例的最小连接数
+     * @return 实例地址(ip:port) -> 连接池大小
+     */
+    static Map<String, Integer> poolSizeMap(WeightedSelector selector, int serviceMaxConnections, int instanceMinConnections) {
+        Map<String, Integer> poolSizeMap = new HashMap<>(selector.size());
+        for (ServiceInstance instance : selector.getInstances()) {
+            int size = (int) Math.ceil(serviceMaxConnections * instance.getWeight() / selector.getTotalWeight());
+            poolSizeMap.put(instance.getAddress(), Math.max(size, instanceMinConnections));
+        }
+        return poolSizeMap;
+    }
+
+    /**
+     * 根据路由表更新服务的实例连接池,多个服务共用同一实例时连接池大小为各服务分配的连接数之和,
+     * 不在列表中的实例如无其他服务使用则关闭
+     * @param serviceName 服务名
+     * @param poolSizeMap 实例地址(ip:port)及其连接池大小
+     */
+    public synchronized void updateService(String serviceName, Map<String, Integer> poolSizeMap) {
+        Map<String, Integer> old = serviceInstanceMap.put(serviceName, new HashMap<>(poolSizeMap));
+        Set<String> addresses = new HashSet<>(poolSizeMap.keySet());
+        if (old != null) {
+            addresses.addAll(old.keySet());
+        }
+        addresses.forEach(this::resizeOrClose);
+    }
+
+    /**
+     * 服务从路由表中移除时关闭其实例连接池,其他服务仍在使用的实例只调整连接池大小
+     * @param serviceName 服务名
+     */
+    public synchronized void removeService(String serviceName) {
+        Map<String, Integer> old = serviceInstanceMap.remove(serviceName);
+        if (old != null) {
+            old.keySet().forEach(this::resizeOrClose);
+        }
+    }
+
+    /**
+     * 获取各服务下每个实例的连接池状态
+     * @return 服务名 -> (实例地址 -> 连接池状态)
+     */
+    public Map<String, Map<String, PoolStats>> getPoolStats() {
+        Map<String, Map<String, PoolStats>> stats = new TreeMap<>();
+        serviceInstanceMap.forEach((serviceName, addresses) -> {
+            Map<String, PoolStats> instanceStats = new TreeMap<>();
+            for (String address : addresses.keySet()) {
+                InstancePool pool = poolMap.get(address);
+                if (pool != null) {
+                    instanceStats.put(address, pool.connectionManager.getTotalStats());
+                }
+            }
+            stats.put(serviceName, instanceStats);
+        });
+        stats.put(sharedPool.address, Collections.singletonMap(sharedPool.address, sharedPool.connectionManager.getTotalStats()));
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        evictor.shutdownNow();
+        poolMap.values().forEach(InstancePool::close);
+        poolMap.clear();
+        drainingPools.forEach(InstancePool::close);
+        drainingPools.clear();
+        sharedPool.close();
+    }
+
+    /**
+     * 按引用实例的全部服务重新计算连接池大小,没有服务引用时回收
+     * @param address 实例地址(ip:port)
+     */
+    private void resizeOrClose(String address) {
+        int size = 0;
+        for (Map<String, Integer> poolSizeMap : serviceInstanceMap.values()) {
+            size += poolSizeMap.getOrDefault(address, 0);
+        }
+        if (size > 0) {
+            InstancePool pool = poolMap.get(address);
+            if (pool == null) {
+                poolMap.put(address, new InstancePool(address, size, size));
+            } else {
+                pool.resize(size);
+            }
+            return;
+        }
+        InstancePool pool = poolMap.remove(address);
+        if (pool != null) {
+            log.debug("回收实例连接池:" + address);
+            pool.drain();
+            drainingPools.add(pool);
+        }
+    }
+
+    /**
+     * 关闭借出的连接已全部归还或等待超时的回收中连接池
+     * 刚移除时可能仍有线程持有该连接池正在创建请求,因此至少等待一次检查间隔
+     */
+    private void closeDrained() {
+        try {
+            long now = System.currentTimeMillis();
+            for (InstancePool pool : drainingPools) {
+                // 已归还的连接不再复用
+                pool.connectionManager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+                int leased = pool.connectionManager.getTotalStats().getLeased();
+                if (now - pool.drainTime < DRAIN_CHECK_INTERVAL || (leased > 0 && now - pool.drainTime < DRAIN_TIMEOUT)) {
+                    continue;
+                }
+                if (leased > 0) {
+                    log.warn("实例连接池回收超时,仍有" + leased + "个连接未归还:" + pool.address);
+                } else {
+                    log.debug("关闭实例连接池:" + pool.address);
+                }
+                drainingPools.remove(pool);
+                pool.close();
+            }
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 清理过期及空闲连接
+     */
+    private void evictIdle() {
+        try {
+            for (InstancePool pool : poolMap.values()) {
+                pool.evictIdle();
+            }
+            sharedPool.evictIdle();
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 单个实例的连接池
+     */
+    private class InstancePool {
+        private final String address;
+        private final PoolingHttpClientConnectionManager connectionManager;
+        private final CloseableHttpClient httpClient;
+        private final HttpComponentsClientHttpRequestFactory requestFactory;
+        private final HttpComponentsClientHttpRequestFactory streamingRequestFactory;
+        /**
+         * 开始回收的时间
+         */
+        private volatile long drainTime;
+
+        private InstancePool(String address, int maxTotal, int maxPerRoute) {
+            this.address = address;
+            connectionManager = new TracingConnectionManager();
+            connectionManager.setMaxTotal(maxTotal);
+            connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+            connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY);
+            httpClient = HttpClients.custom()
+                    .setConnectionManager(connectionManager)
+                    .addInterceptorLast(TracingConnectionManager.RESPONSE_INTERCEPTOR)
+                    .build();
+            requestFactory = this.createRequestFactory();
+            streamingRequestFactory = this.createRequestFactory();
+            streamingRequestFactory.setBufferRequestBody(false);
+        }
+
+        private HttpComponentsClientHttpRequestFactory createRequestFactory() {
+            HttpComponentsClientHttpRequestFactory factory = new HttpComponentsClientHttpRequestFactory(httpClient) {
+                @Override
+                protected HttpContext createHttpContext(HttpMethod httpMethod, URI uri) {
+                    RequestConfig config = requestConfig;
+                    Integer timeout = ATTEMPT_TIMEOUT.get();
+                    HttpClientContext context = HttpClientContext.create();
+                    if (timeout == null || timeout == config.getSocketTimeout()) {
+                        context.setRequestConfig(config);
+                    } else {
+                        context.setRequestConfig(RequestConfig.copy(config)
+                                .setConnectTimeout(Math.min(config.getConnectTimeout(), timeout))
+                                .setSocketTimeout(timeout)
+                                .setConnectionRequestTimeout(Math.min(config.getConnectionRequestTimeout(), timeout))
+                                .build());
+                    }
+                    return context;
+                }
+            };
+            return factory;
+        }
+
+        private void resize(int size) {
+            if (connectionManager.getMaxTotal() != size) {
+                connectionManager.setMaxTotal(size);
+                connectionManager.setDefaultMaxPerRoute(size);
+            }
+        }
+
+        private void evictIdle() {
+            connectionManager.closeExpiredConnections();
+            connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * 开始回收并关闭空闲连接
+         */
+        private void drain() {
+            drainTime = System.currentTimeMillis();
+            connectionManager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+        }
+
+        private void close() {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                log.error(e.getMessage(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.kuroha.http;
+
+import org.springframework.web.client.RestClientException;
+
+/**
+ * 流式调用的请求体写入或响应处理本身抛出的异常,如调用方读取源数据或写入目标失败
+ * 读写连接失败不属于该异常,与实例健康无关,不计入熔断,不切换实例重试
+ * @author kuroha
+ */
+public class StreamCallbackException extends RestClientException {
+
+    private static final long serialVersionUID = 1L;
+
+    public StreamCallbackException(Throwable cause) {
+        super("流式调用处理失败: " + cause.getMessage(), cause);
+    }
+}
@@ -0,0 +1,16 @@
+package com.kuroha.http;
+
+import org.springframework.web.client.RestClientException;
+
+/**
+ * 流式调用在请求体或响应体已开始读取后失败,数据无法重放,不可切换实例重试
+ * @author kuroha
+ */
+public class StreamConsumedException extends RestClientException {
+
+    private static final long serialVersionUID = 1L;
+
+    public StreamConsumedException(Throwable cause) {
+        super("流已开始读取,不可重试: " + cause.getMessage(), cause);
+    }
+}
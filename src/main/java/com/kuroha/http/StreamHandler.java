@@ -0,0 +1,20 @@
+package com.kuroha.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 流式响应处理
+ * 响应体只在回调内有效,返回后连接归还连接池
+ * @author kuroha
+ */
+@FunctionalInterface
+public interface StreamHandler<T> {
+    /**
+     * 处理响应体
+     * @param in 响应体输入流,无需关闭
+     * @return 处理结果
+     * @throws IOException 读取失败
+     */
+    T handle(InputStream in) throws IOException;
+}
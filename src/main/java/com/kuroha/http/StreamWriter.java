@@ -0,0 +1,19 @@
+package com.kuroha.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 流式请求体写入
+ * 失败切换实例时会再次调用,需能重复写入相同内容
+ * @author kuroha
+ */
+@FunctionalInterface
+public interface StreamWriter {
+    /**
+     * 写入请求体
+     * @param out 请求体输出流,无需关闭
+     * @throws IOException 写入失败
+     */
+    void write(OutputStream out) throws IOException;
+}
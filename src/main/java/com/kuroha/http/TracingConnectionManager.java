@@ -0,0 +1,74 @@
+package com.kuroha.http;
+
+import com.kuroha.metrics.TracePhase;
+import com.kuroha.metrics.TraceRecorder;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 记录获取连接及建立链接耗时的连接池,当前线程没有进行中的追踪时与父类相同
+ * @author kuroha
+ */
+class TracingConnectionManager extends PoolingHttpClientConnectionManager {
+
+    /**
+     * 收到响应头时记录发送请求及等待响应的耗时
+     */
+    static final HttpResponseInterceptor RESPONSE_INTERCEPTOR = (response, context) -> {
+        TraceRecorder trace = TraceRecorder.current();
+        if (trace != null) {
+            trace.span(TracePhase.RESPONSE, trace.getLastEnd());
+        }
+    };
+
+    @Override
+    public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+        ConnectionRequest request = super.requestConnection(route, state);
+        TraceRecorder trace = TraceRecorder.current();
+        if (trace == null) {
+            return request;
+        }
+        return new ConnectionRequest() {
+            @Override
+            public HttpClientConnection get(long timeout, TimeUnit timeUnit)
+                    throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                long start = System.nanoTime();
+                try {
+                    return request.get(timeout, timeUnit);
+                } finally {
+                    trace.span(TracePhase.POOL, start);
+                }
+            }
+
+            @Override
+            public boolean cancel() {
+                return request.cancel();
+            }
+        };
+    }
+
+    @Override
+    public void connect(HttpClientConnection managedConn, HttpRoute route, int connectTimeout, HttpContext context)
+            throws IOException {
+        TraceRecorder trace = TraceRecorder.current();
+        if (trace == null) {
+            super.connect(managedConn, route, connectTimeout, context);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            super.connect(managedConn, route, connectTimeout, context);
+        } finally {
+            trace.span(TracePhase.CONNECT, start);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.kuroha.metrics;
+
+import com.kuroha.routing.FailureKind;
+import com.kuroha.routing.RoutingListener;
+import com.kuroha.routing.ServiceInstance;
+import com.kuroha.routing.WeightedSelector;
+import org.springframework.stereotype.Component;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 服务调用统计 按服务名/接口名/实例划分
+ * 记录时只做ConcurrentHashMap查找及无锁计数,不分配内存,导出为Prometheus文本格式
+ * 接口名不含查询参数,每个服务的接口数有上限,实例下线后删除其统计,避免内存及指标数量无限增长
+ * @author kuroha
+ */
+@Component
+public class CallMetrics implements RoutingListener {
+
+    /**
+     * 导出直方图使用的桶上界,秒
+     */
+    private static final double[] LATENCY_BUCKETS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+    /**
+     * 每个服务最多单独统计的接口数,如接口路径中含id时,超过后的接口合并到OTHER_API
+     */
+    private static final int MAX_API_NUM = 256;
+    /**
+     * 超过接口数上限后新接口使用的接口名
+     */
+    static final String OTHER_API = "_other";
+
+    /**
+     * 服务名 -> 接口名 -> 实例uri -> 统计
+     */
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, ConcurrentHashMap<String, CallStats>>> statsMap = new ConcurrentHashMap<>();
+
+    /**
+     * 获取实例上某接口的统计,不存在时创建
+     * @param serviceName 服务名
+     * @param apiName 服务接口名,可带查询参数
+     * @param uri 实例地址
+     * @return 统计
+     */
+    public CallStats getStats(String serviceName, String apiName, String uri) {
+        ConcurrentHashMap<String, ConcurrentHashMap<String, CallStats>> apiMap = statsMap.get(serviceName);
+        if (apiMap == null) {
+            apiMap = statsMap.computeIfAbsent(serviceName, key -> new ConcurrentHashMap<>());
+        }
+        String path = apiPath(apiName);
+        ConcurrentHashMap<String, CallStats> instanceMap = apiMap.get(path);
+        if (instanceMap == null) {
+            // 并发创建时可能略超过上限
+            instanceMap = apiMap.computeIfAbsent(apiMap.size() < MAX_API_NUM ? path : OTHER_API, key -> new ConcurrentHashMap<>());
+        }
+        CallStats stats = instanceMap.get(uri);
+        if (stats == null) {
+            stats = instanceMap.computeIfAbsent(uri, CallStats::new);
+        }
+        return stats;
+    }
+
+    /**
+     * 删除已下线实例的统计
+     */
+    @Override
+    public void onUpdate(String serviceName, WeightedSelector selector) {
+        ConcurrentHashMap<String, ConcurrentHashMap<String, CallStats>> apiMap = statsMap.get(serviceName);
+        if (apiMap == null) {
+            return;
+        }
+        Set<String> uriSet = new HashSet<>(selector.size());
+        for (ServiceInstance instance : selector.getInstances()) {
+            uriSet.add(instance.getUri());
+        }
+        apiMap.values().forEach(instanceMap -> instanceMap.keySet().retainAll(uriSet));
+        // 同时删除没有实例的接口,不再占用接口数上限,与之并发的一次记录可能丢失
+        apiMap.values().removeIf(Map::isEmpty);
+    }
+
+    @Override
+    public void onRemove(String serviceName) {
+        statsMap.remove(serviceName);
+    }
+
+    /**
+     * 导出为Prometheus文本格式
+     * @return 文本
+     */
+    public String export() {
+        Map<String, CallStats> sorted = new TreeMap<>();
+        statsMap.forEach((serviceName, apiMap) -> apiMap.forEach((apiName, instanceMap) -> instanceMap.forEach((uri, stats) ->
+                sorted.put(labels(serviceName, apiName, stats.instance), stats))));
+        StringBuilder builder = new StringBuilder(256 + sorted.size() * 2048);
+
+        builder.append("# HELP cloud_call_requests_total 服务调用次数,按结果划分\n");
+        builder.append("# TYPE cloud_call_requests_total counter\n");
+        sorted.forEach((labels, stats) -> {
+            counter(builder, "cloud_call_requests_total", labels, "outcome", "success", stats.success.sum());
+            counter(builder, "cloud_call_requests_total", labels, "outcome", "error", stats.error.sum());
+            counter(builder, "cloud_call_requests_total", labels, "outcome", "timeout", stats.timeout.sum());
+        });
+        builder.append("# HELP cloud_call_retries_total 发往该实例的重试次数\n");
+        builder.append("# TYPE cloud_call_retries_total counter\n");
+        sorted.forEach((labels, stats) -> counter(builder, "cloud_call_retries_total", labels, null, null, stats.retry.sum()));
+        builder.append("# HELP cloud_call_failovers_total 该实例调用失败后切换到其他实例的次数\n");
+        builder.append("# TYPE cloud_call_failovers_total counter\n");
+        sorted.forEach((labels, stats) -> counter(builder, "cloud_call_failovers_total", labels, null, null, stats.failover.sum()));
+
+        builder.append("# HELP cloud_call_latency_seconds 单次调用耗时\n");
+        builder.append("# TYPE cloud_call_latency_seconds histogram\n");
+        sorted.forEach((labels, stats) -> histogram(builder, labels, stats.latency));
+        builder.append("# HELP cloud_call_latency_max_seconds 单次调用最大耗时\n");
+        builder.append("# TYPE cloud_call_latency_max_seconds gauge\n");
+        sorted.forEach((labels, stats) -> {
+            builder.append("cloud_call_latency_max_seconds{").append(labels).append("} ");
+            builder.append(stats.latency.getMax() / 1e6).append('\n');
+        });
+        return builder.toString();
+    }
+
+    private static void counter(StringBuilder builder, String name, String labels, String extraName, String extraValue, long value) {
+        builder.append(name).append('{').append(labels);
+        if (extraName != null) {
+            builder.append(',').append(extraName).append("=\"").append(extraValue).append('"');
+        }
+        builder.append("} ").append(value).append('\n');
+    }
+
+    private static void histogram(StringBuilder builder, String labels, LatencyHistogram latency) {
+        // 先取总数,保证+Inf桶不小于其他桶
+        long count = latency.getCount();
+        long sum = latency.getSum();
+        long cumulative = 0;
+        int index = 0;
+        for (double bound : LATENCY_BUCKETS) {
+            long boundMicros = (long) (bound * 1e6);
+            while (index < LatencyHistogram.BUCKET_COUNT && LatencyHistogram.bucketUpperBound(index) <= boundMicros) {
+                cumulative += latency.getBucketCount(index++);
+            }
+            builder.append("cloud_call_latency_seconds_bucket{").append(labels).append(",le=\"").append(bound).append("\"} ");
+            builder.append(Math.min(cumulative, count)).append('\n');
+        }
+        builder.append("cloud_call_latency_seconds_bucket{").append(labels).append(",le=\"+Inf\"} ").append(count).append('\n');
+        builder.append("cloud_call_latency_seconds_sum{").append(labels).append("} ").append(sum / 1e6).append('\n');
+        builder.append("cloud_call_latency_seconds_count{").append(labels).append("} ").append(count).append('\n');
+    }
+
+    /**
+     * @param apiName 服务接口名
+     * @return 去掉查询参数的接口路径
+     */
+    public static String apiPath(String apiName) {
+        int index = apiName.indexOf('?');
+        return index < 0 ? apiName : apiName.substring(0, index);
+    }
+
+    private static String labels(String serviceName, String apiName, String instance) {
+        return "service=\"" + escape(serviceName) + "\",api=\"" + escape(apiName) + "\",instance=\"" + escape(instance) + '"';
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * 单个实例上某接口的统计
+     */
+    public static class CallStats {
+        private final String instance;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder success = new LongAdder();
+        private final LongAdder error = new LongAdder();
+        private final LongAdder timeout = new LongAdder();
+        private final LongAdder retry = new LongAdder();
+        private final LongAdder failover = new LongAdder();
+
+        private CallStats(String uri) {
+            // http://ip:port/ -> ip:port
+            int start = uri.indexOf("://");
+            int end = uri.endsWith("/") ? uri.length() - 1 : uri.length();
+            this.instance = start < 0 ? uri : uri.substring(start + 3, end);
+        }
+
+        /**
+         * 记录成功调用
+         * @param start 开始时间,纳秒
+         */
+        public void onSuccess(long start) {
+            latency.recordNanos(System.nanoTime() - start);
+            success.increment();
+        }
+
+        /**
+         * 记录失败调用
+         * @param start 开始时间,纳秒
+         * @param kind 失败类型
+         */
+        public void onFailure(long start, FailureKind kind) {
+            latency.recordNanos(System.nanoTime() - start);
+            if (kind == FailureKind.TIMEOUT) {
+                timeout.increment();
+            } else {
+                error.increment();
+            }
+        }
+
+        /**
+         * 记录一次发往该实例的重试
+         */
+        public void onRetry() {
+            retry.increment();
+        }
+
+        /**
+         * 记录一次从该实例切换到其他实例
+         */
+        public void onFailover() {
+            failover.increment();
+        }
+    }
+}
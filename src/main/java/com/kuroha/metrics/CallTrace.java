@@ -0,0 +1,72 @@
+package com.kuroha.metrics;
+
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * 一次调用的追踪结果,时间均相对调用开始,纳秒
+ * @author kuroha
+ */
+@Getter
+public final class CallTrace {
+
+    private final String serviceName;
+    private final String apiName;
+    private final String method;
+    /**
+     * 调用开始时间,毫秒时间戳
+     */
+    private final long startTime;
+    private final long durationNanos;
+    private final boolean success;
+    /**
+     * 是否因超过慢调用阈值而保留,否则为采样保留
+     */
+    private final boolean slow;
+    private final int attempts;
+    /**
+     * 阶段数超过上限,后续阶段未记录
+     */
+    private final boolean truncated;
+    private final List<Span> spans;
+
+    CallTrace(String serviceName, String apiName, String method, long startTime, long durationNanos, boolean success,
+              boolean slow, int attempts, boolean truncated, List<Span> spans) {
+        this.serviceName = serviceName;
+        this.apiName = apiName;
+        this.method = method;
+        this.startTime = startTime;
+        this.durationNanos = durationNanos;
+        this.success = success;
+        this.slow = slow;
+        this.attempts = attempts;
+        this.truncated = truncated;
+        this.spans = spans;
+    }
+
+    /**
+     * 阶段
+     */
+    @Getter
+    public static final class Span {
+        private final TracePhase phase;
+        /**
+         * 第几次尝试,从1开始,0表示选择首个实例之前
+         */
+        private final int attempt;
+        private final String uri;
+        private final String detail;
+        private final long offsetNanos;
+        private final long durationNanos;
+
+        Span(TracePhase phase, int attempt, String uri, String detail, long offsetNanos, long durationNanos) {
+            this.phase = phase;
+            this.attempt = attempt;
+            this.uri = uri;
+            this.detail = detail;
+            this.offsetNanos = offsetNanos;
+            this.durationNanos = durationNanos;
+        }
+    }
+}
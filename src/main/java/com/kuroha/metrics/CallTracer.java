@@ -0,0 +1,100 @@
+package com.kuroha.metrics;
+
+import com.alibaba.fastjson.JSON;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 同步调用的分阶段追踪
+ * 开启后每次调用都记录各阶段耗时(只写入线程复用的记录器),按采样率或超过慢调用阈值时
+ * 保留到固定大小的环形缓冲区,缓冲区满后覆盖最早的记录
+ * @author kuroha
+ */
+@Component
+public class CallTracer {
+
+    private final double sampleRate;
+    private final long slowThreshold;
+    private final boolean enabled;
+    private final AtomicReferenceArray<CallTrace> ring;
+    private final AtomicLong cursor = new AtomicLong();
+    private final ThreadLocal<TraceRecorder> recorders = ThreadLocal.withInitial(TraceRecorder::new);
+
+    /**
+     * @param sampleRate 采样率,0~1,0表示不采样
+     * @param slowThreshold 慢调用阈值,毫秒,超过时总是保留,0表示不按耗时保留
+     * @param bufferSize 最多保留的调用数
+     */
+    public CallTracer(@Value("${cloud.trace.sample-rate:0}") double sampleRate,
+                      @Value("${cloud.trace.slow-threshold:0}") long slowThreshold,
+                      @Value("${cloud.trace.buffer-size:256}") int bufferSize) {
+        this.sampleRate = sampleRate;
+        this.slowThreshold = slowThreshold > 0 ? TimeUnit.MILLISECONDS.toNanos(slowThreshold) : Long.MAX_VALUE;
+        this.enabled = bufferSize > 0 && (sampleRate > 0 || slowThreshold > 0);
+        this.ring = new AtomicReferenceArray<>(Math.max(bufferSize, 1));
+    }
+
+    /**
+     * 开始记录一次调用,嵌套调用(如流式处理中再次调用)不记录
+     * @param serviceName 服务名
+     * @param apiName 服务接口名
+     * @param method 请求方法
+     * @return 记录器,未开启时返回不记录的记录器
+     */
+    public TraceRecorder start(String serviceName, String apiName, String method) {
+        if (!enabled) {
+            return TraceRecorder.NOOP;
+        }
+        TraceRecorder recorder = recorders.get();
+        if (recorder.isActive()) {
+            return TraceRecorder.NOOP;
+        }
+        recorder.begin(serviceName, apiName, method, sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate);
+        return recorder;
+    }
+
+    /**
+     * 结束记录,采样或超过慢调用阈值时保留
+     * @param recorder start返回的记录器
+     */
+    public void finish(TraceRecorder recorder) {
+        if (!recorder.isActive()) {
+            return;
+        }
+        long duration = recorder.end();
+        boolean slow = duration >= slowThreshold;
+        if (slow || recorder.isSampled()) {
+            ring.set((int) (cursor.getAndIncrement() % ring.length()), recorder.toTrace(duration, slow));
+        }
+    }
+
+    /**
+     * @return 保留的调用,最新的在前
+     */
+    public List<CallTrace> getTraces() {
+        long end = cursor.get();
+        int count = (int) Math.min(end, ring.length());
+        List<CallTrace> traces = new ArrayList<>(count);
+        for (long i = end - 1; i >= end - count; i--) {
+            CallTrace trace = ring.get((int) (i % ring.length()));
+            if (trace != null) {
+                traces.add(trace);
+            }
+        }
+        return traces;
+    }
+
+    /**
+     * @return 保留的调用,JSON格式
+     */
+    public String export() {
+        return JSON.toJSONString(this.getTraces());
+    }
+}
@@ -0,0 +1,66 @@
+package com.kuroha.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 滚动窗口响应时间直方图
+ * 两个直方图交替使用,百分位取上一个完整窗口的数据,使其反映近期情况
+ * @author kuroha
+ */
+public class RollingLatencyHistogram {
+
+    private final long windowNanos;
+    private final LatencyHistogram[] histograms = {new LatencyHistogram(), new LatencyHistogram()};
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+    private volatile int current;
+
+    /**
+     * @param windowMillis 窗口时长,毫秒
+     */
+    public RollingLatencyHistogram(long windowMillis) {
+        this.windowNanos = windowMillis * 1_000_000;
+    }
+
+    /**
+     * 记录一次耗时
+     * @param nanos 耗时,纳秒
+     */
+    public void recordNanos(long nanos) {
+        roll();
+        histograms[current].recordNanos(nanos);
+    }
+
+    /**
+     * 计算近期百分位,上一窗口样本不足时使用当前窗口
+     * @param percentile 百分位
+     * @param minCount 最少样本数,不足时返回0
+     * @return 耗时,微秒
+     */
+    public long getPercentile(double percentile, long minCount) {
+        roll();
+        LatencyHistogram previous = histograms[current ^ 1];
+        if (previous.getCount() >= minCount) {
+            return previous.getPercentile(percentile);
+        }
+        LatencyHistogram active = histograms[current];
+        if (active.getCount() >= minCount) {
+            return active.getPercentile(percentile);
+        }
+        return 0;
+    }
+
+    private void roll() {
+        long start = windowStart.get();
+        long now = System.nanoTime();
+        if (now - start < windowNanos || !windowStart.compareAndSet(start, now)) {
+            return;
+        }
+        int next = current ^ 1;
+        if (now - start >= windowNanos * 2) {
+            // 超过两个窗口没有数据,上一窗口也已过期
+            histograms[current].reset();
+        }
+        histograms[next].reset();
+        current = next;
+    }
+}
@@ -0,0 +1,44 @@
+package com.kuroha.metrics;
+
+/**
+ * 调用链路的阶段
+ * @author kuroha
+ */
+public enum TracePhase {
+    /**
+     * 选择实例,包括首次调用时解析服务及查询nacos
+     */
+    ROUTE,
+    /**
+     * 等待服务并发许可
+     */
+    LIMIT,
+    /**
+     * 从连接池获取连接
+     */
+    POOL,
+    /**
+     * 建立链接,复用连接时没有该阶段
+     */
+    CONNECT,
+    /**
+     * 发送请求并等待响应头
+     */
+    RESPONSE,
+    /**
+     * 读取并解码响应体
+     */
+    READ,
+    /**
+     * 本次尝试失败,从上一阶段结束到抛出异常
+     */
+    FAILURE,
+    /**
+     * 重试前的退避等待
+     */
+    BACKOFF,
+    /**
+     * 开启对冲的同步get等待非阻塞调用完成,其中各次尝试不单独记录
+     */
+    HEDGE
+}
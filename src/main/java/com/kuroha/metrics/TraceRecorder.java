@@ -0,0 +1,166 @@
+package com.kuroha.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 单次调用的阶段记录
+ * 每个线程复用一个记录器,记录时只写入预先分配的数组,调用结束且需要保留时才复制为CallTrace
+ * 未开启追踪时使用NOOP,所有方法直接返回
+ * @author kuroha
+ */
+public final class TraceRecorder {
+
+    /**
+     * 单次调用最多记录的阶段数,超过后不再记录
+     */
+    static final int MAX_SPANS = 64;
+    static final TraceRecorder NOOP = new TraceRecorder();
+
+    /**
+     * 当前线程进行中的记录,供连接池等无法传参的位置使用
+     */
+    private static final ThreadLocal<TraceRecorder> ACTIVE = new ThreadLocal<>();
+
+    private final TracePhase[] phases = new TracePhase[MAX_SPANS];
+    private final int[] attempts = new int[MAX_SPANS];
+    private final String[] uris = new String[MAX_SPANS];
+    private final String[] details = new String[MAX_SPANS];
+    private final long[] starts = new long[MAX_SPANS];
+    private final long[] ends = new long[MAX_SPANS];
+    private int size;
+    private boolean truncated;
+    private boolean active;
+    private boolean sampled;
+    private String serviceName;
+    private String apiName;
+    private String method;
+    private long startTime;
+    private long startNanos;
+    private long lastEnd;
+    private int attempt;
+    private String uri;
+    private boolean success;
+
+    TraceRecorder() {
+    }
+
+    /**
+     * @return 当前线程进行中的记录,没有时返回null
+     */
+    public static TraceRecorder current() {
+        return ACTIVE.get();
+    }
+
+    void begin(String serviceName, String apiName, String method, boolean sampled) {
+        this.serviceName = serviceName;
+        this.apiName = apiName;
+        this.method = method;
+        this.sampled = sampled;
+        this.size = 0;
+        this.truncated = false;
+        this.attempt = 0;
+        this.uri = null;
+        this.success = false;
+        this.startTime = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+        this.lastEnd = startNanos;
+        this.active = true;
+        ACTIVE.set(this);
+    }
+
+    /**
+     * 结束记录
+     * @return 调用耗时,纳秒
+     */
+    long end() {
+        active = false;
+        ACTIVE.remove();
+        return System.nanoTime() - startNanos;
+    }
+
+    boolean isActive() {
+        return active;
+    }
+
+    boolean isSampled() {
+        return sampled;
+    }
+
+    /**
+     * @return 当前时间,纳秒,未记录时返回0
+     */
+    public long now() {
+        return active ? System.nanoTime() : 0;
+    }
+
+    /**
+     * 开始一次尝试,之后的阶段归属于该尝试
+     * @param uri 实例uri
+     */
+    public void attempt(String uri) {
+        if (active) {
+            this.attempt++;
+            this.uri = uri;
+        }
+    }
+
+    /**
+     * 记录从start到当前的阶段
+     * @param phase 阶段
+     * @param start 开始时间,纳秒
+     */
+    public void span(TracePhase phase, long start) {
+        this.span(phase, start, null);
+    }
+
+    /**
+     * 记录从start到当前的阶段
+     * @param phase 阶段
+     * @param start 开始时间,纳秒
+     * @param detail 附加信息,如失败类型
+     */
+    public void span(TracePhase phase, long start, String detail) {
+        if (!active) {
+            return;
+        }
+        long end = System.nanoTime();
+        lastEnd = end;
+        if (size == MAX_SPANS) {
+            truncated = true;
+            return;
+        }
+        phases[size] = phase;
+        attempts[size] = attempt;
+        uris[size] = uri;
+        details[size] = detail;
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+    }
+
+    /**
+     * @return 上一阶段的结束时间,纳秒
+     */
+    public long getLastEnd() {
+        return lastEnd;
+    }
+
+    /**
+     * 调用成功
+     */
+    public void succeed() {
+        success = true;
+    }
+
+    CallTrace toTrace(long duration, boolean slow) {
+        List<CallTrace.Span> spans = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            spans.add(new CallTrace.Span(phases[i], attempts[i], uris[i], details[i],
+                    starts[i] - startNanos, ends[i] - starts[i]));
+            uris[i] = null;
+            details[i] = null;
+        }
+        return new CallTrace(serviceName, apiName, method, startTime, duration, success, slow, attempt, truncated, spans);
+    }
+}
@@ -0,0 +1,16 @@
+package com.kuroha.policy;
+
+import org.springframework.web.client.RestClientException;
+
+/**
+ * 服务的隔离舱已满,调用未执行
+ * @author kuroha
+ */
+public class BulkheadFullException extends RestClientException {
+
+    private static final long serialVersionUID = 1L;
+
+    public BulkheadFullException(String serviceName, String bulkhead) {
+        super(serviceName + "隔离舱已满(" + bulkhead + "),调用被拒绝");
+    }
+}
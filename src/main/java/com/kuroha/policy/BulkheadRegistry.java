@@ -0,0 +1,275 @@
+package com.kuroha.policy;
+
+import com.kuroha.utility.StringUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 按服务隔离同步调用,一个服务变慢时最多占用其隔离舱内的线程,不影响其他服务的调用
+ * 隔离方式:
+ * SEMAPHORE:最大并发 在调用线程执行,并发已满时直接拒绝
+ * THREAD_POOL:线程数:队列长度 在服务独立的线程池执行,调用线程等待结果,线程及队列已满时直接拒绝
+ * @author kuroha
+ */
+@Component
+public class BulkheadRegistry {
+
+    /**
+     * 线程池空闲线程保留时间,秒
+     */
+    private static final int POOL_KEEP_ALIVE = 60;
+
+    private final Spec defaultSpec;
+    private final Map<String, Spec> serviceSpecMap = new HashMap<>();
+    private final ConcurrentHashMap<String, Bulkhead> bulkheadMap = new ConcurrentHashMap<>();
+
+    /**
+     * @param defaultSpec 未单独配置的服务使用的隔离方式,为空时不隔离
+     * @param serviceSpecs 各服务的隔离方式,格式为 服务名=隔离方式
+     */
+    public BulkheadRegistry(@Value("${cloud.bulkhead.default:}") String defaultSpec,
+                            @Value("${cloud.bulkhead.services:}") String[] serviceSpecs) {
+        this.defaultSpec = StringUtil.isBlank(defaultSpec) ? null : Spec.parse(defaultSpec.trim());
+        for (String serviceSpec : serviceSpecs) {
+            if (StringUtil.isBlank(serviceSpec)) {
+                continue;
+            }
+            int index = serviceSpec.indexOf('=');
+            if (index < 0) {
+                throw new IllegalArgumentException("隔离舱配置格式应为 服务名=隔离方式:" + serviceSpec);
+            }
+            serviceSpecMap.put(serviceSpec.substring(0, index).trim(), Spec.parse(serviceSpec.substring(index + 1).trim()));
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        bulkheadMap.values().forEach(Bulkhead::close);
+    }
+
+    /**
+     * 在服务的隔离舱内执行调用,服务未配置隔离时直接执行
+     * @param serviceName 服务名
+     * @param call 调用
+     * @param failValue 等待结果时被中断的返回值
+     * @return 调用结果
+     * @throws BulkheadFullException 隔离舱已满
+     */
+    public <T> T execute(String serviceName, Supplier<T> call, T failValue) {
+        Bulkhead bulkhead = this.getBulkhead(serviceName);
+        return bulkhead == null ? call.get() : bulkhead.execute(serviceName, call, failValue);
+    }
+
+    /**
+     * 导出为Prometheus文本格式
+     * @return 文本
+     */
+    public String export() {
+        Map<String, Bulkhead> sorted = new TreeMap<>(bulkheadMap);
+        StringBuilder builder = new StringBuilder(256 + sorted.size() * 512);
+        builder.append("# HELP cloud_bulkhead_capacity 隔离舱最大并发数\n");
+        builder.append("# TYPE cloud_bulkhead_capacity gauge\n");
+        sorted.forEach((serviceName, bulkhead) -> line(builder, "cloud_bulkhead_capacity", serviceName, bulkhead, bulkhead.spec.concurrency));
+        builder.append("# HELP cloud_bulkhead_active 隔离舱内执行中的调用数\n");
+        builder.append("# TYPE cloud_bulkhead_active gauge\n");
+        sorted.forEach((serviceName, bulkhead) -> line(builder, "cloud_bulkhead_active", serviceName, bulkhead, bulkhead.getActive()));
+        builder.append("# HELP cloud_bulkhead_queued 隔离舱内排队的调用数,信号量隔离没有队列\n");
+        builder.append("# TYPE cloud_bulkhead_queued gauge\n");
+        sorted.forEach((serviceName, bulkhead) -> line(builder, "cloud_bulkhead_queued", serviceName, bulkhead, bulkhead.getQueued()));
+        builder.append("# HELP cloud_bulkhead_calls_total 进入隔离舱的调用数,包括被拒绝的\n");
+        builder.append("# TYPE cloud_bulkhead_calls_total counter\n");
+        sorted.forEach((serviceName, bulkhead) -> line(builder, "cloud_bulkhead_calls_total", serviceName, bulkhead, bulkhead.calls.sum()));
+        builder.append("# HELP cloud_bulkhead_rejected_total 隔离舱已满被拒绝的调用数\n");
+        builder.append("# TYPE cloud_bulkhead_rejected_total counter\n");
+        sorted.forEach((serviceName, bulkhead) -> line(builder, "cloud_bulkhead_rejected_total", serviceName, bulkhead, bulkhead.rejected.sum()));
+        return builder.toString();
+    }
+
+    private static void line(StringBuilder builder, String name, String serviceName, Bulkhead bulkhead, long value) {
+        builder.append(name).append("{service=\"").append(serviceName).append("\",type=\"")
+                .append(bulkhead.spec.type).append("\"} ").append(value).append('\n');
+    }
+
+    private Bulkhead getBulkhead(String serviceName) {
+        Bulkhead bulkhead = bulkheadMap.get(serviceName);
+        if (bulkhead != null) {
+            return bulkhead;
+        }
+        Spec spec = serviceSpecMap.getOrDefault(serviceName, defaultSpec);
+        if (spec == null) {
+            return null;
+        }
+        return bulkheadMap.computeIfAbsent(serviceName, key -> spec.type == Type.SEMAPHORE
+                ? new SemaphoreBulkhead(spec) : new ThreadPoolBulkhead(key, spec));
+    }
+
+    private enum Type {
+        SEMAPHORE, THREAD_POOL
+    }
+
+    /**
+     * 隔离方式
+     */
+    private static final class Spec {
+        private final Type type;
+        private final int concurrency;
+        private final int queueSize;
+
+        private Spec(Type type, int concurrency, int queueSize) {
+            if (concurrency <= 0 || queueSize < 0) {
+                throw new IllegalArgumentException("隔离舱并发数需大于0,队列长度不能小于0");
+            }
+            this.type = type;
+            this.concurrency = concurrency;
+            this.queueSize = queueSize;
+        }
+
+        /**
+         * @param spec SEMAPHORE:最大并发 或 THREAD_POOL:线程数:队列长度
+         */
+        private static Spec parse(String spec) {
+            String[] parts = spec.split(":");
+            Type type = Type.valueOf(parts[0].trim().toUpperCase());
+            if (type == Type.SEMAPHORE && parts.length == 2) {
+                return new Spec(type, Integer.parseInt(parts[1].trim()), 0);
+            }
+            if (type == Type.THREAD_POOL && parts.length == 3) {
+                return new Spec(type, Integer.parseInt(parts[1].trim()), Integer.parseInt(parts[2].trim()));
+            }
+            throw new IllegalArgumentException("隔离方式格式应为 SEMAPHORE:最大并发 或 THREAD_POOL:线程数:队列长度:" + spec);
+        }
+
+        @Override
+        public String toString() {
+            return type == Type.SEMAPHORE ? type + ":" + concurrency : type + ":" + concurrency + ":" + queueSize;
+        }
+    }
+
+    private abstract static class Bulkhead {
+        final Spec spec;
+        final LongAdder calls = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+
+        Bulkhead(Spec spec) {
+            this.spec = spec;
+        }
+
+        abstract <T> T execute(String serviceName, Supplier<T> call, T failValue);
+
+        abstract int getActive();
+
+        abstract int getQueued();
+
+        void close() {
+        }
+
+        BulkheadFullException reject(String serviceName) {
+            rejected.increment();
+            return new BulkheadFullException(serviceName, spec.toString());
+        }
+    }
+
+    private static final class SemaphoreBulkhead extends Bulkhead {
+        private final AtomicInteger active = new AtomicInteger();
+
+        private SemaphoreBulkhead(Spec spec) {
+            super(spec);
+        }
+
+        @Override
+        <T> T execute(String serviceName, Supplier<T> call, T failValue) {
+            calls.increment();
+            while (true) {
+                int current = active.get();
+                if (current >= spec.concurrency) {
+                    throw this.reject(serviceName);
+                }
+                if (active.compareAndSet(current, current + 1)) {
+                    break;
+                }
+            }
+            try {
+                return call.get();
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+
+        @Override
+        int getActive() {
+            return active.get();
+        }
+
+        @Override
+        int getQueued() {
+            return 0;
+        }
+    }
+
+    private static final class ThreadPoolBulkhead extends Bulkhead {
+        private final ThreadPoolExecutor executor;
+
+        private ThreadPoolBulkhead(String serviceName, Spec spec) {
+            super(spec);
+            AtomicInteger threadNum = new AtomicInteger();
+            BlockingQueue<Runnable> queue = spec.queueSize == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(spec.queueSize);
+            this.executor = new ThreadPoolExecutor(spec.concurrency, spec.concurrency, POOL_KEEP_ALIVE, TimeUnit.SECONDS, queue, r -> {
+                Thread thread = new Thread(r, "cloud-bulkhead-" + serviceName + "-" + threadNum.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.executor.allowCoreThreadTimeOut(true);
+        }
+
+        @Override
+        <T> T execute(String serviceName, Supplier<T> call, T failValue) {
+            calls.increment();
+            Future<T> future;
+            try {
+                future = executor.submit(call::get);
+            } catch (RejectedExecutionException e) {
+                throw this.reject(serviceName);
+            }
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                return failValue;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+
+        @Override
+        int getActive() {
+            return executor.getActiveCount();
+        }
+
+        @Override
+        int getQueued() {
+            return executor.getQueue().size();
+        }
+
+        @Override
+        void close() {
+            executor.shutdownNow();
+        }
+    }
+}
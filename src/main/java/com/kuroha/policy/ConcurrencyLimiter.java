@@ -0,0 +1,275 @@
+package com.kuroha.policy;
+
+import com.kuroha.routing.FailureKind;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按服务自适应限制未完成请求数,同步与异步调用共用
+ * 采用梯度算法:以长期平均响应时间为基准,近期响应时间升高(下游开始排队)时按比例缩小上限,
+ * 响应时间平稳时每次增加约sqrt(上限),请求数远低于上限时不再增加
+ * 超过上限的同步请求最多排队等待queueWait毫秒,异步请求直接拒绝
+ * @author kuroha
+ */
+@Component
+public class ConcurrencyLimiter {
+
+    /**
+     * 近期响应时间超过基准的该倍数以内视为正常
+     */
+    private static final double TOLERANCE = 1.5;
+    /**
+     * 长期响应时间的平滑系数,约为最近600次请求的平均
+     */
+    private static final double LONG_RTT_FACTOR = 2.0 / 601;
+    /**
+     * 近期响应时间的平滑系数,约为最近10次请求的平均
+     */
+    private static final double SHORT_RTT_FACTOR = 2.0 / 11;
+    /**
+     * 上限调整的平滑系数
+     */
+    private static final double SMOOTHING = 0.2;
+
+    private final boolean enabled;
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int queueSize;
+    private final long queueWait;
+    private final ConcurrentHashMap<String, ServiceLimit> limitMap = new ConcurrentHashMap<>();
+
+    /**
+     * @param enabled 是否开启
+     * @param initialLimit 初始上限
+     * @param minLimit 最小上限
+     * @param maxLimit 最大上限
+     * @param queueSize 达到上限后最多排队等待的同步请求数
+     * @param queueWait 排队等待的最长时间,毫秒,0表示不等待
+     */
+    public ConcurrencyLimiter(@Value("${cloud.limit.enabled:false}") boolean enabled,
+                              @Value("${cloud.limit.initial:20}") int initialLimit,
+                              @Value("${cloud.limit.min:4}") int minLimit,
+                              @Value("${cloud.limit.max:200}") int maxLimit,
+                              @Value("${cloud.limit.queue-size:50}") int queueSize,
+                              @Value("${cloud.limit.queue-wait:50}") long queueWait) {
+        this.enabled = enabled;
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.queueSize = queueSize;
+        this.queueWait = queueWait;
+    }
+
+    /**
+     * 获取请求许可,达到上限时排队等待
+     * @param serviceName 服务名
+     * @throws LimitExceededException 排队已满或等待超时
+     */
+    public void acquire(String serviceName) {
+        if (!enabled) {
+            return;
+        }
+        ServiceLimit limit = this.getLimit(serviceName);
+        if (!limit.tryAcquire() && !limit.await(queueSize, queueWait)) {
+            limit.rejected.increment();
+            throw new LimitExceededException(serviceName, limit.limit);
+        }
+    }
+
+    /**
+     * 获取请求许可,达到上限时不等待
+     * @param serviceName 服务名
+     * @throws LimitExceededException 已达到上限
+     */
+    public void tryAcquire(String serviceName) {
+        if (!enabled) {
+            return;
+        }
+        ServiceLimit limit = this.getLimit(serviceName);
+        if (!limit.tryAcquire()) {
+            limit.rejected.increment();
+            throw new LimitExceededException(serviceName, limit.limit);
+        }
+    }
+
+    /**
+     * 请求成功,按响应时间调整上限
+     * @param serviceName 服务名
+     * @param start 开始时间,纳秒
+     */
+    public void onSuccess(String serviceName, long start) {
+        if (enabled) {
+            this.getLimit(serviceName).release(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 请求失败,超时及5xx按响应时间调整上限,链接失败等未到达下游的请求不参与调整
+     * @param serviceName 服务名
+     * @param start 开始时间,纳秒
+     * @param kind 失败类型
+     */
+    public void onFailure(String serviceName, long start, FailureKind kind) {
+        if (enabled) {
+            this.getLimit(serviceName).release(kind == FailureKind.TIMEOUT || kind == FailureKind.SERVER_ERROR
+                    ? System.nanoTime() - start : -1);
+        }
+    }
+
+    /**
+     * 请求被取消或不计入响应时间(如流式调用),只释放许可
+     * @param serviceName 服务名
+     */
+    public void onCancel(String serviceName) {
+        if (enabled) {
+            this.getLimit(serviceName).release(-1);
+        }
+    }
+
+    /**
+     * 导出为Prometheus文本格式
+     * @return 文本
+     */
+    public String export() {
+        Map<String, ServiceLimit> sorted = new TreeMap<>(limitMap);
+        StringBuilder builder = new StringBuilder(256 + sorted.size() * 512);
+        builder.append("# HELP cloud_limit_concurrency 服务当前允许的未完成请求数\n");
+        builder.append("# TYPE cloud_limit_concurrency gauge\n");
+        sorted.forEach((serviceName, limit) -> line(builder, "cloud_limit_concurrency", serviceName, limit.limit));
+        builder.append("# HELP cloud_limit_inflight 服务当前未完成请求数\n");
+        builder.append("# TYPE cloud_limit_inflight gauge\n");
+        sorted.forEach((serviceName, limit) -> line(builder, "cloud_limit_inflight", serviceName, limit.inflight.get()));
+        builder.append("# HELP cloud_limit_queued 服务当前排队等待的请求数\n");
+        builder.append("# TYPE cloud_limit_queued gauge\n");
+        sorted.forEach((serviceName, limit) -> line(builder, "cloud_limit_queued", serviceName, limit.waiting.get()));
+        builder.append("# HELP cloud_limit_rejected_total 因达到并发上限被拒绝的请求数\n");
+        builder.append("# TYPE cloud_limit_rejected_total counter\n");
+        sorted.forEach((serviceName, limit) -> line(builder, "cloud_limit_rejected_total", serviceName, limit.rejected.sum()));
+        builder.append("# HELP cloud_limit_rtt_seconds 调整上限使用的长期及近期平均响应时间\n");
+        builder.append("# TYPE cloud_limit_rtt_seconds gauge\n");
+        sorted.forEach((serviceName, limit) -> {
+            builder.append("cloud_limit_rtt_seconds{service=\"").append(serviceName).append("\",window=\"long\"} ")
+                    .append(limit.longRtt / 1e9).append('\n');
+            builder.append("cloud_limit_rtt_seconds{service=\"").append(serviceName).append("\",window=\"short\"} ")
+                    .append(limit.shortRtt / 1e9).append('\n');
+        });
+        return builder.toString();
+    }
+
+    private static void line(StringBuilder builder, String name, String serviceName, long value) {
+        builder.append(name).append("{service=\"").append(serviceName).append("\"} ").append(value).append('\n');
+    }
+
+    private ServiceLimit getLimit(String serviceName) {
+        ServiceLimit limit = limitMap.get(serviceName);
+        if (limit == null) {
+            limit = limitMap.computeIfAbsent(serviceName, key -> new ServiceLimit());
+        }
+        return limit;
+    }
+
+    /**
+     * 单个服务的并发上限
+     */
+    private class ServiceLimit {
+        private final AtomicInteger inflight = new AtomicInteger();
+        private final AtomicInteger waiting = new AtomicInteger();
+        private final LongAdder rejected = new LongAdder();
+        /**
+         * 排队等待许可使用的锁
+         */
+        private final Object queue = new Object();
+        private volatile int limit = initialLimit;
+        private double estimatedLimit = initialLimit;
+        private volatile double longRtt;
+        private volatile double shortRtt;
+
+        private boolean tryAcquire() {
+            while (true) {
+                int current = inflight.get();
+                if (current >= limit) {
+                    return false;
+                }
+                if (inflight.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * 排队等待许可
+         */
+        private boolean await(int queueSize, long queueWait) {
+            if (queueWait <= 0) {
+                return false;
+            }
+            if (waiting.incrementAndGet() > queueSize) {
+                waiting.decrementAndGet();
+                return false;
+            }
+            try {
+                long deadline = System.currentTimeMillis() + queueWait;
+                synchronized (queue) {
+                    while (!this.tryAcquire()) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            return false;
+                        }
+                        queue.wait(remaining);
+                    }
+                    return true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                waiting.decrementAndGet();
+            }
+        }
+
+        /**
+         * 释放许可
+         * @param rtt 响应时间,纳秒,小于0时不调整上限
+         */
+        private void release(long rtt) {
+            int current = inflight.getAndDecrement();
+            if (rtt >= 0) {
+                this.update(rtt, current);
+            }
+            if (waiting.get() > 0) {
+                synchronized (queue) {
+                    queue.notifyAll();
+                }
+            }
+        }
+
+        private synchronized void update(long rtt, int inflightCount) {
+            if (longRtt == 0) {
+                longRtt = rtt;
+                shortRtt = rtt;
+                return;
+            }
+            shortRtt = shortRtt + (rtt - shortRtt) * SHORT_RTT_FACTOR;
+            longRtt = longRtt + (rtt - longRtt) * LONG_RTT_FACTOR;
+            // 下游恢复后基准回落较慢,近期明显更快时加速回落
+            if (longRtt > shortRtt * 2) {
+                longRtt *= 0.95;
+            }
+            double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+            double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+            // 请求数远低于上限时说明上限不是瓶颈,只允许缩小
+            if (inflightCount < estimatedLimit / 2 && newLimit > estimatedLimit) {
+                return;
+            }
+            estimatedLimit = Math.max(minLimit, Math.min(maxLimit, estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING));
+            limit = (int) estimatedLimit;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.kuroha.policy;
+
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * 批量调用策略
+ * 包括并发数、整体截止时间,以及达到指定成功数后提前结束
+ * @author kuroha
+ */
+@Getter
+@Builder(toBuilder = true)
+public class FanOutPolicy {
+
+    public static final FanOutPolicy DEFAULT = FanOutPolicy.builder().build();
+
+    /**
+     * 同时进行的最大调用数
+     */
+    @Builder.Default
+    private final int concurrency = 16;
+    /**
+     * 整体超时时间,毫秒,超时后返回已完成的结果并取消其余调用
+     */
+    @Builder.Default
+    private final long timeout = 10000;
+    /**
+     * 成功数达到该值后取消其余调用,0表示等待全部完成
+     */
+    @Builder.Default
+    private final int minSuccesses = 0;
+}
@@ -0,0 +1,16 @@
+package com.kuroha.policy;
+
+import org.springframework.web.client.RestClientException;
+
+/**
+ * 服务的未完成请求数已达到并发上限,请求未发送
+ * @author kuroha
+ */
+public class LimitExceededException extends RestClientException {
+
+    private static final long serialVersionUID = 1L;
+
+    public LimitExceededException(String serviceName, int limit) {
+        super(serviceName + "未完成请求数已达到并发上限" + limit + ",请求被拒绝");
+    }
+}
@@ -0,0 +1,22 @@
+package com.kuroha.policy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * 进程级重试预算,同步与异步调用共用
+ * 重试次数长期不超过成功请求数的cloud.retry.budget-percent,避免故障期间重试放大下游压力
+ * @author kuroha
+ */
+@Component
+public class RetryBudget extends TokenBudget {
+
+    /**
+     * 最多累积的重试令牌数,初始即为满额,保证启动时也能少量重试
+     */
+    private static final int MAX_TOKENS = 100;
+
+    public RetryBudget(@Value("${cloud.retry.budget-percent:20}") double percent) {
+        super(percent, MAX_TOKENS, MAX_TOKENS);
+    }
+}
@@ -0,0 +1,141 @@
+package com.kuroha.policy;
+
+import com.kuroha.http.StreamCallbackException;
+import com.kuroha.http.StreamConsumedException;
+import lombok.Builder;
+import lombok.Getter;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.springframework.http.HttpMethod;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 单次调用的重试策略
+ * 包括整体截止时间、最大尝试次数、带抖动的退避时间,允许重试的请求方法和状态码,
+ * 以及只调用元数据匹配的实例(首次调用及重试均只在匹配的实例中选择)、按路由键一致性哈希选择实例
+ * @author kuroha
+ */
+@Getter
+@Builder(toBuilder = true)
+public class RetryPolicy {
+
+    public static final RetryPolicy DEFAULT = RetryPolicy.builder().build();
+
+    /**
+     * 整体超时时间,毫秒,每次尝试的读取超时不超过剩余时间
+     */
+    @Builder.Default
+    private final long timeout = 60000;
+    /**
+     * 最大尝试次数,包括第一次
+     */
+    @Builder.Default
+    private final int maxAttempts = 3;
+    /**
+     * 退避基础时间,毫秒,第n次重试前等待[0, backoff * 2^(n-1))内的随机时间
+     */
+    @Builder.Default
+    private final long backoff = 50;
+    /**
+     * 最大退避时间,毫秒
+     */
+    @Builder.Default
+    private final long maxBackoff = 1000;
+    /**
+     * 允许重试的请求方法,默认只重试幂等方法;链接未建立的请求任何方法都可重试
+     */
+    @Builder.Default
+    private final Set<HttpMethod> retryMethods = Collections.unmodifiableSet(
+            EnumSet.of(HttpMethod.GET, HttpMethod.HEAD, HttpMethod.OPTIONS, HttpMethod.PUT, HttpMethod.DELETE));
+    /**
+     * 允许重试的响应状态码
+     */
+    @Builder.Default
+    private final Set<Integer> retryStatuses = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(500, 502, 503, 504)));
+    /**
+     * 实例nacos元数据需包含的键值,如version=2、canary=true,为空时不过滤
+     */
+    @Builder.Default
+    private final Map<String, String> metadata = Collections.emptyMap();
+    /**
+     * 路由键,如用户id,不为空时按一致性哈希选择实例,相同键的调用优先发往同一实例,失败时切换到哈希环上的下一个实例
+     */
+    private final String routingKey;
+
+    /**
+     * 判断失败的请求能否重试
+     * @param method 请求方法
+     * @param throwable 调用异常
+     * @return 能重试返回true
+     */
+    public boolean isRetryable(HttpMethod method, Throwable throwable) {
+        if (throwable instanceof StreamConsumedException || throwable instanceof StreamCallbackException) {
+            return false;
+        }
+        if (isNotSent(throwable)) {
+            return true;
+        }
+        if (!retryMethods.contains(method)) {
+            return false;
+        }
+        if (throwable instanceof HttpStatusCodeException) {
+            return retryStatuses.contains(((HttpStatusCodeException) throwable).getRawStatusCode());
+        }
+        return throwable instanceof ResourceAccessException;
+    }
+
+    /**
+     * 计算失败后重试前的等待时间
+     * @param method 请求方法
+     * @param throwable 调用异常
+     * @param attempt 已尝试次数
+     * @param deadline 截止时间,毫秒时间戳
+     * @return 等待时间,毫秒,不可重试时返回-1
+     */
+    public long retryDelay(HttpMethod method, Throwable throwable, int attempt, long deadline) {
+        if (attempt >= maxAttempts || !isRetryable(method, throwable)) {
+            return -1;
+        }
+        long delay = nextBackoff(attempt);
+        return System.currentTimeMillis() + delay < deadline ? delay : -1;
+    }
+
+    /**
+     * 计算第attempt次重试前的退避时间
+     * @param attempt 已失败次数
+     * @return 退避时间,毫秒
+     */
+    public long nextBackoff(int attempt) {
+        if (backoff <= 0) {
+            return 0;
+        }
+        long bound = Math.min(maxBackoff, backoff << Math.min(attempt - 1, 20));
+        return bound <= 0 ? 0 : ThreadLocalRandom.current().nextLong(bound);
+    }
+
+    /**
+     * 请求是否未发送到服务端(链接未建立),此类失败对任何请求方法都可以安全重试
+     */
+    private static boolean isNotSent(Throwable throwable) {
+        Throwable cause = throwable;
+        while (cause != null) {
+            if (cause instanceof ConnectException || cause instanceof ConnectTimeoutException
+                    || cause instanceof UnknownHostException || cause instanceof NoRouteToHostException) {
+                return true;
+            }
+            cause = cause.getCause();
+        }
+        return false;
+    }
+}
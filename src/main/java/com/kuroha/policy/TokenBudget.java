@@ -0,0 +1,80 @@
+package com.kuroha.policy;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按比例控制额外请求(对冲、重试)的令牌预算
+ * 每次正常请求存入ratio个令牌,每次额外请求消耗1个,保证额外负载长期不超过正常流量的ratio倍
+ * @author kuroha
+ */
+public class TokenBudget {
+
+    /**
+     * 令牌按千分之一计数
+     */
+    private static final long SCALE = 1000;
+
+    private final long deposit;
+    private final long maxBalance;
+    private final AtomicLong balance;
+
+    /**
+     * @param percent 额外请求占正常请求的最大百分比
+     * @param maxTokens 最多累积的令牌数,限制空闲后的突发
+     */
+    public TokenBudget(double percent, int maxTokens) {
+        this(percent, maxTokens, 0);
+    }
+
+    /**
+     * @param percent 额外请求占正常请求的最大百分比
+     * @param maxTokens 最多累积的令牌数,限制空闲后的突发
+     * @param initialTokens 初始令牌数
+     */
+    public TokenBudget(double percent, int maxTokens, int initialTokens) {
+        this.deposit = (long) (percent / 100 * SCALE);
+        this.maxBalance = maxTokens * SCALE;
+        this.balance = new AtomicLong(Math.min(initialTokens, maxTokens) * SCALE);
+    }
+
+    /**
+     * 正常请求存入令牌
+     */
+    public void deposit() {
+        if (deposit <= 0) {
+            return;
+        }
+        while (true) {
+            long current = balance.get();
+            if (current >= maxBalance) {
+                return;
+            }
+            if (balance.compareAndSet(current, Math.min(current + deposit, maxBalance))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 尝试消耗一个令牌
+     * @return 成功返回true
+     */
+    public boolean tryWithdraw() {
+        while (true) {
+            long current = balance.get();
+            if (current < SCALE) {
+                return false;
+            }
+            if (balance.compareAndSet(current, current - SCALE)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return 剩余令牌数
+     */
+    public double getBalance() {
+        return (double) balance.get() / SCALE;
+    }
+}
@@ -0,0 +1,104 @@
+package com.kuroha.routing;
+
+/**
+ * 熔断器阈值,不可变,随客户端参数整体替换,已有熔断器在下一次判断时使用新的阈值
+ * @author kuroha
+ */
+public final class BreakerSettings {
+
+    public static final BreakerSettings DEFAULT = new BreakerSettings(5, 0.2, 0.5, 0.5, 5000, 2, 3);
+
+    /**
+     * 窗口内最少调用次数,低于该值不熔断
+     */
+    private final int minCallNum;
+    /**
+     * 链接失败率阈值,链接失败通常意味着实例已不可用,阈值较低
+     */
+    private final double connectErrorRate;
+    /**
+     * 超时失败率阈值
+     */
+    private final double timeoutRate;
+    /**
+     * 5xx失败率阈值
+     */
+    private final double serverErrorRate;
+    /**
+     * 熔断持续时间,毫秒
+     */
+    private final long openTime;
+    /**
+     * 半开状态下同时放行的探测请求数
+     */
+    private final int halfOpenPermits;
+    /**
+     * 半开状态下恢复所需的连续成功次数
+     */
+    private final int halfOpenSuccessNum;
+
+    /**
+     * @param minCallNum 窗口内最少调用次数
+     * @param connectErrorRate 链接失败率阈值,0~1
+     * @param timeoutRate 超时失败率阈值,0~1
+     * @param serverErrorRate 5xx失败率阈值,0~1
+     * @param openTime 熔断持续时间,毫秒
+     * @param halfOpenPermits 半开状态下同时放行的探测请求数
+     * @param halfOpenSuccessNum 半开状态下恢复所需的连续成功次数
+     */
+    public BreakerSettings(int minCallNum, double connectErrorRate, double timeoutRate, double serverErrorRate,
+                           long openTime, int halfOpenPermits, int halfOpenSuccessNum) {
+        if (minCallNum <= 0 || openTime <= 0 || halfOpenPermits <= 0 || halfOpenSuccessNum <= 0) {
+            throw new IllegalArgumentException("熔断最少调用次数、熔断时间及探测请求数需大于0");
+        }
+        if (!isRate(connectErrorRate) || !isRate(timeoutRate) || !isRate(serverErrorRate)) {
+            throw new IllegalArgumentException("熔断失败率阈值需在0~1之间");
+        }
+        this.minCallNum = minCallNum;
+        this.connectErrorRate = connectErrorRate;
+        this.timeoutRate = timeoutRate;
+        this.serverErrorRate = serverErrorRate;
+        this.openTime = openTime;
+        this.halfOpenPermits = halfOpenPermits;
+        this.halfOpenSuccessNum = halfOpenSuccessNum;
+    }
+
+    public int getMinCallNum() {
+        return minCallNum;
+    }
+
+    public double getConnectErrorRate() {
+        return connectErrorRate;
+    }
+
+    public double getTimeoutRate() {
+        return timeoutRate;
+    }
+
+    public double getServerErrorRate() {
+        return serverErrorRate;
+    }
+
+    public long getOpenTime() {
+        return openTime;
+    }
+
+    public int getHalfOpenPermits() {
+        return halfOpenPermits;
+    }
+
+    public int getHalfOpenSuccessNum() {
+        return halfOpenSuccessNum;
+    }
+
+    @Override
+    public String toString() {
+        return "minCallNum=" + minCallNum + ",connectErrorRate=" + connectErrorRate + ",timeoutRate=" + timeoutRate
+                + ",serverErrorRate=" + serverErrorRate + ",openTime=" + openTime
+                + ",halfOpenPermits=" + halfOpenPermits + ",halfOpenSuccessNum=" + halfOpenSuccessNum;
+    }
+
+    private static boolean isRate(double rate) {
+        return rate > 0 && rate <= 1;
+    }
+}
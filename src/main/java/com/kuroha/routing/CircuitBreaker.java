@@ -0,0 +1,190 @@
+package com.kuroha.routing;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * 单实例熔断器
+ * 以秒为单位的滑动窗口统计各类失败,失败率超过阈值后熔断(OPEN),
+ * 熔断时间结束后进入半开(HALF_OPEN)放行少量探测请求,探测连续成功则恢复(CLOSED)
+ * 阈值每次判断时从settings读取,可在运行中调整
+ * @author kuroha
+ */
+public class CircuitBreaker {
+
+    /**
+     * 滑动窗口秒数
+     */
+    private static final int WINDOW_SECONDS = 10;
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * 统计项: 总数 + 各失败类型
+     */
+    private static final int TOTAL = FailureKind.values().length;
+    private static final int SLOT = TOTAL + 1;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicLongArray bucketSecond = new AtomicLongArray(WINDOW_SECONDS);
+    private final AtomicLongArray counts = new AtomicLongArray(WINDOW_SECONDS * SLOT);
+    private final AtomicInteger probePermits = new AtomicInteger();
+    private final AtomicInteger probeSuccess = new AtomicInteger();
+    private final Supplier<BreakerSettings> settings;
+    private volatile long openUntil;
+
+    public CircuitBreaker() {
+        this(() -> BreakerSettings.DEFAULT);
+    }
+
+    /**
+     * @param settings 当前熔断阈值
+     */
+    public CircuitBreaker(Supplier<BreakerSettings> settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * 是否允许请求通过
+     * @return 允许返回true,半开状态下会占用一个探测名额
+     */
+    public boolean allowRequest() {
+        State current = state.get();
+        if (current == State.CLOSED) {
+            return true;
+        }
+        if (current == State.OPEN) {
+            if (System.currentTimeMillis() < openUntil) {
+                return false;
+            }
+            if (state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+                probeSuccess.set(0);
+                probePermits.set(settings.get().getHalfOpenPermits());
+            }
+        }
+        while (true) {
+            int permits = probePermits.get();
+            if (permits <= 0) {
+                return false;
+            }
+            if (probePermits.compareAndSet(permits, permits - 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 记录调用成功
+     */
+    public void onSuccess() {
+        if (state.get() == State.HALF_OPEN) {
+            BreakerSettings current = settings.get();
+            probePermits.updateAndGet(permits -> Math.min(permits + 1, current.getHalfOpenPermits()));
+            if (probeSuccess.incrementAndGet() >= current.getHalfOpenSuccessNum() && state.compareAndSet(State.HALF_OPEN, State.CLOSED)) {
+                reset();
+            }
+            return;
+        }
+        record(-1);
+    }
+
+    /**
+     * 记录调用失败
+     * @param kind 失败类型,为null时视为与实例健康无关,按成功处理
+     */
+    public void onFailure(FailureKind kind) {
+        if (kind == null) {
+            onSuccess();
+            return;
+        }
+        State current = state.get();
+        if (current == State.HALF_OPEN) {
+            trip(State.HALF_OPEN);
+            return;
+        }
+        if (current == State.OPEN) {
+            return;
+        }
+        long second = record(kind.ordinal());
+        if (shouldTrip(second)) {
+            trip(State.CLOSED);
+        }
+    }
+
+    /**
+     * 请求被取消,不计入统计,半开状态下归还探测名额
+     */
+    public void onCancel() {
+        if (state.get() == State.HALF_OPEN) {
+            int maxPermits = settings.get().getHalfOpenPermits();
+            probePermits.updateAndGet(permits -> Math.min(permits + 1, maxPermits));
+        }
+    }
+
+    public State getState() {
+        if (state.get() == State.OPEN && System.currentTimeMillis() >= openUntil) {
+            return State.HALF_OPEN;
+        }
+        return state.get();
+    }
+
+    private void trip(State from) {
+        openUntil = System.currentTimeMillis() + settings.get().getOpenTime();
+        state.compareAndSet(from, State.OPEN);
+    }
+
+    private void reset() {
+        for (int i = 0; i < WINDOW_SECONDS; i++) {
+            bucketSecond.set(i, 0);
+        }
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    /**
+     * 记录一次调用
+     * @param kindIndex 失败类型序号,成功为-1
+     * @return 当前秒
+     */
+    private long record(int kindIndex) {
+        long second = System.currentTimeMillis() / 1000;
+        int bucket = (int) (second % WINDOW_SECONDS);
+        long old = bucketSecond.get(bucket);
+        if (old != second && bucketSecond.compareAndSet(bucket, old, second)) {
+            for (int i = 0; i < SLOT; i++) {
+                counts.set(bucket * SLOT + i, 0);
+            }
+        }
+        counts.incrementAndGet(bucket * SLOT + TOTAL);
+        if (kindIndex >= 0) {
+            counts.incrementAndGet(bucket * SLOT + kindIndex);
+        }
+        return second;
+    }
+
+    private boolean shouldTrip(long second) {
+        long total = 0;
+        long[] failures = new long[TOTAL];
+        for (int bucket = 0; bucket < WINDOW_SECONDS; bucket++) {
+            if (second - bucketSecond.get(bucket) >= WINDOW_SECONDS) {
+                continue;
+            }
+            total += counts.get(bucket * SLOT + TOTAL);
+            for (int i = 0; i < TOTAL; i++) {
+                failures[i] += counts.get(bucket * SLOT + i);
+            }
+        }
+        BreakerSettings current = settings.get();
+        if (total < current.getMinCallNum()) {
+            return false;
+        }
+        return failures[FailureKind.CONNECT.ordinal()] >= total * current.getConnectErrorRate()
+                || failures[FailureKind.TIMEOUT.ordinal()] >= total * current.getTimeoutRate()
+                || failures[FailureKind.SERVER_ERROR.ordinal()] >= total * current.getServerErrorRate();
+    }
+}
@@ -0,0 +1,60 @@
+package com.kuroha.routing;
+
+import com.kuroha.http.StreamCallbackException;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.springframework.web.client.HttpServerErrorException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+/**
+ * 实例调用失败类型
+ * @author kuroha
+ */
+public enum FailureKind {
+    /**
+     * 链接失败,如拒绝链接、链接超时、链接被重置
+     */
+    CONNECT,
+    /**
+     * 读取超时或获取连接超时
+     */
+    TIMEOUT,
+    /**
+     * 服务端返回5xx
+     */
+    SERVER_ERROR;
+
+    /**
+     * 判断异常的失败类型
+     * @param throwable 调用异常
+     * @return 失败类型,4xx、解析异常及流式调用处理异常等与实例健康无关的返回null
+     */
+    public static FailureKind of(Throwable throwable) {
+        if (throwable instanceof HttpServerErrorException) {
+            return SERVER_ERROR;
+        }
+        Throwable cause = throwable;
+        while (cause != null) {
+            if (cause instanceof StreamCallbackException) {
+                return null;
+            }
+            if (cause instanceof ConnectionPoolTimeoutException || cause instanceof SocketTimeoutException) {
+                return TIMEOUT;
+            }
+            if (cause instanceof ConnectTimeoutException || cause instanceof ConnectException
+                    || cause instanceof NoRouteToHostException || cause instanceof UnknownHostException) {
+                return CONNECT;
+            }
+            if (cause instanceof IOException) {
+                return CONNECT;
+            }
+            cause = cause.getCause();
+        }
+        return null;
+    }
+}
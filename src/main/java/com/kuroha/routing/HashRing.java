@@ -0,0 +1,186 @@
+package com.kuroha.routing;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * 加权一致性哈希环(ring hash)
+ * 每个实例按权重生成虚拟节点,路由键从哈希值所在位置顺时针找到的第一个实例即为其目标实例,
+ * 实例增减时只有落在该实例虚拟节点上的键会移动
+ * 虚拟节点由实例地址计算并缓存在实例上,路由表变化时只合并各实例已排序的虚拟节点,不重新计算哈希
+ * 有界负载:实例的未完成请求数超过 平均负载 * 权重占比 * 负载系数 时跳过,由环上的下一个实例处理,避免热点键压垮单个实例
+ * @author kuroha
+ */
+final class HashRing {
+
+    static final HashRing EMPTY = new HashRing(new ServiceInstance[0], new long[0], new int[0]);
+
+    /**
+     * 权重为1的实例的虚拟节点数
+     */
+    private static final int VNODES_PER_WEIGHT = 160;
+    /**
+     * 单个实例最多的虚拟节点数
+     */
+    private static final int MAX_VNODES = 2560;
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final ServiceInstance[] instances;
+    private final double totalWeight;
+    /**
+     * 虚拟节点哈希值,升序
+     */
+    private final long[] points;
+    /**
+     * 虚拟节点所属实例在instances中的下标
+     */
+    private final int[] owners;
+
+    private HashRing(ServiceInstance[] instances, long[] points, int[] owners) {
+        this.instances = instances;
+        this.points = points;
+        this.owners = owners;
+        double sum = 0;
+        for (ServiceInstance instance : instances) {
+            sum += instance.getWeight();
+        }
+        this.totalWeight = sum;
+    }
+
+    /**
+     * 合并各实例的虚拟节点生成哈希环
+     * @param instanceList 实例列表
+     * @return 哈希环
+     */
+    static HashRing of(List<ServiceInstance> instanceList) {
+        if (instanceList.isEmpty()) {
+            return EMPTY;
+        }
+        ServiceInstance[] instances = instanceList.toArray(new ServiceInstance[0]);
+        long[][] instancePoints = new long[instances.length][];
+        int size = 0;
+        for (int i = 0; i < instances.length; i++) {
+            instancePoints[i] = instances[i].getRingPoints();
+            size += instancePoints[i].length;
+        }
+        long[] points = new long[size];
+        int[] owners = new int[size];
+        // 多路归并,cursor[0]为实例下标,cursor[1]为该实例下一个虚拟节点的位置
+        PriorityQueue<int[]> queue = new PriorityQueue<>(instances.length,
+                (a, b) -> Long.compare(instancePoints[a[0]][a[1]], instancePoints[b[0]][b[1]]));
+        for (int i = 0; i < instances.length; i++) {
+            queue.add(new int[]{i, 0});
+        }
+        int index = 0;
+        while (!queue.isEmpty()) {
+            int[] cursor = queue.poll();
+            points[index] = instancePoints[cursor[0]][cursor[1]];
+            owners[index++] = cursor[0];
+            if (++cursor[1] < instancePoints[cursor[0]].length) {
+                queue.add(cursor);
+            }
+        }
+        return new HashRing(instances, points, owners);
+    }
+
+    /**
+     * 计算实例的虚拟节点,虚拟节点数与权重成正比
+     * @param address 实例地址 ip:port
+     * @param weight 权重
+     * @return 虚拟节点哈希值,升序
+     */
+    static long[] points(String address, double weight) {
+        int count = (int) Math.max(1, Math.min(MAX_VNODES, Math.round(weight * VNODES_PER_WEIGHT)));
+        long[] points = new long[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = hash(address + "#" + i);
+        }
+        Arrays.sort(points);
+        return points;
+    }
+
+    /**
+     * @param key 路由键
+     * @return 哈希值
+     */
+    static long hash(String key) {
+        return HASH_FUNCTION.hashString(key, StandardCharsets.UTF_8).asLong();
+    }
+
+    /**
+     * 从哈希值所在位置顺时针选择第一个未排除且未超过负载上限的实例
+     * @param hash 路由键哈希值
+     * @param excludeSet 需要排除的uri
+     * @param stateFunction 获取实例运行状态
+     * @param balanceFactor 负载系数,不大于1时不限制负载
+     * @return 实例,全部排除时返回null,全部超过负载上限时返回顺时针第一个未排除的实例
+     */
+    ServiceInstance select(long hash, Set<String> excludeSet, Function<String, InstanceState> stateFunction, double balanceFactor) {
+        int n = instances.length;
+        if (n == 0) {
+            return null;
+        }
+        boolean bounded = balanceFactor > 1 && n > 1;
+        // 加上本次请求后每单位权重最多承担的未完成请求数,实例没有未完成请求时一定不超过上限,此时不计算
+        double capacity = -1;
+        int start = Arrays.binarySearch(points, hash);
+        if (start < 0) {
+            start = -start - 1;
+        }
+        ServiceInstance first = null;
+        boolean[] visited = null;
+        int visitedCount = 0;
+        for (int i = 0; i < points.length && visitedCount < n; i++) {
+            int owner = owners[(start + i) % points.length];
+            if (visited != null && visited[owner]) {
+                continue;
+            }
+            ServiceInstance instance = instances[owner];
+            if (!excludeSet.contains(instance.getUri())) {
+                if (!bounded) {
+                    return instance;
+                }
+                if (first == null) {
+                    first = instance;
+                }
+                int outstanding = stateFunction.apply(instance.getUri()).getOutstanding();
+                if (outstanding == 0) {
+                    return instance;
+                }
+                if (capacity < 0) {
+                    capacity = this.getCapacity(stateFunction, balanceFactor);
+                }
+                if (outstanding + 1 <= Math.ceil(capacity * instance.getWeight())) {
+                    return instance;
+                }
+            }
+            if (visited == null) {
+                visited = new boolean[n];
+            }
+            visited[owner] = true;
+            visitedCount++;
+        }
+        return first;
+    }
+
+    /**
+     * 计算加上本次请求后每单位权重最多承担的未完成请求数
+     * @param stateFunction 获取实例运行状态
+     * @param balanceFactor 负载系数
+     * @return 未完成请求数
+     */
+    private double getCapacity(Function<String, InstanceState> stateFunction, double balanceFactor) {
+        long outstanding = 0;
+        for (ServiceInstance instance : instances) {
+            outstanding += stateFunction.apply(instance.getUri()).getOutstanding();
+        }
+        return balanceFactor * (outstanding + 1) / totalWeight;
+    }
+}
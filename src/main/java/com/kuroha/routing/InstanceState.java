@@ -0,0 +1,172 @@
+package com.kuroha.routing;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 实例运行状态
+ * 包括熔断器、响应时间的指数加权移动平均(EWMA)及当前未完成请求数,路由表更新时保留
+ * @author kuroha
+ */
+public class InstanceState {
+
+    /**
+     * EWMA衰减时间常数,纳秒
+     */
+    private static final double DECAY_TIME = 10_000_000_000d;
+
+    private final CircuitBreaker breaker;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private volatile double ewma;
+    /**
+     * 是否已收到响应,收到前ewma为预估值,第一个响应时间直接替换预估值
+     */
+    private volatile boolean sampled;
+    private volatile long lastUpdate = System.nanoTime();
+
+    public InstanceState() {
+        this(() -> BreakerSettings.DEFAULT);
+    }
+
+    /**
+     * @param breakerSettings 当前熔断阈值
+     */
+    public InstanceState(Supplier<BreakerSettings> breakerSettings) {
+        this(breakerSettings, 0);
+    }
+
+    /**
+     * @param breakerSettings 当前熔断阈值
+     * @param initialLatency 收到第一个响应前的响应时间预估值,纳秒,如同服务其他实例的中位数,
+     *                       避免新实例因代价为0在收到响应前接收全部请求
+     */
+    public InstanceState(Supplier<BreakerSettings> breakerSettings, double initialLatency) {
+        this.breaker = new CircuitBreaker(breakerSettings);
+        this.ewma = initialLatency;
+    }
+
+    /**
+     * 请求开始
+     * @return 开始时间,纳秒
+     */
+    public long begin() {
+        outstanding.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * 请求成功
+     * @param start 开始时间
+     */
+    public void onSuccess(long start) {
+        this.onSuccess(start, true);
+    }
+
+    /**
+     * 请求成功
+     * @param start 开始时间
+     * @param sampleLatency 响应时间是否计入EWMA,流式调用的耗时取决于数据量,不计入
+     */
+    public void onSuccess(long start, boolean sampleLatency) {
+        end(start, sampleLatency);
+        breaker.onSuccess();
+    }
+
+    /**
+     * 请求失败
+     * @param start 开始时间
+     * @param kind 失败类型
+     */
+    public void onFailure(long start, FailureKind kind) {
+        this.onFailure(start, kind, true);
+    }
+
+    /**
+     * 请求失败
+     * @param start 开始时间
+     * @param kind 失败类型
+     * @param sampleLatency 响应时间是否计入EWMA
+     */
+    public void onFailure(long start, FailureKind kind, boolean sampleLatency) {
+        end(start, sampleLatency);
+        breaker.onFailure(kind);
+    }
+
+    /**
+     * 请求被取消(如对冲请求中较慢的一方),不计入响应时间及熔断统计
+     */
+    public void onCancel() {
+        outstanding.decrementAndGet();
+        breaker.onCancel();
+    }
+
+    /**
+     * 已选中实例但请求未发送(如超过并发上限被拒绝),归还半开状态下选择实例时占用的探测名额
+     */
+    public void onReject() {
+        breaker.onCancel();
+    }
+
+    /**
+     * 负载代价,响应时间越长、未完成请求越多、权重越低代价越高
+     * @param weight 实例权重
+     * @return 代价
+     */
+    public double getCost(double weight) {
+        return (this.getEwma(System.nanoTime()) + 1) * (outstanding.get() + 1) / weight;
+    }
+
+    public CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return 响应时间EWMA,毫秒
+     */
+    public double getLatency() {
+        return this.getEwma(System.nanoTime()) / 1_000_000;
+    }
+
+    /**
+     * @return 是否已收到响应
+     */
+    boolean isSampled() {
+        return sampled;
+    }
+
+    /**
+     * 读取时按距上次更新的时间衰减,一次慢响应之后长时间没有新样本时代价逐渐下降,实例可重新接收请求
+     * @param now 当前时间,纳秒
+     * @return 响应时间EWMA,纳秒
+     */
+    private double getEwma(long now) {
+        return ewma * Math.exp(-Math.max(now - lastUpdate, 0) / DECAY_TIME);
+    }
+
+    private void end(long start, boolean sampleLatency) {
+        outstanding.decrementAndGet();
+        if (sampleLatency) {
+            long now = System.nanoTime();
+            updateEwma(now, now - start);
+        }
+    }
+
+    /**
+     * 按时间衰减更新EWMA,响应时间高于均值时直接取峰值,使慢实例尽快被感知
+     */
+    private synchronized void updateEwma(long now, long rtt) {
+        double current = ewma;
+        if (!sampled || rtt > current) {
+            ewma = rtt;
+            sampled = true;
+        } else {
+            double w = Math.exp(-Math.max(now - lastUpdate, 0) / DECAY_TIME);
+            ewma = current * w + rtt * (1 - w);
+        }
+        lastUpdate = now;
+    }
+}
@@ -0,0 +1,85 @@
+package com.kuroha.routing;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+/**
+ * 负载均衡策略
+ * @author kuroha
+ */
+public enum LoadBalanceStrategy {
+    /**
+     * 按nacos权重随机
+     */
+    WEIGHTED_RANDOM {
+        @Override
+        public ServiceInstance choose(WeightedSelector selector, Set<String> excludeSet, Function<String, InstanceState> stateFunction) {
+            return selector.select(excludeSet);
+        }
+    },
+    /**
+     * 随机选取两个实例,取负载代价较低者
+     */
+    POWER_OF_TWO_CHOICES {
+        @Override
+        public ServiceInstance choose(WeightedSelector selector, Set<String> excludeSet, Function<String, InstanceState> stateFunction) {
+            List<ServiceInstance> instances = selector.getInstances();
+            int n = instances.size();
+            if (n <= 2) {
+                return LEAST_LOADED.choose(selector, excludeSet, stateFunction);
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            ServiceInstance first = null;
+            ServiceInstance second = null;
+            for (int i = 0; i < n * 2 && second == null; i++) {
+                ServiceInstance instance = instances.get(random.nextInt(n));
+                if (excludeSet.contains(instance.getUri()) || instance == first) {
+                    continue;
+                }
+                if (first == null) {
+                    first = instance;
+                } else {
+                    second = instance;
+                }
+            }
+            if (second == null) {
+                return LEAST_LOADED.choose(selector, excludeSet, stateFunction);
+            }
+            double firstCost = stateFunction.apply(first.getUri()).getCost(first.getWeight());
+            double secondCost = stateFunction.apply(second.getUri()).getCost(second.getWeight());
+            return firstCost <= secondCost ? first : second;
+        }
+    },
+    /**
+     * 遍历全部实例,取负载代价最低者
+     */
+    LEAST_LOADED {
+        @Override
+        public ServiceInstance choose(WeightedSelector selector, Set<String> excludeSet, Function<String, InstanceState> stateFunction) {
+            ServiceInstance best = null;
+            double bestCost = Double.MAX_VALUE;
+            for (ServiceInstance instance : selector.getInstances()) {
+                if (excludeSet.contains(instance.getUri())) {
+                    continue;
+                }
+                double cost = stateFunction.apply(instance.getUri()).getCost(instance.getWeight());
+                if (cost < bestCost) {
+                    best = instance;
+                    bestCost = cost;
+                }
+            }
+            return best;
+        }
+    };
+
+    /**
+     * 选择实例
+     * @param selector 服务实例选择器
+     * @param excludeSet 需要排除的uri
+     * @param stateFunction 获取实例运行状态
+     * @return 实例,无可用实例时返回null
+     */
+    public abstract ServiceInstance choose(WeightedSelector selector, Set<String> excludeSet, Function<String, InstanceState> stateFunction);
+}
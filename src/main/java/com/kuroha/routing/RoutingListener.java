@@ -0,0 +1,21 @@
+package com.kuroha.routing;
+
+/**
+ * 路由表变化监听
+ * @author kuroha
+ */
+public interface RoutingListener {
+
+    /**
+     * 服务实例发生变化
+     * @param serviceName 服务名
+     * @param selector 新的服务实例选择器
+     */
+    void onUpdate(String serviceName, WeightedSelector selector);
+
+    /**
+     * 服务从路由表中移除
+     * @param serviceName 服务名
+     */
+    void onRemove(String serviceName);
+}
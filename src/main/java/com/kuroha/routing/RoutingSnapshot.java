@@ -0,0 +1,228 @@
+package com.kuroha.routing;
+
+import com.kuroha.utility.StringUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * 路由表本地快照
+ * 路由变化后写入本地文件(先写临时文件再原子替换),启动时从快照恢复路由,
+ * 使首次调用无需等待nacos,nacos不可用时也能按最后一次的路由调用
+ * @author kuroha
+ */
+@Slf4j
+@Component
+public class RoutingSnapshot implements RoutingListener {
+
+    /**
+     * 文件头
+     */
+    private static final int MAGIC = 0x4B52534E;
+    /**
+     * 文件格式版本,2增加了实例的集群及元数据
+     */
+    private static final short FORMAT_VERSION = 2;
+    /**
+     * 路由变化后延迟写入的时间,合并短时间内的多次变化
+     */
+    private static final int WRITE_DELAY = 1000;
+
+    private final ServiceRouter serviceRouter;
+    private final Path path;
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    /**
+     * 快照版本,每次写入加一
+     */
+    private volatile long version;
+
+    /**
+     * @param serviceRouter 路由表
+     * @param path 快照文件路径,为空时不使用快照
+     */
+    public RoutingSnapshot(ServiceRouter serviceRouter, @Value("${cloud.snapshot.path:}") String path) {
+        this.serviceRouter = serviceRouter;
+        this.path = StringUtil.isBlank(path) ? null : Paths.get(path);
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cloud-routing-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 从快照恢复路由,并在后台从nacos拉取最新实例
+     */
+    @PostConstruct
+    public void init() {
+        if (path == null) {
+            return;
+        }
+        Map<String, WeightedSelector> snapshot = this.read();
+        if (!snapshot.isEmpty()) {
+            log.info("从快照恢复路由,版本:" + version + ",服务数:" + snapshot.size());
+            serviceRouter.restore(snapshot);
+            executor.execute(() -> snapshot.keySet().forEach(serviceRouter::resolve));
+        }
+        serviceRouter.addListener(this);
+    }
+
+    /**
+     * 写入未保存的变化
+     */
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
+        if (path != null && dirty.get()) {
+            this.write();
+        }
+    }
+
+    @Override
+    public void onUpdate(String serviceName, WeightedSelector selector) {
+        this.scheduleWrite();
+    }
+
+    @Override
+    public void onRemove(String serviceName) {
+        this.scheduleWrite();
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    private void scheduleWrite() {
+        if (dirty.compareAndSet(false, true) && !executor.isShutdown()) {
+            executor.schedule(this::write, WRITE_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 读取快照,文件不存在或已损坏时返回空
+     * @return 服务名 -> 实例选择器
+     */
+    private Map<String, WeightedSelector> read() {
+        Map<String, WeightedSelector> snapshot = new HashMap<>();
+        if (!Files.isRegularFile(path)) {
+            return snapshot;
+        }
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            DataInputStream checked = new DataInputStream(new CheckedInputStream(in, crc));
+            int magic = checked.readInt();
+            short formatVersion = checked.readShort();
+            if (magic != MAGIC || formatVersion < 1 || formatVersion > FORMAT_VERSION) {
+                log.warn("路由快照格式不匹配,忽略:" + path);
+                return snapshot;
+            }
+            long snapshotVersion = checked.readLong();
+            checked.readLong();
+            int serviceCount = checked.readInt();
+            for (int i = 0; i < serviceCount; i++) {
+                String serviceName = checked.readUTF();
+                int instanceCount = checked.readInt();
+                List<ServiceInstance> instances = new ArrayList<>(instanceCount);
+                for (int j = 0; j < instanceCount; j++) {
+                    String ip = checked.readUTF();
+                    int port = checked.readInt();
+                    double weight = checked.readDouble();
+                    if (formatVersion < 2) {
+                        instances.add(new ServiceInstance(ip, port, weight));
+                        continue;
+                    }
+                    String cluster = checked.readUTF();
+                    int metadataCount = checked.readInt();
+                    Map<String, String> metadata = new HashMap<>(metadataCount);
+                    for (int k = 0; k < metadataCount; k++) {
+                        metadata.put(checked.readUTF(), checked.readUTF());
+                    }
+                    instances.add(new ServiceInstance(ip, port, weight, cluster, metadata));
+                }
+                snapshot.put(serviceName, WeightedSelector.of(instances));
+            }
+            if (in.readLong() != crc.getValue()) {
+                log.warn("路由快照校验失败,忽略:" + path);
+                snapshot.clear();
+                return snapshot;
+            }
+            version = snapshotVersion;
+        } catch (IOException e) {
+            log.warn("读取路由快照失败:" + path, e);
+            snapshot.clear();
+        }
+        return snapshot;
+    }
+
+    /**
+     * 写入快照,先写临时文件再替换,避免进程中断时留下不完整的文件
+     */
+    private synchronized void write() {
+        dirty.set(false);
+        Map<String, WeightedSelector> routingMap = serviceRouter.getRoutingMap();
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            CRC32 crc = new CRC32();
+            try (FileOutputStream file = new FileOutputStream(temp.toFile());
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+                DataOutputStream checked = new DataOutputStream(new CheckedOutputStream(out, crc));
+                checked.writeInt(MAGIC);
+                checked.writeShort(FORMAT_VERSION);
+                checked.writeLong(version + 1);
+                checked.writeLong(System.currentTimeMillis());
+                checked.writeInt(routingMap.size());
+                for (Map.Entry<String, WeightedSelector> entry : routingMap.entrySet()) {
+                    checked.writeUTF(entry.getKey());
+                    List<ServiceInstance> instances = entry.getValue().getInstances();
+                    checked.writeInt(instances.size());
+                    for (ServiceInstance instance : instances) {
+                        String address = instance.getAddress();
+                        int index = address.lastIndexOf(':');
+                        checked.writeUTF(address.substring(0, index));
+                        checked.writeInt(Integer.parseInt(address.substring(index + 1)));
+                        checked.writeDouble(instance.getWeight());
+                        checked.writeUTF(instance.getCluster());
+                        checked.writeInt(instance.getMetadata().size());
+                        for (Map.Entry<String, String> metadata : instance.getMetadata().entrySet()) {
+                            checked.writeUTF(metadata.getKey());
+                            checked.writeUTF(metadata.getValue());
+                        }
+                    }
+                }
+                checked.flush();
+                out.writeLong(crc.getValue());
+                out.flush();
+                file.getFD().sync();
+            }
+            try {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            version++;
+            log.debug("写入路由快照,版本:" + version);
+        } catch (IOException e) {
+            log.error("写入路由快照失败:" + path, e);
+        }
+    }
+}
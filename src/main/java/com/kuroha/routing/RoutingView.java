@@ -0,0 +1,191 @@
+package com.kuroha.routing;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+
+/**
+ * 带版本号的路由表视图
+ * 每个服务的实例变化或实例熔断状态变化时版本号加一,调用方可凭版本号判断路由表是否变化,
+ * 或只获取指定版本之后变化的服务
+ * 版本号以启动时间毫秒数为起点,进程重启后版本号仍然递增
+ * @author kuroha
+ */
+@Component
+public class RoutingView implements RoutingListener {
+
+    /**
+     * 最多保留的已移除服务数,更早移除的服务无法通过增量获取
+     */
+    private static final int MAX_REMOVED_NUM = 1024;
+
+    private final ServiceRouter serviceRouter;
+    private final Map<String, ServiceEntry> entryMap = new TreeMap<>();
+    /**
+     * 已移除的服务 -> 移除时的版本号,按移除顺序排列
+     */
+    private final LinkedHashMap<String, Long> removedMap = new LinkedHashMap<>();
+    private long version = System.currentTimeMillis();
+    /**
+     * 早于该版本的增量请求返回全量
+     */
+    private long floorVersion = version;
+    private long fullVersion = -1;
+    private String full;
+
+    /**
+     * @param serviceRouter 路由表
+     */
+    public RoutingView(ServiceRouter serviceRouter) {
+        this.serviceRouter = serviceRouter;
+    }
+
+    @PostConstruct
+    public void init() {
+        serviceRouter.addListener(this);
+    }
+
+    @Override
+    public synchronized void onUpdate(String serviceName, WeightedSelector selector) {
+        removedMap.remove(serviceName);
+        entryMap.put(serviceName, new ServiceEntry(selector, ++version));
+    }
+
+    @Override
+    public synchronized void onRemove(String serviceName) {
+        if (entryMap.remove(serviceName) == null) {
+            return;
+        }
+        removedMap.put(serviceName, ++version);
+        if (removedMap.size() > MAX_REMOVED_NUM) {
+            Iterator<Long> iterator = removedMap.values().iterator();
+            floorVersion = iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * 获取当前版本号,会先检查实例熔断状态是否变化
+     * @return 版本号
+     */
+    public synchronized long getVersion() {
+        this.refreshStates();
+        return version;
+    }
+
+    /**
+     * 获取全部路由,每个实例只出现一次
+     * @return {"version":版本号,"full":true,"services":{服务名:{"version":版本号,"instances":[实例]}}}
+     */
+    public synchronized String getFull() {
+        this.refreshStates();
+        if (fullVersion != version) {
+            JSONObject services = new JSONObject(true);
+            entryMap.forEach((serviceName, entry) -> services.put(serviceName, entry.toJSON()));
+            full = this.toJSONString(true, services, new JSONArray());
+            fullVersion = version;
+        }
+        return full;
+    }
+
+    /**
+     * 获取指定版本之后变化的服务,版本过旧或不属于本进程时返回全量
+     * @param since 调用方已有的版本号
+     * @return {"version":版本号,"full":false,"services":{变化的服务},"removed":[移除的服务名]}
+     */
+    public synchronized String getDelta(long since) {
+        this.refreshStates();
+        if (since < floorVersion || since > version) {
+            return this.getFull();
+        }
+        JSONObject services = new JSONObject(true);
+        JSONArray removed = new JSONArray();
+        if (since < version) {
+            entryMap.forEach((serviceName, entry) -> {
+                if (entry.version > since) {
+                    services.put(serviceName, entry.toJSON());
+                }
+            });
+            removedMap.forEach((serviceName, removedVersion) -> {
+                if (removedVersion > since) {
+                    removed.add(serviceName);
+                }
+            });
+        }
+        return this.toJSONString(false, services, removed);
+    }
+
+    private String toJSONString(boolean isFull, JSONObject services, JSONArray removed) {
+        JSONObject json = new JSONObject(true);
+        json.put("version", version);
+        json.put("full", isFull);
+        json.put("services", services);
+        json.put("removed", removed);
+        return JSON.toJSONString(json);
+    }
+
+    /**
+     * 熔断状态在调用时变化,没有通知,读取前比较一次
+     */
+    private void refreshStates() {
+        for (ServiceEntry entry : entryMap.values()) {
+            CircuitBreaker.State[] states = this.getStates(entry.selector);
+            if (!Arrays.equals(states, entry.states)) {
+                entry.states = states;
+                entry.version = ++version;
+                entry.json = null;
+            }
+        }
+    }
+
+    private CircuitBreaker.State[] getStates(WeightedSelector selector) {
+        List<ServiceInstance> instances = selector.getInstances();
+        CircuitBreaker.State[] states = new CircuitBreaker.State[instances.size()];
+        for (int i = 0; i < states.length; i++) {
+            InstanceState state = serviceRouter.findInstanceState(instances.get(i).getUri());
+            states[i] = state == null ? CircuitBreaker.State.CLOSED : state.getBreaker().getState();
+        }
+        return states;
+    }
+
+    private final class ServiceEntry {
+        private final WeightedSelector selector;
+        private long version;
+        private CircuitBreaker.State[] states;
+        private JSONObject json;
+
+        private ServiceEntry(WeightedSelector selector, long version) {
+            this.selector = selector;
+            this.version = version;
+            this.states = getStates(selector);
+        }
+
+        private JSONObject toJSON() {
+            if (json != null) {
+                return json;
+            }
+            List<ServiceInstance> instances = selector.getInstances();
+            JSONArray array = new JSONArray(instances.size());
+            for (int i = 0; i < states.length; i++) {
+                ServiceInstance instance = instances.get(i);
+                JSONObject item = new JSONObject(true);
+                item.put("uri", instance.getUri());
+                item.put("weight", instance.getWeight());
+                item.put("cluster", instance.getCluster());
+                if (!instance.getMetadata().isEmpty()) {
+                    item.put("metadata", instance.getMetadata());
+                }
+                item.put("state", states[i]);
+                array.add(item);
+            }
+            json = new JSONObject(true);
+            json.put("version", version);
+            json.put("instances", array);
+            return json;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.kuroha.routing;
+
+import com.alibaba.nacos.api.common.Constants;
+import com.alibaba.nacos.api.naming.pojo.Instance;
+import com.kuroha.utility.StringUtil;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 路由表中的服务实例
+ * @author kuroha
+ */
+public final class ServiceInstance {
+
+    /**
+     * 访问地址,如 http://127.0.0.1:8080/
+     */
+    private final String uri;
+    /**
+     * ip:port
+     */
+    private final String address;
+    /**
+     * nacos权重
+     */
+    private final double weight;
+    /**
+     * nacos集群名,用于同集群优先路由
+     */
+    private final String cluster;
+    /**
+     * nacos元数据,如version、canary
+     */
+    private final Map<String, String> metadata;
+    /**
+     * 一致性哈希虚拟节点,首次使用时计算,实例未变化时在路由表更新后继续复用
+     */
+    private volatile long[] ringPoints;
+
+    public ServiceInstance(String ip, int port, double weight) {
+        this(ip, port, weight, Constants.DEFAULT_CLUSTER_NAME, null);
+    }
+
+    public ServiceInstance(String ip, int port, double weight, String cluster, Map<String, String> metadata) {
+        this.address = StringUtil.splicingString(ip, ":", port);
+        this.uri = StringUtil.splicingString("http://", address, "/");
+        this.weight = weight;
+        this.cluster = StringUtil.isBlank(cluster) ? Constants.DEFAULT_CLUSTER_NAME : cluster;
+        this.metadata = metadata == null || metadata.isEmpty()
+                ? Collections.emptyMap() : Collections.unmodifiableMap(new HashMap<>(metadata));
+    }
+
+    /**
+     * 由nacos实例创建
+     * @param instance nacos实例
+     * @return 服务实例
+     */
+    public static ServiceInstance of(Instance instance) {
+        return new ServiceInstance(instance.getIp(), instance.getPort(), instance.getWeight(),
+                instance.getClusterName(), instance.getMetadata());
+    }
+
+    /**
+     * 与nacos实例的权重、集群及元数据是否一致
+     * @param instance nacos实例
+     * @return 一致返回true
+     */
+    public boolean sameAs(Instance instance) {
+        String clusterName = StringUtil.isBlank(instance.getClusterName()) ? Constants.DEFAULT_CLUSTER_NAME : instance.getClusterName();
+        Map<String, String> instanceMetadata = instance.getMetadata() == null ? Collections.emptyMap() : instance.getMetadata();
+        return weight == instance.getWeight() && cluster.equals(clusterName) && metadata.equals(instanceMetadata);
+    }
+
+    /**
+     * 元数据是否包含全部指定的键值
+     * @param tags 键值
+     * @return 包含返回true
+     */
+    public boolean matches(Map<String, String> tags) {
+        for (Map.Entry<String, String> entry : tags.entrySet()) {
+            if (!entry.getValue().equals(metadata.get(entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return 一致性哈希虚拟节点哈希值,升序
+     */
+    long[] getRingPoints() {
+        long[] points = ringPoints;
+        if (points == null) {
+            points = HashRing.points(address, weight);
+            ringPoints = points;
+        }
+        return points;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public double getWeight() {
+        return weight;
+    }
+
+    public String getCluster() {
+        return cluster;
+    }
+
+    public Map<String, String> getMetadata() {
+        return metadata;
+    }
+
+    @Override
+    public String toString() {
+        return uri;
+    }
+}
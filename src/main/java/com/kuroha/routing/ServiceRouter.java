@@ -0,0 +1,608 @@
+package com.kuroha.routing;
+
+import com.alibaba.nacos.api.common.Constants;
+import com.alibaba.nacos.api.exception.NacosException;
+import com.alibaba.nacos.api.naming.NamingService;
+import com.alibaba.nacos.api.naming.listener.NamingEvent;
+import com.alibaba.nacos.api.naming.pojo.Instance;
+import com.kuroha.utility.StringUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 服务路由表
+ * 维护服务名到实例选择器的映射及实例熔断器,同步与异步调用共用
+ * 选择实例时先按调用指定的元数据过滤,再按集群优先规则选择范围,已知服务新上线的实例按慢启动比例接收请求
+ * 调用指定路由键时,在范围内按一致性哈希选择实例,相同路由键的调用优先发往同一实例
+ * @author kuroha
+ */
+@Slf4j
+@Component
+public class ServiceRouter {
+
+    private static final String NACOS_STATUS_UP = "UP";
+    /**
+     * 服务没有实例时,在该时间内不再请求nacos,等待推送
+     */
+    private static final int EMPTY_SERVICE_CACHE_TIME = 5000;
+    /**
+     * 启动预取的最大并发数
+     */
+    private static final int PREFETCH_THREADS = 8;
+    /**
+     * 启动预取的最长等待时间
+     */
+    private static final int PREFETCH_TIME_OUT = 10000;
+
+    private final ConcurrentHashMap<String, WeightedSelector> routingMap = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<String> serviceSubscribeSet = new ConcurrentSkipListSet<>();
+    /**
+     * 各服务的更新锁,不同服务之间互不阻塞
+     */
+    private final ConcurrentHashMap<String, ReentrantLock> lockMap = new ConcurrentHashMap<>();
+    /**
+     * 进行中的首次解析,同一服务的并发调用共用一次解析
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<WeightedSelector>> resolvingMap = new ConcurrentHashMap<>();
+    /**
+     * 没有实例的服务及其缓存到期时间
+     */
+    private final ConcurrentHashMap<String, Long> emptyServiceMap = new ConcurrentHashMap<>();
+    /**
+     * 实例运行状态 key为实例uri
+     */
+    private final ConcurrentHashMap<String, InstanceState> stateMap = new ConcurrentHashMap<>();
+    private final List<RoutingListener> listenerList = new CopyOnWriteArrayList<>();
+
+    private final NamingService namingService;
+    private final LoadBalanceStrategy loadBalanceStrategy;
+    private final ZoneAffinity zoneAffinity;
+    private final SlowStart slowStart;
+
+    /**
+     * 启动时预先解析并监听的服务
+     */
+    @Value("${cloud.prefetch-services:}")
+    private String[] prefetchServices;
+    /**
+     * 按路由键调用时的负载系数,实例未完成请求数超过平均值*系数时,该键的请求由哈希环上的下一个实例处理,不大于1时不限制
+     */
+    @Value("${cloud.hash.balance-factor:1.25}")
+    private double balanceFactor = 1.25;
+    /**
+     * 熔断阈值,随客户端参数更新
+     */
+    private volatile BreakerSettings breakerSettings = BreakerSettings.DEFAULT;
+
+    /**
+     * @param namingService naming服务
+     * @param loadBalanceStrategy 负载均衡策略
+     * @param zoneAffinity 同集群优先路由
+     * @param slowStart 新实例慢启动
+     */
+    public ServiceRouter(NamingService namingService,
+                         @Value("${cloud.load-balance:WEIGHTED_RANDOM}") LoadBalanceStrategy loadBalanceStrategy,
+                         ZoneAffinity zoneAffinity,
+                         SlowStart slowStart) {
+        this.namingService = namingService;
+        this.loadBalanceStrategy = loadBalanceStrategy;
+        this.zoneAffinity = zoneAffinity;
+        this.slowStart = slowStart;
+    }
+
+    /**
+     * 启动时并行解析并监听配置的服务
+     */
+    @PostConstruct
+    public void init() {
+        if (prefetchServices != null && prefetchServices.length > 0) {
+            this.prefetch(Arrays.asList(prefetchServices));
+        }
+    }
+
+    /**
+     * 注册路由表变化监听
+     * @param listener 监听
+     */
+    public void addListener(RoutingListener listener) {
+        listenerList.add(listener);
+        // 补发已有的路由,如从快照恢复的服务
+        routingMap.forEach(listener::onUpdate);
+    }
+
+    /**
+     * 获取实际访问的uri
+     * @param serviceName 服务名
+     * @return uri
+     */
+    public String getUri(String serviceName) {
+        return this.getUri(serviceName, null);
+    }
+
+    /**
+     * 获取实际访问的uri,只选择元数据匹配的实例
+     * @param serviceName 服务名
+     * @param tags 实例元数据需包含的键值,为空时不过滤
+     * @return uri
+     */
+    public String getUri(String serviceName, Map<String, String> tags) {
+        return this.getUri(serviceName, tags, null);
+    }
+
+    /**
+     * 获取实际访问的uri,只选择元数据匹配的实例,指定路由键时按一致性哈希选择
+     * @param serviceName 服务名
+     * @param tags 实例元数据需包含的键值,为空时不过滤
+     * @param routingKey 路由键,为空时按负载均衡策略选择
+     * @return uri
+     */
+    public String getUri(String serviceName, Map<String, String> tags, String routingKey) {
+        WeightedSelector selector = routingMap.get(serviceName);
+        // 判空
+        if (selector == null || selector.isEmpty()) {
+            // 同一服务只有一个线程请求nacos,其余等待其结果
+            selector = this.resolveOnce(serviceName);
+            if (selector == null) {
+                return null;
+            }
+        } else {
+            // 非空直接返回
+            ServiceInstance instance = this.selectInstance(selector, Collections.emptySet(), tags, routingKey);
+            return instance == null ? null : instance.getUri();
+        }
+        // 再次结束后判空名
+        ServiceInstance instance = this.selectInstance(selector, Collections.emptySet(), tags, routingKey);
+        if (instance == null) {
+            return null;
+        }
+        log.debug("成功寻找倒uri:" + instance.getUri());
+        // 非空返回
+        return instance.getUri();
+    }
+
+    /**
+     * 从nacos拉取服务实例并监听,拉取失败时保留原有路由
+     * @param serviceName 服务名
+     */
+    public void resolve(String serviceName) {
+        ReentrantLock lock = this.getLock(serviceName);
+        lock.lock();
+        try {
+            WeightedSelector selector = this.getServiceList(serviceName);
+            if (selector != null) {
+                this.putRouting(serviceName, selector);
+            }
+            this.subscribe(serviceName);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 并行解析并监听服务,最多等待PREFETCH_TIME_OUT
+     * @param serviceNames 服务名
+     */
+    public void prefetch(Collection<String> serviceNames) {
+        Set<String> serviceNameSet = new LinkedHashSet<>();
+        for (String serviceName : serviceNames) {
+            if (StringUtil.isNotBlank(serviceName)) {
+                serviceNameSet.add(serviceName.trim());
+            }
+        }
+        if (serviceNameSet.isEmpty()) {
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(serviceNameSet.size(), PREFETCH_THREADS), r -> {
+            Thread thread = new Thread(r, "cloud-routing-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            CompletableFuture<?>[] futures = serviceNameSet.stream()
+                    .map(serviceName -> CompletableFuture.runAsync(() -> this.resolveOnce(serviceName), executor))
+                    .toArray(CompletableFuture[]::new);
+            CompletableFuture.allOf(futures).get(PREFETCH_TIME_OUT, TimeUnit.MILLISECONDS);
+            log.info("预取服务完成:" + serviceNameSet);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            log.warn("预取服务未全部完成:" + serviceNameSet, e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * 从快照恢复路由,已有的服务不覆盖,恢复的服务尚未监听,需调用resolve
+     * @param snapshot 服务名 -> 实例选择器
+     */
+    public void restore(Map<String, WeightedSelector> snapshot) {
+        snapshot.forEach((serviceName, selector) -> {
+            if (!selector.isEmpty() && routingMap.putIfAbsent(serviceName, selector) == null) {
+                listenerList.forEach(listener -> listener.onUpdate(serviceName, selector));
+            }
+        });
+    }
+
+    /**
+     * 获取除去uri的实际访问的uri
+     * @param serviceName 服务名
+     * @param uriSet 本次调用失败的ip地址
+     * @return uri
+     */
+    public String getUriThrow(String serviceName, Set<String> uriSet) {
+        return this.getUriThrow(serviceName, uriSet, null);
+    }
+
+    /**
+     * 获取除去uri的实际访问的uri,只选择元数据匹配的实例
+     * @param serviceName 服务名
+     * @param uriSet 本次调用失败的ip地址
+     * @param tags 实例元数据需包含的键值,为空时不过滤
+     * @return uri
+     */
+    public String getUriThrow(String serviceName, Set<String> uriSet, Map<String, String> tags) {
+        return this.getUriThrow(serviceName, uriSet, tags, null);
+    }
+
+    /**
+     * 获取除去uri的实际访问的uri,只选择元数据匹配的实例,指定路由键时选择哈希环上的下一个实例
+     * @param serviceName 服务名
+     * @param uriSet 本次调用失败的ip地址
+     * @param tags 实例元数据需包含的键值,为空时不过滤
+     * @param routingKey 路由键,为空时按负载均衡策略选择
+     * @return uri
+     */
+    public String getUriThrow(String serviceName, Set<String> uriSet, Map<String, String> tags, String routingKey) {
+        WeightedSelector selector = routingMap.get(serviceName);
+        if (selector == null) {
+            return null;
+        }
+        ServiceInstance instance = this.selectInstance(selector, uriSet, tags, routingKey);
+        return instance == null ? null : instance.getUri();
+    }
+
+    /**
+     * 获取实例运行状态
+     * @param uri 实例uri
+     * @return 运行状态
+     */
+    public InstanceState getInstanceState(String uri) {
+        InstanceState state = stateMap.get(uri);
+        if (state == null) {
+            state = stateMap.computeIfAbsent(uri, key -> new InstanceState(this::getBreakerSettings));
+        }
+        return state;
+    }
+
+    public BreakerSettings getBreakerSettings() {
+        return breakerSettings;
+    }
+
+    /**
+     * 更新熔断阈值,已有实例的熔断器同时生效
+     * @param breakerSettings 熔断阈值
+     */
+    public void setBreakerSettings(BreakerSettings breakerSettings) {
+        this.breakerSettings = breakerSettings;
+    }
+
+    /**
+     * 获取实例运行状态,不存在时不创建
+     * @param uri 实例uri
+     * @return 运行状态,实例未被调用过时返回null
+     */
+    public InstanceState findInstanceState(String uri) {
+        return stateMap.get(uri);
+    }
+
+    /**
+     * 重新从nacos拉取全部已知服务的实例
+     */
+    public void refresh() {
+        routingMap.forEach((key,value)->{
+            ReentrantLock lock = this.getLock(key);
+            lock.lock();
+            try {
+                WeightedSelector selector = this.getServiceList(key);
+                if (selector == null) {
+                    // nacos不可用,保留最后一次的路由
+                    return;
+                }
+                if (selector.isEmpty()) {
+                    routingMap.remove(key);
+                    emptyServiceMap.remove(key);
+                    this.removeStates(value, selector);
+                    listenerList.forEach(listener -> listener.onRemove(key));
+                } else {
+                    this.putRouting(key, selector);
+                }
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    /**
+     * 获取全部路由表
+     * @return 服务名 -> 实例选择器
+     */
+    public Map<String, WeightedSelector> getRoutingMap() {
+        return Collections.unmodifiableMap(routingMap);
+    }
+
+    /**
+     * 按元数据过滤后选择实例,优先在集群优先规则选出的范围内选择,范围内没有可用实例时再从全部实例中选择
+     * @param selector 服务实例选择器
+     * @param uriSet 需要排除的uri
+     * @param tags 实例元数据需包含的键值
+     * @param routingKey 路由键,为空时按负载均衡策略选择
+     * @return 实例,全部不可用时返回null
+     */
+    private ServiceInstance selectInstance(WeightedSelector selector, Set<String> uriSet, Map<String, String> tags, String routingKey) {
+        WeightedSelector candidates = selector.filter(tags);
+        WeightedSelector scope = zoneAffinity.scope(candidates, this::getInstanceState);
+        ServiceInstance instance = this.selectInstance(scope, uriSet, routingKey);
+        if (instance == null && scope != candidates) {
+            instance = this.selectInstance(candidates, uriSet, routingKey);
+        }
+        return instance;
+    }
+
+    /**
+     * 选择熔断器允许通过的实例,慢启动未接收的实例只在没有其他可用实例时选择
+     * @param selector 服务实例选择器
+     * @param uriSet 需要排除的uri
+     * @param routingKey 路由键,为空时按负载均衡策略选择
+     * @return 实例,全部不可用时返回null
+     */
+    private ServiceInstance selectInstance(WeightedSelector selector, Set<String> uriSet, String routingKey) {
+        HashRing ring = routingKey == null ? null : selector.getRing();
+        long hash = ring == null ? 0 : HashRing.hash(routingKey);
+        Set<String> excludeSet = uriSet;
+        ServiceInstance warming = null;
+        while (true) {
+            ServiceInstance instance = ring == null
+                    ? loadBalanceStrategy.choose(selector, excludeSet, this::getInstanceState)
+                    : ring.select(hash, excludeSet, this::getInstanceState, balanceFactor);
+            if (instance == null) {
+                return warming != null && this.getInstanceState(warming.getUri()).getBreaker().allowRequest() ? warming : null;
+            }
+            if (!slowStart.admit(instance.getUri())) {
+                if (warming == null) {
+                    warming = instance;
+                }
+            } else if (this.getInstanceState(instance.getUri()).getBreaker().allowRequest()) {
+                return instance;
+            }
+            if (excludeSet == uriSet) {
+                excludeSet = new HashSet<>(uriSet);
+            }
+            excludeSet.add(instance.getUri());
+        }
+    }
+
+    /**
+     * 首次解析服务,同一服务的并发调用共用一次解析,没有实例的服务在EMPTY_SERVICE_CACHE_TIME内直接返回
+     * @param serviceName 服务名
+     * @return 实例选择器,nacos不可用且没有原有路由时返回null
+     */
+    private WeightedSelector resolveOnce(String serviceName) {
+        Long expireTime = emptyServiceMap.get(serviceName);
+        if (expireTime != null && expireTime > System.currentTimeMillis()) {
+            return routingMap.get(serviceName);
+        }
+        CompletableFuture<WeightedSelector> future = new CompletableFuture<>();
+        CompletableFuture<WeightedSelector> resolving = resolvingMap.putIfAbsent(serviceName, future);
+        if (resolving != null) {
+            return resolving.join();
+        }
+        ReentrantLock lock = this.getLock(serviceName);
+        lock.lock();
+        try {
+            WeightedSelector selector = routingMap.get(serviceName);
+            // 再次判空
+            if (selector == null || selector.isEmpty()) {
+                // 根据服务名从nacos获取实例列表,获取失败时保留原有路由
+                WeightedSelector serviceList = this.getServiceList(serviceName);
+                if (serviceList != null) {
+                    selector = serviceList;
+                    this.putRouting(serviceName, selector);
+                }
+                if (selector != null && selector.isEmpty()) {
+                    emptyServiceMap.put(serviceName, System.currentTimeMillis() + EMPTY_SERVICE_CACHE_TIME);
+                }
+            }
+            // 检测服务是否进行监听
+            this.subscribe(serviceName);
+            future.complete(selector);
+            return selector;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            resolvingMap.remove(serviceName, future);
+            lock.unlock();
+        }
+    }
+
+    private ReentrantLock getLock(String serviceName) {
+        ReentrantLock lock = lockMap.get(serviceName);
+        if (lock == null) {
+            lock = lockMap.computeIfAbsent(serviceName, key -> new ReentrantLock());
+        }
+        return lock;
+    }
+
+    /**
+     * 服务不在监听列表的话,加入监听列表
+     * @param serviceName 服务名
+     */
+    private void subscribe(String serviceName) {
+        if (serviceSubscribeSet.contains(serviceName)) {
+            return;
+        }
+        try {
+            namingService.subscribe(serviceName, event -> {
+                log.debug(serviceName + "服务发生变化");
+                ReentrantLock lock = this.getLock(serviceName);
+                lock.lock();
+                try {
+                    // 直接使用推送的实例列表,无需再请求nacos
+                    WeightedSelector serviceList = event instanceof NamingEvent
+                            ? this.toSelector(serviceName, ((NamingEvent) event).getInstances())
+                            : this.getServiceList(serviceName);
+                    if (serviceList != null) {
+                        this.putRouting(serviceName, serviceList);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            });
+            serviceSubscribeSet.add(serviceName);
+        } catch (NacosException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 更新路由表并通知监听
+     * @param serviceName 服务名
+     * @param selector 服务实例选择器
+     */
+    private void putRouting(String serviceName, WeightedSelector selector) {
+        WeightedSelector old = routingMap.put(serviceName, selector);
+        if (old == selector) {
+            // 实例未变化
+            return;
+        }
+        if (!selector.isEmpty()) {
+            emptyServiceMap.remove(serviceName);
+        }
+        this.removeStates(old, selector);
+        listenerList.forEach(listener -> listener.onUpdate(serviceName, selector));
+    }
+
+    /**
+     * 实例下线后移除其运行状态
+     * @param old 旧的选择器
+     * @param selector 新的选择器
+     */
+    private void removeStates(WeightedSelector old, WeightedSelector selector) {
+        if (old == null) {
+            return;
+        }
+        Set<String> uriSet = new HashSet<>(selector.size());
+        for (ServiceInstance instance : selector.getInstances()) {
+            uriSet.add(instance.getUri());
+        }
+        for (ServiceInstance instance : old.getInstances()) {
+            if (!uriSet.contains(instance.getUri())) {
+                stateMap.remove(instance.getUri());
+                slowStart.onRemoved(instance.getUri());
+            }
+        }
+    }
+
+    /**
+     * 获取服务列表
+     * @param serviceName
+     * @return 实例选择器,nacos不可用时返回null
+     */
+    private WeightedSelector getServiceList(String serviceName) {
+        try {
+            // 获取指定serviceName的路由信息
+            return this.toSelector(serviceName, namingService.getAllInstances(serviceName));
+        } catch (NacosException | RuntimeException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * 根据nacos实例列表生成选择器,与当前路由比较,未变化的实例复用原对象,全部未变化时返回当前选择器
+     * @param serviceName 服务名
+     * @param instanceList nacos实例列表
+     * @return 实例选择器,nacos不可用时返回null
+     */
+    private WeightedSelector toSelector(String serviceName, List<Instance> instanceList) {
+        // nacos客户端请求失败时返回空列表,需区分服务确实没有实例还是nacos不可用
+        if (instanceList == null || instanceList.isEmpty() && !NACOS_STATUS_UP.equals(namingService.getServerStatus())) {
+            log.warn("nacos不可用,保留" + serviceName + "原有路由");
+            return null;
+        }
+        WeightedSelector old = routingMap.get(serviceName);
+        Map<String, ServiceInstance> oldMap = new HashMap<>();
+        if (old != null) {
+            for (ServiceInstance instance : old.getInstances()) {
+                oldMap.put(instance.getAddress(), instance);
+            }
+        }
+        boolean changed = old == null;
+        List<ServiceInstance> list = new ArrayList<>(instanceList.size());
+        // 各集群已注册实例的总权重,包括不健康的实例,用于计算集群可用容量
+        Map<String, Double> registeredWeightMap = new HashMap<>();
+        List<String> newList = new ArrayList<>();
+        for (Instance instance : instanceList) {
+            if (!instance.isEnabled() || instance.getWeight() <= 0) {
+                continue;
+            }
+            registeredWeightMap.merge(StringUtil.isBlank(instance.getClusterName()) ? Constants.DEFAULT_CLUSTER_NAME : instance.getClusterName(),
+                    instance.getWeight(), Double::sum);
+            // 非健康的跳过
+            if (!instance.isHealthy()) {
+                continue;
+            }
+            ServiceInstance current = oldMap.get(StringUtil.splicingString(instance.getIp(), ":", instance.getPort()));
+            if (current == null || !current.sameAs(instance)) {
+                // 新增或权重、集群、元数据变化
+                boolean added = current == null && old != null;
+                current = ServiceInstance.of(instance);
+                changed = true;
+                if (added) {
+                    // 已知服务新上线或恢复健康的实例
+                    newList.add(current.getUri());
+                }
+            }
+            list.add(current);
+        }
+        if (!changed && list.size() == oldMap.size() && registeredWeightMap.equals(old.getRegisteredWeightMap())) {
+            return old;
+        }
+        log.debug(serviceName + "实例变化:" + oldMap.size() + " -> " + list.size());
+        if (!newList.isEmpty()) {
+            double seed = this.medianLatency(old);
+            for (String uri : newList) {
+                stateMap.putIfAbsent(uri, new InstanceState(this::getBreakerSettings, seed));
+            }
+        }
+        newList.forEach(slowStart::onAdded);
+        return WeightedSelector.of(list, registeredWeightMap);
+    }
+
+    /**
+     * 计算已有实例响应时间EWMA的中位数,作为新实例收到响应前的预估值
+     * @param selector 原有实例
+     * @return 响应时间,纳秒,已有实例都未收到响应时返回0
+     */
+    private double medianLatency(WeightedSelector selector) {
+        List<Double> latencyList = new ArrayList<>();
+        for (ServiceInstance instance : selector.getInstances()) {
+            InstanceState state = stateMap.get(instance.getUri());
+            if (state != null && state.isSampled()) {
+                latencyList.add(state.getLatency() * 1_000_000);
+            }
+        }
+        if (latencyList.isEmpty()) {
+            return 0;
+        }
+        Collections.sort(latencyList);
+        return latencyList.get(latencyList.size() / 2);
+    }
+}
@@ -0,0 +1,243 @@
+package com.kuroha.routing;
+
+import com.kuroha.utility.StringUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 新实例慢启动
+ * 已知服务新上线的实例在窗口期内按比例接收请求,比例从初始百分比线性增长到100%,
+ * 即实例的有效权重从 权重*初始百分比 逐渐增长到完整权重;服务首次解析及从快照恢复的实例不做慢启动
+ * 配置了预热接口时,新实例先在后台接收预热请求,预热完成(或超时)前不分配实际请求,完成后再开始慢启动
+ * 其他实例均不可用时,仍可选择慢启动及预热中的实例
+ * @author kuroha
+ */
+@Slf4j
+@Component
+public class SlowStart {
+
+    /**
+     * 不做慢启动
+     */
+    public static final SlowStart NONE = new SlowStart(0, 100, "", 0, 0);
+
+    /**
+     * 预热的最大并发实例数
+     */
+    private static final int WARMUP_THREADS = 2;
+    /**
+     * 预热请求的连接超时时间
+     */
+    private static final int WARMUP_CONNECT_TIME_OUT = 1000;
+    /**
+     * 预热请求的读取超时时间
+     */
+    private static final int WARMUP_READ_TIME_OUT = 5000;
+    /**
+     * 预热请求失败后的等待时间
+     */
+    private static final int WARMUP_FAIL_WAIT = 500;
+
+    private final long window;
+    private final double initialFraction;
+    private final String warmupPath;
+    private final int warmupRequests;
+    private final long warmupTimeout;
+    /**
+     * 慢启动中的实例 key为实例uri
+     */
+    private final ConcurrentHashMap<String, Ramp> rampMap = new ConcurrentHashMap<>();
+    private final ExecutorService warmupExecutor;
+
+    /**
+     * @param window 慢启动窗口,毫秒,0表示不做慢启动
+     * @param initialPercent 新实例开始时接收请求的比例,百分比
+     * @param warmupPath 预热接口,如 actuator/health,为空时不预热
+     * @param warmupRequests 预热请求数
+     * @param warmupTimeout 预热最长时间,毫秒,超过后不再等待预热完成
+     */
+    public SlowStart(@Value("${cloud.slow-start.window:0}") long window,
+                     @Value("${cloud.slow-start.initial-percent:10}") double initialPercent,
+                     @Value("${cloud.slow-start.warmup-path:}") String warmupPath,
+                     @Value("${cloud.slow-start.warmup-requests:10}") int warmupRequests,
+                     @Value("${cloud.slow-start.warmup-timeout:30000}") long warmupTimeout) {
+        this.window = Math.max(window, 0);
+        this.initialFraction = Math.min(Math.max(initialPercent, 0), 100) / 100;
+        this.warmupPath = StringUtil.isBlank(warmupPath) || warmupRequests <= 0 ? null : trimSlash(warmupPath.trim());
+        this.warmupRequests = warmupRequests;
+        this.warmupTimeout = warmupTimeout;
+        this.warmupExecutor = this.warmupPath == null ? null : Executors.newFixedThreadPool(WARMUP_THREADS, r -> {
+            Thread thread = new Thread(r, "cloud-slow-start-warmup");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (warmupExecutor != null) {
+            warmupExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 实例新上线,开始预热或慢启动
+     * @param uri 实例uri
+     */
+    public void onAdded(String uri) {
+        if (window == 0 && warmupPath == null) {
+            return;
+        }
+        Ramp ramp = new Ramp(warmupPath == null);
+        rampMap.put(uri, ramp);
+        if (warmupPath == null) {
+            log.info(uri + "开始慢启动");
+            return;
+        }
+        warmupExecutor.execute(() -> this.warmup(uri, ramp));
+    }
+
+    /**
+     * 实例下线,停止预热及慢启动
+     * @param uri 实例uri
+     */
+    public void onRemoved(String uri) {
+        rampMap.remove(uri);
+    }
+
+    /**
+     * 本次选中的实例是否接收请求,慢启动中的实例按当前比例随机接收
+     * @param uri 实例uri
+     * @return 接收返回true,预热中的实例返回false
+     */
+    public boolean admit(String uri) {
+        if (rampMap.isEmpty()) {
+            return true;
+        }
+        Ramp ramp = rampMap.get(uri);
+        if (ramp == null) {
+            return true;
+        }
+        double fraction = this.getFraction(ramp);
+        if (fraction >= 1) {
+            rampMap.remove(uri, ramp);
+            log.info(uri + "慢启动完成");
+            return true;
+        }
+        return fraction > 0 && ThreadLocalRandom.current().nextDouble() < fraction;
+    }
+
+    /**
+     * 获取实例当前接收请求的比例
+     * @param uri 实例uri
+     * @return 0~1,预热中为0,不在慢启动中为1
+     */
+    public double getFraction(String uri) {
+        Ramp ramp = rampMap.get(uri);
+        return ramp == null ? 1 : this.getFraction(ramp);
+    }
+
+    private double getFraction(Ramp ramp) {
+        long startTime = ramp.startTime;
+        if (startTime == 0) {
+            return 0;
+        }
+        long elapsed = System.currentTimeMillis() - startTime;
+        if (elapsed >= window) {
+            return 1;
+        }
+        return initialFraction + (1 - initialFraction) * elapsed / window;
+    }
+
+    /**
+     * 向实例发送预热请求,全部完成、超时或实例下线后结束
+     * @param uri 实例uri
+     * @param ramp 慢启动状态
+     */
+    private void warmup(String uri, Ramp ramp) {
+        long deadline = System.currentTimeMillis() + warmupTimeout;
+        int success = 0;
+        int sent = 0;
+        while (success < warmupRequests && rampMap.get(uri) == ramp && System.currentTimeMillis() < deadline) {
+            sent++;
+            if (this.probe(uri + warmupPath)) {
+                success++;
+                continue;
+            }
+            try {
+                Thread.sleep(WARMUP_FAIL_WAIT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (rampMap.get(uri) != ramp) {
+            return;
+        }
+        if (success < warmupRequests) {
+            log.warn(uri + "预热未完成,成功" + success + "/" + sent + ",开始接收请求");
+        } else {
+            log.info(uri + "预热完成,开始慢启动");
+        }
+        ramp.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * 发送一次预热请求
+     * @param url 预热地址
+     * @return 响应2xx返回true
+     */
+    private boolean probe(String url) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(WARMUP_CONNECT_TIME_OUT);
+            connection.setReadTimeout(WARMUP_READ_TIME_OUT);
+            int status = connection.getResponseCode();
+            try (InputStream inputStream = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                if (inputStream != null) {
+                    byte[] buffer = new byte[1024];
+                    while (inputStream.read(buffer) >= 0) {
+                        // 读完响应体以复用连接
+                    }
+                }
+            }
+            return status >= 200 && status < 300;
+        } catch (IOException e) {
+            log.debug(url + "预热请求失败:" + e.getMessage());
+            if (connection != null) {
+                connection.disconnect();
+            }
+            return false;
+        }
+    }
+
+    private static String trimSlash(String path) {
+        return path.startsWith("/") ? path.substring(1) : path;
+    }
+
+    /**
+     * 慢启动状态
+     */
+    private static final class Ramp {
+        /**
+         * 开始慢启动的时间,0表示预热中
+         */
+        private volatile long startTime;
+
+        private Ramp(boolean started) {
+            this.startTime = started ? System.currentTimeMillis() : 0;
+        }
+    }
+}
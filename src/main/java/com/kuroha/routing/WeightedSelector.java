@@ -0,0 +1,304 @@
+package com.kuroha.routing;
+
+import com.alibaba.fastjson.annotation.JSONField;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 按权重选择实例的不可变快照
+ * 使用别名表(Alias Method)实现O(1)加权随机,权重保持原始精度,不做取整
+ * 按元数据过滤及按集群划分的子选择器、一致性哈希环在首次使用时创建并缓存
+ * @author kuroha
+ */
+public final class WeightedSelector {
+
+    public static final WeightedSelector EMPTY = new WeightedSelector(new ServiceInstance[0], Collections.emptyMap());
+
+    /**
+     * 排除部分实例时,先尝试直接选取的次数,仍未命中再退化为前缀和选取
+     */
+    private static final int EXCLUDE_RETRY_NUM = 4;
+    /**
+     * 最多缓存的元数据过滤条件数,超过后的条件每次重新过滤,避免按请求变化的元数据(如租户)使缓存无限增长
+     */
+    private static final int MAX_FILTER_NUM = 64;
+
+    private final ServiceInstance[] instances;
+    private final List<ServiceInstance> instanceList;
+    private final double totalWeight;
+    private final double[] probability;
+    private final int[] alias;
+    /**
+     * 各集群已注册实例(包括不健康的实例)的总权重
+     */
+    private final Map<String, Double> registeredWeightMap;
+    /**
+     * 元数据 -> 过滤后的选择器,最多MAX_FILTER_NUM个
+     */
+    private final ConcurrentHashMap<Map<String, String>, WeightedSelector> filterMap = new ConcurrentHashMap<>();
+    /**
+     * 最近一次划分的集群及划分结果
+     */
+    private volatile Partition partition;
+    /**
+     * 一致性哈希环
+     */
+    private volatile HashRing ring;
+
+    private WeightedSelector(ServiceInstance[] instances, Map<String, Double> registeredWeightMap) {
+        this.instances = instances;
+        this.instanceList = Collections.unmodifiableList(Arrays.asList(instances));
+        this.registeredWeightMap = registeredWeightMap;
+        int n = instances.length;
+        this.probability = new double[n];
+        this.alias = new int[n];
+        double sum = 0;
+        for (ServiceInstance instance : instances) {
+            sum += instance.getWeight();
+        }
+        this.totalWeight = sum;
+        if (n == 0) {
+            return;
+        }
+        // Vose别名表构建
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int smallSize = 0;
+        int largeSize = 0;
+        for (int i = 0; i < n; i++) {
+            scaled[i] = instances[i].getWeight() * n / sum;
+            if (scaled[i] < 1) {
+                small[smallSize++] = i;
+            } else {
+                large[largeSize++] = i;
+            }
+        }
+        while (smallSize > 0 && largeSize > 0) {
+            int less = small[--smallSize];
+            int more = large[--largeSize];
+            probability[less] = scaled[less];
+            alias[less] = more;
+            scaled[more] = scaled[more] + scaled[less] - 1;
+            if (scaled[more] < 1) {
+                small[smallSize++] = more;
+            } else {
+                large[largeSize++] = more;
+            }
+        }
+        while (largeSize > 0) {
+            probability[large[--largeSize]] = 1;
+        }
+        while (smallSize > 0) {
+            probability[small[--smallSize]] = 1;
+        }
+    }
+
+    /**
+     * 构建选择器,权重不大于0的实例不参与路由
+     * @param instanceList 实例列表
+     * @return 选择器
+     */
+    public static WeightedSelector of(Collection<ServiceInstance> instanceList) {
+        return of(instanceList, null);
+    }
+
+    /**
+     * 构建选择器,权重不大于0的实例不参与路由
+     * @param instanceList 实例列表
+     * @param registeredWeightMap 各集群已注册实例(包括不健康的实例)的总权重,为null时按实例列表计算
+     * @return 选择器
+     */
+    public static WeightedSelector of(Collection<ServiceInstance> instanceList, Map<String, Double> registeredWeightMap) {
+        List<ServiceInstance> list = new ArrayList<>(instanceList.size());
+        Map<String, Double> weightMap = new HashMap<>();
+        for (ServiceInstance instance : instanceList) {
+            if (instance.getWeight() > 0) {
+                list.add(instance);
+                weightMap.merge(instance.getCluster(), instance.getWeight(), Double::sum);
+            }
+        }
+        if (list.isEmpty()) {
+            return EMPTY;
+        }
+        if (registeredWeightMap != null) {
+            // 已注册权重不小于健康实例的权重
+            registeredWeightMap.forEach((cluster, weight) -> weightMap.merge(cluster, weight, Math::max));
+        }
+        return new WeightedSelector(list.toArray(new ServiceInstance[0]), Collections.unmodifiableMap(weightMap));
+    }
+
+    /**
+     * 加权随机选择一个实例
+     * @return 实例,无可用实例时返回null
+     */
+    public ServiceInstance select() {
+        int n = instances.length;
+        if (n == 0) {
+            return null;
+        }
+        if (n == 1) {
+            return instances[0];
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(n);
+        return random.nextDouble() < probability[i] ? instances[i] : instances[alias[i]];
+    }
+
+    /**
+     * 排除指定uri后加权随机选择一个实例
+     * @param excludeUriSet 需要排除的uri
+     * @return 实例,无可用实例时返回null
+     */
+    public ServiceInstance select(Set<String> excludeUriSet) {
+        if (excludeUriSet == null || excludeUriSet.isEmpty()) {
+            return select();
+        }
+        for (int i = 0; i < EXCLUDE_RETRY_NUM; i++) {
+            ServiceInstance instance = select();
+            if (instance == null) {
+                return null;
+            }
+            if (!excludeUriSet.contains(instance.getUri())) {
+                return instance;
+            }
+        }
+        double sum = 0;
+        for (ServiceInstance instance : instances) {
+            if (!excludeUriSet.contains(instance.getUri())) {
+                sum += instance.getWeight();
+            }
+        }
+        if (sum <= 0) {
+            return null;
+        }
+        double point = ThreadLocalRandom.current().nextDouble(sum);
+        ServiceInstance last = null;
+        for (ServiceInstance instance : instances) {
+            if (excludeUriSet.contains(instance.getUri())) {
+                continue;
+            }
+            last = instance;
+            point -= instance.getWeight();
+            if (point < 0) {
+                return instance;
+            }
+        }
+        return last;
+    }
+
+    /**
+     * @return 全部实例的一致性哈希环
+     */
+    HashRing getRing() {
+        HashRing current = ring;
+        if (current == null) {
+            current = HashRing.of(instanceList);
+            ring = current;
+        }
+        return current;
+    }
+
+    /**
+     * 去除指定uri的实例,返回新的选择器
+     * @param uri 实例uri
+     * @return 新的选择器
+     */
+    public WeightedSelector without(String uri) {
+        List<ServiceInstance> list = new ArrayList<>(instances.length);
+        for (ServiceInstance instance : instances) {
+            if (!instance.getUri().equals(uri)) {
+                list.add(instance);
+            }
+        }
+        return list.size() == instances.length ? this : of(list);
+    }
+
+    /**
+     * 只包含元数据匹配的实例的选择器
+     * @param tags 元数据键值
+     * @return 选择器,没有匹配的实例时为EMPTY
+     */
+    public WeightedSelector filter(Map<String, String> tags) {
+        if (tags == null || tags.isEmpty()) {
+            return this;
+        }
+        WeightedSelector selector = filterMap.get(tags);
+        if (selector == null) {
+            List<ServiceInstance> list = new ArrayList<>(instances.length);
+            for (ServiceInstance instance : instances) {
+                if (instance.matches(tags)) {
+                    list.add(instance);
+                }
+            }
+            selector = list.size() == instances.length ? this : of(list);
+            if (filterMap.size() < MAX_FILTER_NUM) {
+                filterMap.putIfAbsent(new HashMap<>(tags), selector);
+            }
+        }
+        return selector;
+    }
+
+    /**
+     * 按集群划分实例
+     * @param cluster 集群名
+     * @return [集群内实例的选择器, 其他实例的选择器]
+     */
+    WeightedSelector[] partition(String cluster) {
+        Partition current = partition;
+        if (current == null || !current.cluster.equals(cluster)) {
+            List<ServiceInstance> local = new ArrayList<>(instances.length);
+            List<ServiceInstance> remote = new ArrayList<>(instances.length);
+            for (ServiceInstance instance : instances) {
+                (instance.getCluster().equals(cluster) ? local : remote).add(instance);
+            }
+            current = new Partition(cluster, new WeightedSelector[]{
+                    local.size() == instances.length ? this : of(local),
+                    remote.size() == instances.length ? this : of(remote)});
+            partition = current;
+        }
+        return current.selectors;
+    }
+
+    /**
+     * @param cluster 集群名
+     * @return 集群内已注册实例(包括不健康的实例)的总权重
+     */
+    public double getRegisteredWeight(String cluster) {
+        return registeredWeightMap.getOrDefault(cluster, 0D);
+    }
+
+    @JSONField(serialize = false)
+    public Map<String, Double> getRegisteredWeightMap() {
+        return registeredWeightMap;
+    }
+
+    public List<ServiceInstance> getInstances() {
+        return instanceList;
+    }
+
+    public double getTotalWeight() {
+        return totalWeight;
+    }
+
+    @JSONField(serialize = false)
+    public boolean isEmpty() {
+        return instances.length == 0;
+    }
+
+    public int size() {
+        return instances.length;
+    }
+
+    private static final class Partition {
+        private final String cluster;
+        private final WeightedSelector[] selectors;
+
+        private Partition(String cluster, WeightedSelector[] selectors) {
+            this.cluster = cluster;
+            this.selectors = selectors;
+        }
+    }
+}
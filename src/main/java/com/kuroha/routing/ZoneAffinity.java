@@ -0,0 +1,69 @@
+package com.kuroha.routing;
+
+import com.kuroha.utility.StringUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+/**
+ * 同集群优先路由
+ * 优先调用与本机nacos集群名相同的实例,本集群可用容量(未熔断实例的权重占已注册权重的比例)
+ * 低于阈值时,按容量缺口的比例将请求分给其他集群,本集群没有实例时直接调用其他集群
+ * @author kuroha
+ */
+@Component
+public class ZoneAffinity {
+
+    /**
+     * 不区分集群
+     */
+    public static final ZoneAffinity NONE = new ZoneAffinity("", 0);
+
+    private final String zone;
+    private final double minHealthyPercent;
+
+    /**
+     * @param zone 本机所在的nacos集群名,为空时不区分集群
+     * @param minHealthyPercent 本集群可用容量低于该百分比时开始将请求分给其他集群
+     */
+    public ZoneAffinity(@Value("${cloud.zone.name:}") String zone,
+                        @Value("${cloud.zone.min-healthy-percent:70}") double minHealthyPercent) {
+        this.zone = StringUtil.isBlank(zone) ? null : zone.trim();
+        this.minHealthyPercent = minHealthyPercent;
+    }
+
+    /**
+     * 选择本次调用的实例范围
+     * @param selector 服务实例选择器
+     * @param stateFunction 获取实例运行状态
+     * @return 本集群或其他集群的选择器,不区分集群时返回原选择器
+     */
+    public WeightedSelector scope(WeightedSelector selector, Function<String, InstanceState> stateFunction) {
+        if (zone == null || selector.isEmpty()) {
+            return selector;
+        }
+        WeightedSelector[] partition = selector.partition(zone);
+        WeightedSelector local = partition[0];
+        WeightedSelector remote = partition[1];
+        if (local.isEmpty() || remote.isEmpty()) {
+            return selector;
+        }
+        double available = 0;
+        for (ServiceInstance instance : local.getInstances()) {
+            if (stateFunction.apply(instance.getUri()).getBreaker().getState() != CircuitBreaker.State.OPEN) {
+                available += instance.getWeight();
+            }
+        }
+        double healthyPercent = available * 100 / Math.max(selector.getRegisteredWeight(zone), local.getTotalWeight());
+        if (healthyPercent >= minHealthyPercent) {
+            return local;
+        }
+        return ThreadLocalRandom.current().nextDouble(minHealthyPercent) < healthyPercent ? local : remote;
+    }
+
+    public String getZone() {
+        return zone;
+    }
+}
@@ -0,0 +1,49 @@
+package com.kuroha.service;
+
+import com.kuroha.policy.FanOutPolicy;
+import com.kuroha.policy.RetryPolicy;
+import org.springframework.http.HttpMethod;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 非阻塞服务调用,路由、权重及失败切换规则与CloudService一致
+ * @author kuroha
+ */
+public interface AsyncCloudService {
+
+    CompletableFuture<String> get(String serviceName, String apiName);
+
+    CompletableFuture<String> post(String serviceName, String apiName, Object body);
+
+    <T> CompletableFuture<T> get(String serviceName, String apiName, Class<T> clazz);
+
+    <T> CompletableFuture<T> post(String serviceName, String apiName, Object body, Class<T> clazz);
+
+    CompletableFuture<Boolean> put(String serviceName, String apiName, Object body);
+
+    CompletableFuture<Boolean> delete(String serviceName, String apiName);
+
+    <T> CompletableFuture<T> get(String serviceName, String apiName, Class<T> clazz, RetryPolicy retryPolicy);
+
+    <T> CompletableFuture<T> post(String serviceName, String apiName, Object body, Class<T> clazz, RetryPolicy retryPolicy);
+
+    CompletableFuture<Boolean> put(String serviceName, String apiName, Object body, RetryPolicy retryPolicy);
+
+    CompletableFuture<Boolean> delete(String serviceName, String apiName, RetryPolicy retryPolicy);
+
+    <T> CompletableFuture<T> getByKey(String serviceName, String apiName, String routingKey, Class<T> clazz);
+
+    <T> CompletableFuture<T> postByKey(String serviceName, String apiName, String routingKey, Object body, Class<T> clazz);
+
+    CompletableFuture<Boolean> putByKey(String serviceName, String apiName, String routingKey, Object body);
+
+    CompletableFuture<Boolean> deleteByKey(String serviceName, String apiName, String routingKey);
+
+    <T> CompletableFuture<FanOutResult<T>> broadcast(String serviceName, String apiName, HttpMethod method, Object body,
+                                                     Class<T> clazz, FanOutPolicy fanOutPolicy);
+
+    <T> CompletableFuture<FanOutResult<T>> scatter(List<FanOutTarget> targets, Class<T> clazz, FanOutPolicy fanOutPolicy);
+
+}
@@ -1,5 +1,15 @@
 package com.kuroha.service;
 
+import com.kuroha.http.BodyCodec;
+import com.kuroha.http.ChunkHandler;
+import com.kuroha.http.StreamHandler;
+import com.kuroha.http.StreamWriter;
+import com.kuroha.policy.RetryPolicy;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+
+import java.io.InputStream;
+
 /**
  * @author kuroha
  */
@@ -17,8 +27,45 @@ public interface CloudService {
 
     boolean delete(String serviceName, String apiName);
 
+    <T> T get(String serviceName, String apiName, Class<T> clazz, RetryPolicy retryPolicy);
+
+    <T> T post(String serviceName, String apiName, Object body, Class<T> clazz, RetryPolicy retryPolicy);
+
+    boolean put(String serviceName, String apiName, Object body, RetryPolicy retryPolicy);
+
+    boolean delete(String serviceName, String apiName, RetryPolicy retryPolicy);
+
+    <T> T get(String serviceName, String apiName, Class<T> clazz, BodyCodec codec);
+
+    <T> T post(String serviceName, String apiName, Object body, Class<T> clazz, BodyCodec codec);
+
+    boolean put(String serviceName, String apiName, Object body, BodyCodec codec);
+
+    <T> T getByKey(String serviceName, String apiName, String routingKey, Class<T> clazz);
+
+    <T> T postByKey(String serviceName, String apiName, String routingKey, Object body, Class<T> clazz);
+
+    boolean putByKey(String serviceName, String apiName, String routingKey, Object body);
+
+    boolean deleteByKey(String serviceName, String apiName, String routingKey);
+
+    <T> T getStream(String serviceName, String apiName, StreamHandler<T> handler);
+
+    long getChunks(String serviceName, String apiName, ChunkHandler handler);
+
+    <T> T postStream(String serviceName, String apiName, StreamWriter writer, StreamHandler<T> handler);
+
+    <T> T postStream(String serviceName, String apiName, InputStream body, StreamHandler<T> handler);
+
+    <T> T stream(String serviceName, String apiName, HttpMethod method, MediaType contentType,
+                 StreamWriter writer, StreamHandler<T> handler, RetryPolicy retryPolicy);
+
     void initRoutingMap();
 
     String getAllUri();
 
+    String getPoolStats();
+
+    String getMetrics();
+
 }
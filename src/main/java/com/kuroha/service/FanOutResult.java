@@ -0,0 +1,83 @@
+package com.kuroha.service;
+
+import lombok.Getter;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 批量调用结果,每个目标单独记录状态,未完成的目标也包含在内
+ * @author kuroha
+ */
+@Getter
+public class FanOutResult<T> {
+
+    private final List<TargetResult<T>> results;
+    private final int successCount;
+    /**
+     * 是否因超时结束
+     */
+    private final boolean timedOut;
+
+    public FanOutResult(List<TargetResult<T>> results, boolean timedOut) {
+        this.results = Collections.unmodifiableList(results);
+        this.successCount = (int) results.stream().filter(result -> result.getStatus() == Status.SUCCESS).count();
+        this.timedOut = timedOut;
+    }
+
+    /**
+     * 目标调用状态
+     */
+    public enum Status {
+        /**
+         * 成功
+         */
+        SUCCESS,
+        /**
+         * 失败
+         */
+        FAILED,
+        /**
+         * 整体超时时仍未完成,已取消
+         */
+        TIMEOUT,
+        /**
+         * 已达到所需成功数,进行中的调用已取消
+         */
+        CANCELLED,
+        /**
+         * 结束时尚未开始
+         */
+        SKIPPED
+    }
+
+    /**
+     * 单个目标的调用结果
+     */
+    @Getter
+    public static class TargetResult<T> {
+        private final String serviceName;
+        private final String apiName;
+        /**
+         * 实例地址,按服务路由时为null
+         */
+        private final String instance;
+        private final Status status;
+        private final T value;
+        private final String error;
+        /**
+         * 耗时,毫秒,未开始时为0
+         */
+        private final long elapsed;
+
+        public TargetResult(String serviceName, String apiName, String instance, Status status, T value, String error, long elapsed) {
+            this.serviceName = serviceName;
+            this.apiName = apiName;
+            this.instance = instance;
+            this.status = status;
+            this.value = value;
+            this.error = error;
+            this.elapsed = elapsed;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.kuroha.service;
+
+import lombok.Getter;
+import org.springframework.http.HttpMethod;
+
+/**
+ * 批量调用的目标接口
+ * @author kuroha
+ */
+@Getter
+public class FanOutTarget {
+
+    private final String serviceName;
+    private final String apiName;
+    private final HttpMethod method;
+    private final Object body;
+
+    public FanOutTarget(String serviceName, String apiName, HttpMethod method, Object body) {
+        this.serviceName = serviceName;
+        this.apiName = apiName;
+        this.method = method;
+        this.body = body;
+    }
+
+    public static FanOutTarget get(String serviceName, String apiName) {
+        return new FanOutTarget(serviceName, apiName, HttpMethod.GET, null);
+    }
+
+    public static FanOutTarget post(String serviceName, String apiName, Object body) {
+        return new FanOutTarget(serviceName, apiName, HttpMethod.POST, body);
+    }
+}
@@ -0,0 +1,753 @@
+package com.kuroha.service.impl;
+
+import com.kuroha.config.CloudSettings;
+import com.kuroha.config.CloudSettingsLoader;
+import com.kuroha.http.AsyncHttpTransport;
+import com.kuroha.http.BodyCodec;
+import com.kuroha.http.CodecSelector;
+import com.kuroha.metrics.CallMetrics;
+import com.kuroha.metrics.RollingLatencyHistogram;
+import com.kuroha.policy.ConcurrencyLimiter;
+import com.kuroha.policy.FanOutPolicy;
+import com.kuroha.policy.LimitExceededException;
+import com.kuroha.policy.RetryBudget;
+import com.kuroha.policy.RetryPolicy;
+import com.kuroha.policy.TokenBudget;
+import com.kuroha.routing.FailureKind;
+import com.kuroha.routing.InstanceState;
+import com.kuroha.routing.RoutingListener;
+import com.kuroha.routing.ServiceInstance;
+import com.kuroha.routing.ServiceRouter;
+import com.kuroha.routing.WeightedSelector;
+import com.kuroha.service.AsyncCloudService;
+import com.kuroha.service.FanOutResult;
+import com.kuroha.service.FanOutTarget;
+import com.kuroha.utility.StringUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpMethod;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+import static com.kuroha.service.impl.CloudServiceImpl.*;
+
+/**
+ * 非阻塞服务调用 与CloudServiceImpl共用路由表
+ * @author kuroha
+ */
+@Slf4j
+@Service
+public class AsyncCloudServiceImpl implements AsyncCloudService {
+
+    /**
+     * 对冲延迟统计的窗口时长
+     */
+    private static final int HEDGE_WINDOW_TIME = 60000;
+    /**
+     * 窗口内样本数达到该值才开始对冲
+     */
+    private static final int HEDGE_MIN_SAMPLES = 100;
+    /**
+     * 对冲令牌最多累积数
+     */
+    private static final int HEDGE_MAX_TOKENS = 10;
+    /**
+     * 每个服务最多统计对冲延迟的接口数,超过后其余接口不对冲
+     */
+    private static final int HEDGE_MAX_API_NUM = 256;
+
+    private final AsyncHttpTransport httpTransport;
+
+    private final ServiceRouter serviceRouter;
+    private final RetryBudget retryBudget;
+    private final CallMetrics callMetrics;
+    private final CodecSelector codecSelector;
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private final CloudSettingsLoader cloudSettingsLoader;
+
+    private final boolean hedgeEnabled;
+    private final double hedgePercentile;
+    private final TokenBudget hedgeBudget;
+    /**
+     * 各服务接口的近期响应时间 服务名 -> 接口路径 -> 直方图
+     */
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, RollingLatencyHistogram>> hedgeLatencyMap = new ConcurrentHashMap<>();
+    /**
+     * 服务从路由表移除时删除其对冲延迟统计
+     */
+    private final RoutingListener hedgeLatencyCleaner = new RoutingListener() {
+        @Override
+        public void onUpdate(String serviceName, WeightedSelector selector) {
+        }
+
+        @Override
+        public void onRemove(String serviceName) {
+            hedgeLatencyMap.remove(serviceName);
+        }
+    };
+    /**
+     * 对冲及重试退避定时器
+     */
+    private final ScheduledThreadPoolExecutor timer;
+
+    /**
+     * @param serviceRouter 路由表
+     * @param retryBudget 重试预算
+     * @param callMetrics 调用统计
+     * @param codecSelector 各服务的请求体编码
+     * @param concurrencyLimiter 各服务的并发上限,超过上限的请求直接失败
+     * @param cloudSettingsLoader 超时时间等可在运行中调整的参数
+     * @param hedgeEnabled get请求是否开启对冲
+     * @param hedgePercentile 超过该百分位的响应时间仍未返回时发起对冲请求
+     * @param hedgeBudgetPercent 对冲请求最多占正常请求的百分比
+     */
+    public AsyncCloudServiceImpl(ServiceRouter serviceRouter, RetryBudget retryBudget, CallMetrics callMetrics, CodecSelector codecSelector,
+                                 ConcurrencyLimiter concurrencyLimiter, CloudSettingsLoader cloudSettingsLoader,
+                                 @Value("${cloud.hedge.enabled:false}") boolean hedgeEnabled,
+                                 @Value("${cloud.hedge.percentile:95}") double hedgePercentile,
+                                 @Value("${cloud.hedge.budget-percent:10}") double hedgeBudgetPercent) {
+        CloudSettings settings = cloudSettingsLoader.get();
+        httpTransport = new AsyncHttpTransport(settings.getConnectTimeout(), settings.getReadTimeout(),
+                settings.getPoolWaitTimeout(), SERVICE_IDLE_TIME_OUT, SERVICE_MAX_CONNECTIONS, INSTANCE_MIN_CONNECTIONS,
+                codecSelector.getGzipThreshold());
+        cloudSettingsLoader.addListener(updated -> httpTransport.setTimeouts(updated.getConnectTimeout(),
+                updated.getReadTimeout(), updated.getPoolWaitTimeout()));
+        this.serviceRouter = serviceRouter;
+        serviceRouter.addListener(httpTransport);
+        serviceRouter.addListener(hedgeLatencyCleaner);
+        this.retryBudget = retryBudget;
+        this.callMetrics = callMetrics;
+        this.codecSelector = codecSelector;
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.cloudSettingsLoader = cloudSettingsLoader;
+        this.hedgeEnabled = hedgeEnabled;
+        this.hedgePercentile = hedgePercentile;
+        this.hedgeBudget = new TokenBudget(hedgeBudgetPercent, HEDGE_MAX_TOKENS);
+        timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "cloud-async-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * 关闭连接池
+     */
+    @PreDestroy
+    public void destroy() {
+        timer.shutdownNow();
+        httpTransport.close();
+    }
+
+    @Override
+    public CompletableFuture<String> get(String serviceName, String apiName) {
+        return this.get(serviceName, apiName, String.class);
+    }
+
+    @Override
+    public CompletableFuture<String> post(String serviceName, String apiName, Object body) {
+        return this.post(serviceName, apiName, body, String.class);
+    }
+
+    @Override
+    public <T> CompletableFuture<T> get(String serviceName, String apiName, Class<T> clazz) {
+        return this.get(serviceName, apiName, clazz, RetryPolicy.DEFAULT);
+    }
+
+    @Override
+    public <T> CompletableFuture<T> post(String serviceName, String apiName, Object body, Class<T> clazz) {
+        return this.post(serviceName, apiName, body, clazz, RetryPolicy.DEFAULT);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> put(String serviceName, String apiName, Object body) {
+        return this.put(serviceName, apiName, body, RetryPolicy.DEFAULT);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> delete(String serviceName, String apiName) {
+        return this.delete(serviceName, apiName, RetryPolicy.DEFAULT);
+    }
+
+    /**
+     * get请求,开启对冲时超过近期响应时间百分位仍未返回,则向另一实例发送相同请求,取先返回的结果
+     */
+    @Override
+    public <T> CompletableFuture<T> get(String serviceName, String apiName, Class<T> clazz, RetryPolicy retryPolicy) {
+        return this.get(serviceName, apiName, clazz, retryPolicy, false);
+    }
+
+    /**
+     * get请求,调用方已获取并发许可时由第一次尝试直接使用,不再重新获取
+     * @param permitAcquired 调用方是否已获取一个并发许可,许可在第一次尝试结束或未发起尝试时归还
+     */
+    <T> CompletableFuture<T> get(String serviceName, String apiName, Class<T> clazz, RetryPolicy retryPolicy, boolean permitAcquired) {
+        BodyCodec codec = codecSelector.getCodec(serviceName);
+        AsyncInvocation<T> invocation = (url, timeout) -> httpTransport.execute(HttpMethod.GET, url, null, clazz, timeout, codec);
+        if (hedgeEnabled) {
+            return this.hedge(serviceName, apiName, retryPolicy, invocation, permitAcquired);
+        }
+        return this.execute(serviceName, apiName, HttpMethod.GET, retryPolicy, invocation, null, null, permitAcquired);
+    }
+
+    @Override
+    public <T> CompletableFuture<T> post(String serviceName, String apiName, Object body, Class<T> clazz, RetryPolicy retryPolicy) {
+        return this.execute(serviceName, apiName, HttpMethod.POST, retryPolicy,
+                (url, timeout) -> httpTransport.execute(HttpMethod.POST, url, body, clazz, timeout, codecSelector.getCodec(serviceName)), null, null);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> put(String serviceName, String apiName, Object body, RetryPolicy retryPolicy) {
+        return this.execute(serviceName, apiName, HttpMethod.PUT, retryPolicy,
+                (url, timeout) -> httpTransport.execute(HttpMethod.PUT, url, body, null, timeout, codecSelector.getCodec(serviceName)).thenApply(v -> true), false, null);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> delete(String serviceName, String apiName, RetryPolicy retryPolicy) {
+        return this.execute(serviceName, apiName, HttpMethod.DELETE, retryPolicy,
+                (url, timeout) -> httpTransport.execute(HttpMethod.DELETE, url, null, null, timeout, codecSelector.getCodec(serviceName)).thenApply(v -> true), false, null);
+    }
+
+    @Override
+    public <T> CompletableFuture<T> getByKey(String serviceName, String apiName, String routingKey, Class<T> clazz) {
+        return this.get(serviceName, apiName, clazz, this.keyPolicy(serviceName, routingKey));
+    }
+
+    @Override
+    public <T> CompletableFuture<T> postByKey(String serviceName, String apiName, String routingKey, Object body, Class<T> clazz) {
+        return this.post(serviceName, apiName, body, clazz, this.keyPolicy(serviceName, routingKey));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> putByKey(String serviceName, String apiName, String routingKey, Object body) {
+        return this.put(serviceName, apiName, body, this.keyPolicy(serviceName, routingKey));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteByKey(String serviceName, String apiName, String routingKey) {
+        return this.delete(serviceName, apiName, this.keyPolicy(serviceName, routingKey));
+    }
+
+    /**
+     * 向服务的全部实例发送相同请求,不切换实例
+     * @param serviceName 服务名
+     * @param apiName 服务接口名
+     * @param method 请求方法
+     * @param body 请求体,无请求体时为null
+     * @param clazz 返回类型
+     * @param fanOutPolicy 批量调用策略
+     * @return 各实例的调用结果
+     */
+    @Override
+    public <T> CompletableFuture<FanOutResult<T>> broadcast(String serviceName, String apiName, HttpMethod method, Object body,
+                                                            Class<T> clazz, FanOutPolicy fanOutPolicy) {
+        // 首次调用时解析服务
+        serviceRouter.getUri(serviceName);
+        WeightedSelector selector = serviceRouter.getRoutingMap().get(serviceName);
+        List<ServiceInstance> instances = selector == null ? Collections.emptyList() : selector.getInstances();
+        long deadline = System.currentTimeMillis() + fanOutPolicy.getTimeout();
+        int readTimeout = cloudSettingsLoader.get().getService(serviceName).getReadTimeout();
+        BodyCodec codec = codecSelector.getCodec(serviceName);
+        List<FanOutCall<T>> calls = new ArrayList<>(instances.size());
+        for (ServiceInstance instance : instances) {
+            String uri = instance.getUri();
+            calls.add(new FanOutCall<>(serviceName, apiName, uri, () -> {
+                // 超过并发上限时抛出LimitExceededException,记为该实例调用失败
+                concurrencyLimiter.tryAcquire(serviceName);
+                InstanceState state = serviceRouter.getInstanceState(uri);
+                CallMetrics.CallStats stats = callMetrics.getStats(serviceName, apiName, uri);
+                long start = state.begin();
+                CompletableFuture<T> call = httpTransport.execute(method, uri + apiName, body, clazz,
+                        (int) Math.max(Math.min(deadline - System.currentTimeMillis(), readTimeout), 1), codec);
+                call.whenComplete((value, e) -> {
+                    if (e == null) {
+                        state.onSuccess(start);
+                        stats.onSuccess(start);
+                        concurrencyLimiter.onSuccess(serviceName, start);
+                    } else if (call.isCancelled()) {
+                        state.onCancel();
+                        concurrencyLimiter.onCancel(serviceName);
+                    } else {
+                        FailureKind kind = FailureKind.of(e instanceof CompletionException ? e.getCause() : e);
+                        state.onFailure(start, kind);
+                        stats.onFailure(start, kind);
+                        concurrencyLimiter.onFailure(serviceName, start, kind);
+                    }
+                });
+                return call;
+            }));
+        }
+        return new FanOut<>(calls, fanOutPolicy).start();
+    }
+
+    /**
+     * 并行调用多个服务接口,各接口按正常路由及失败切换规则调用
+     * @param targets 目标接口
+     * @param clazz 返回类型
+     * @param fanOutPolicy 批量调用策略
+     * @return 各接口的调用结果
+     */
+    @Override
+    public <T> CompletableFuture<FanOutResult<T>> scatter(List<FanOutTarget> targets, Class<T> clazz, FanOutPolicy fanOutPolicy) {
+        CloudSettings settings = cloudSettingsLoader.get();
+        List<FanOutCall<T>> calls = new ArrayList<>(targets.size());
+        for (FanOutTarget target : targets) {
+            RetryPolicy retryPolicy = settings.getService(target.getServiceName()).resolve(RetryPolicy.DEFAULT).toBuilder()
+                    .timeout(fanOutPolicy.getTimeout())
+                    .build();
+            calls.add(new FanOutCall<>(target.getServiceName(), target.getApiName(), null, () -> this.execute(
+                    target.getServiceName(), target.getApiName(), target.getMethod(), retryPolicy,
+                    (url, timeout) -> httpTransport.execute(target.getMethod(), url, target.getBody(), clazz, timeout,
+                            codecSelector.getCodec(target.getServiceName())), null, null)));
+        }
+        return new FanOut<>(calls, fanOutPolicy).start();
+    }
+
+    /**
+     * 服务配置的重试策略加上路由键
+     * @param serviceName 服务名
+     * @param routingKey 路由键
+     * @return 重试策略
+     */
+    private RetryPolicy keyPolicy(String serviceName, String routingKey) {
+        return cloudSettingsLoader.get().getService(serviceName).resolve(RetryPolicy.DEFAULT).toBuilder()
+                .routingKey(routingKey)
+                .build();
+    }
+
+    /**
+     * 对冲调用,先返回非空结果的一方生效并取消另一方
+     * 对冲延迟只统计主请求:成功时记录耗时,因较慢被取消时记录取消前的耗时(实际耗时不小于该值),失败不记录
+     * @param serviceName 服务名
+     * @param apiName 服务接口名
+     * @param retryPolicy 重试策略
+     * @param invocation 实际调用
+     * @param permitAcquired 调用方是否已获取并发许可,由主请求使用
+     * @return 调用结果
+     */
+    private <T> CompletableFuture<T> hedge(String serviceName, String apiName, RetryPolicy retryPolicy, AsyncInvocation<T> invocation,
+                                           boolean permitAcquired) {
+        RollingLatencyHistogram histogram = this.getHedgeLatency(serviceName, apiName);
+        if (histogram == null) {
+            return this.execute(serviceName, apiName, HttpMethod.GET, retryPolicy, invocation, null, null, permitAcquired);
+        }
+        hedgeBudget.deposit();
+        long delay = histogram.getPercentile(hedgePercentile, HEDGE_MIN_SAMPLES);
+        // 主请求与对冲请求共享已使用的实例,保证对冲发往不同实例
+        Set<String> uriSet = ConcurrentHashMap.newKeySet();
+        long start = System.nanoTime();
+        CompletableFuture<T> primary = this.execute(serviceName, apiName, HttpMethod.GET, retryPolicy, invocation, null, uriSet, permitAcquired);
+        primary.whenComplete((value, e) -> {
+            if (value != null || primary.isCancelled()) {
+                histogram.recordNanos(System.nanoTime() - start);
+            }
+        });
+        if (delay <= 0) {
+            return primary;
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(1);
+        AtomicReference<CompletableFuture<T>> hedged = new AtomicReference<>();
+        ScheduledFuture<?> hedgeTask = timer.schedule(() -> {
+            if (result.isDone() || !hedgeBudget.tryWithdraw()) {
+                return;
+            }
+            pending.incrementAndGet();
+            if (result.isDone()) {
+                return;
+            }
+            log.debug(serviceName + "/" + apiName + "超过" + delay + "us未返回,发起对冲请求");
+            CompletableFuture<T> future = this.execute(serviceName, apiName, HttpMethod.GET, retryPolicy, invocation, null, uriSet);
+            hedged.set(future);
+            this.race(future, result, pending);
+        }, delay, TimeUnit.MICROSECONDS);
+        primary.whenComplete((value, e) -> hedgeTask.cancel(false));
+        this.race(primary, result, pending);
+        result.whenComplete((value, e) -> {
+            primary.cancel(true);
+            CompletableFuture<T> future = hedged.get();
+            if (future != null) {
+                future.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    private <T> void race(CompletableFuture<T> source, CompletableFuture<T> result, AtomicInteger pending) {
+        source.whenComplete((value, e) -> {
+            if (value != null) {
+                result.complete(value);
+            } else if (pending.decrementAndGet() == 0) {
+                result.complete(null);
+            }
+        });
+    }
+
+    /**
+     * 获取接口的对冲延迟统计,接口名不含查询参数
+     * @param serviceName 服务名
+     * @param apiName 服务接口名
+     * @return 直方图,服务的接口数已达到上限时返回null
+     */
+    private RollingLatencyHistogram getHedgeLatency(String serviceName, String apiName) {
+        ConcurrentHashMap<String, RollingLatencyHistogram> apiMap = hedgeLatencyMap.get(serviceName);
+        if (apiMap == null) {
+            apiMap = hedgeLatencyMap.computeIfAbsent(serviceName, key -> new ConcurrentHashMap<>());
+        }
+        String path = CallMetrics.apiPath(apiName);
+        RollingLatencyHistogram histogram = apiMap.get(path);
+        if (histogram == null && apiMap.size() < HEDGE_MAX_API_NUM) {
+            histogram = apiMap.computeIfAbsent(path, key -> new RollingLatencyHistogram(HEDGE_WINDOW_TIME));
+        }
+        return histogram;
+    }
+
+    /**
+     * 执行调用,记录实例响应时间,失败时记录到实例熔断器,按重试策略及重试预算切换到其他实例重试
+     * @param serviceName 服务名
+     * @param apiName 服务接口名
+     * @param method 请求方法
+     * @param retryPolicy 重试策略
+     * @param invocation 实际调用
+     * @param failValue 无可用实例或不再重试时的返回值
+     * @param uriSet 已使用的实例,不为空时从其余实例中选择
+     * @return 调用结果,取消时同时取消进行中的请求
+     */
+    private <T> CompletableFuture<T> execute(String serviceName, String apiName, HttpMethod method, RetryPolicy retryPolicy,
+                                             AsyncInvocation<T> invocation, T failValue, Set<String> uriSet) {
+        return this.execute(serviceName, apiName, method, retryPolicy, invocation, failValue, uriSet, false);
+    }
+
+    /**
+     * @param permitAcquired 调用方是否已获取一个并发许可,由第一次尝试使用,未发起尝试时归还
+     */
+    private <T> CompletableFuture<T> execute(String serviceName, String apiName, HttpMethod method, RetryPolicy retryPolicy,
+                                             AsyncInvocation<T> invocation, T failValue, Set<String> uriSet, boolean permitAcquired) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        CloudSettings.ServiceSettings settings = cloudSettingsLoader.get().getService(serviceName);
+        retryPolicy = settings.resolve(retryPolicy);
+        String uri;
+        try {
+            uri = uriSet == null || uriSet.isEmpty() ? serviceRouter.getUri(serviceName, retryPolicy.getMetadata(), retryPolicy.getRoutingKey())
+                    : serviceRouter.getUriThrow(serviceName, uriSet, retryPolicy.getMetadata(), retryPolicy.getRoutingKey());
+        } catch (RuntimeException e) {
+            if (permitAcquired) {
+                concurrencyLimiter.onCancel(serviceName);
+            }
+            throw e;
+        }
+        if (StringUtil.isBlank(uri)) {
+            if (permitAcquired) {
+                concurrencyLimiter.onCancel(serviceName);
+            }
+            result.complete(failValue);
+            return result;
+        }
+        Attempt<T> attempt = new Attempt<>(serviceName, apiName, method, retryPolicy, settings.getReadTimeout(),
+                invocation, failValue, result, permitAcquired);
+        attempt.run(uri, uriSet);
+        return result;
+    }
+
+    /**
+     * 一次调用的重试状态
+     */
+    private class Attempt<T> {
+        private final String serviceName;
+        private final String apiName;
+        private final HttpMethod method;
+        private final RetryPolicy retryPolicy;
+        private final int readTimeout;
+        private final AsyncInvocation<T> invocation;
+        private final T failValue;
+        private final CompletableFuture<T> result;
+        private final long deadline;
+        private int count;
+        /**
+         * 是否持有调用方已获取的并发许可,第一次尝试使用后清除
+         */
+        private boolean permitHeld;
+
+        private Attempt(String serviceName, String apiName, HttpMethod method, RetryPolicy retryPolicy, int readTimeout,
+                        AsyncInvocation<T> invocation, T failValue, CompletableFuture<T> result, boolean permitHeld) {
+            this.serviceName = serviceName;
+            this.apiName = apiName;
+            this.method = method;
+            this.retryPolicy = retryPolicy;
+            this.readTimeout = readTimeout;
+            this.invocation = invocation;
+            this.failValue = failValue;
+            this.result = result;
+            this.deadline = System.currentTimeMillis() + retryPolicy.getTimeout();
+            this.permitHeld = permitHeld;
+        }
+
+        /**
+         * 向实例发起一次尝试,任何异常都会归还已占用的并发名额及探测名额并以failValue结束调用,保证result一定完成
+         * @param uri 实例uri
+         * @param uriSet 已使用的实例
+         */
+        private void run(String uri, Set<String> uriSet) {
+            InstanceState state = serviceRouter.getInstanceState(uri);
+            boolean acquired = permitHeld;
+            permitHeld = false;
+            if (result.isDone()) {
+                state.onReject();
+                if (acquired) {
+                    concurrencyLimiter.onCancel(serviceName);
+                }
+                return;
+            }
+            if (!acquired) {
+                try {
+                    concurrencyLimiter.tryAcquire(serviceName);
+                } catch (LimitExceededException e) {
+                    log.warn(e.getMessage());
+                    state.onReject();
+                    result.complete(failValue);
+                    return;
+                }
+            }
+            boolean begun = false;
+            try {
+                count++;
+                if (uriSet != null) {
+                    uriSet.add(uri);
+                }
+                CallMetrics.CallStats stats = callMetrics.getStats(serviceName, apiName, uri);
+                if (count > 1) {
+                    stats.onRetry();
+                }
+                long start = state.begin();
+                begun = true;
+                CompletableFuture<T> call = invocation.invoke(uri + apiName,
+                        (int) Math.max(Math.min(deadline - System.currentTimeMillis(), readTimeout), 1));
+                result.whenComplete((value, e) -> {
+                    if (result.isCancelled()) {
+                        call.cancel(true);
+                    }
+                });
+                call.whenComplete((value, e) -> {
+                    try {
+                        this.onComplete(uri, uriSet, state, stats, start, value, e);
+                    } catch (RuntimeException ex) {
+                        log.error(ex.getMessage(), ex);
+                        result.complete(failValue);
+                    }
+                });
+            } catch (RuntimeException e) {
+                log.error(e.getMessage(), e);
+                if (begun) {
+                    state.onCancel();
+                } else {
+                    state.onReject();
+                }
+                concurrencyLimiter.onCancel(serviceName);
+                result.complete(failValue);
+            }
+        }
+
+        /**
+         * 一次尝试结束,记录结果,失败时按重试策略切换到其他实例
+         */
+        private void onComplete(String uri, Set<String> uriSet, InstanceState state, CallMetrics.CallStats stats,
+                                long start, T value, Throwable e) {
+            if (result.isDone()) {
+                state.onCancel();
+                concurrencyLimiter.onCancel(serviceName);
+                return;
+            }
+            if (e == null) {
+                state.onSuccess(start);
+                stats.onSuccess(start);
+                concurrencyLimiter.onSuccess(serviceName, start);
+                retryBudget.deposit();
+                result.complete(value);
+                return;
+            }
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            log.error(cause.getMessage(), cause);
+            FailureKind kind = FailureKind.of(cause);
+            state.onFailure(start, kind);
+            stats.onFailure(start, kind);
+            concurrencyLimiter.onFailure(serviceName, start, kind);
+            long delay = retryPolicy.retryDelay(method, cause, count, deadline);
+            if (delay < 0) {
+                result.complete(failValue);
+                return;
+            }
+            // 先确认有可重试的实例,没有时不消耗重试预算也不等待
+            Set<String> triedSet = uriSet == null ? new HashSet<>() : uriSet;
+            triedSet.add(uri);
+            String next = serviceRouter.getUriThrow(serviceName, triedSet, retryPolicy.getMetadata(), retryPolicy.getRoutingKey());
+            if (StringUtil.isBlank(next)) {
+                result.complete(failValue);
+                return;
+            }
+            if (!retryBudget.tryWithdraw()) {
+                serviceRouter.getInstanceState(next).onReject();
+                result.complete(failValue);
+                return;
+            }
+            stats.onFailover();
+            if (delay == 0) {
+                this.run(next, triedSet);
+                return;
+            }
+            try {
+                timer.schedule(() -> this.run(next, triedSet), delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ex) {
+                // 已关闭
+                serviceRouter.getInstanceState(next).onReject();
+                result.complete(failValue);
+            }
+        }
+    }
+
+    /**
+     * 批量调用中的单个目标
+     */
+    private static class FanOutCall<T> {
+        private final String serviceName;
+        private final String apiName;
+        private final String instance;
+        private final Supplier<CompletableFuture<T>> invocation;
+
+        private FanOutCall(String serviceName, String apiName, String instance, Supplier<CompletableFuture<T>> invocation) {
+            this.serviceName = serviceName;
+            this.apiName = apiName;
+            this.instance = instance;
+            this.invocation = invocation;
+        }
+    }
+
+    /**
+     * 批量调用,限制并发数,超时或达到所需成功数后取消其余调用并返回已有结果
+     */
+    private class FanOut<T> {
+        private final List<FanOutCall<T>> calls;
+        private final FanOutPolicy fanOutPolicy;
+        private final AtomicReferenceArray<FanOutResult.TargetResult<T>> results;
+        private final AtomicReferenceArray<CompletableFuture<T>> futures;
+        private final long[] startTimes;
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicInteger completed = new AtomicInteger();
+        private final AtomicInteger successes = new AtomicInteger();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private final CompletableFuture<FanOutResult<T>> result = new CompletableFuture<>();
+
+        private FanOut(List<FanOutCall<T>> calls, FanOutPolicy fanOutPolicy) {
+            this.calls = calls;
+            this.fanOutPolicy = fanOutPolicy;
+            this.results = new AtomicReferenceArray<>(calls.size());
+            this.futures = new AtomicReferenceArray<>(calls.size());
+            this.startTimes = new long[calls.size()];
+        }
+
+        private CompletableFuture<FanOutResult<T>> start() {
+            if (calls.isEmpty()) {
+                result.complete(new FanOutResult<>(Collections.emptyList(), false));
+                return result;
+            }
+            ScheduledFuture<?> timeoutTask = timer.schedule(() -> this.finish(true), fanOutPolicy.getTimeout(), TimeUnit.MILLISECONDS);
+            result.whenComplete((value, e) -> {
+                timeoutTask.cancel(false);
+                // 调用方取消时同时取消进行中的调用
+                this.finish(false);
+            });
+            int concurrency = Math.max(1, Math.min(fanOutPolicy.getConcurrency(), calls.size()));
+            for (int i = 0; i < concurrency; i++) {
+                this.launchNext();
+            }
+            return result;
+        }
+
+        private void launchNext() {
+            int index = next.getAndIncrement();
+            if (index >= calls.size() || finished.get()) {
+                return;
+            }
+            startTimes[index] = System.nanoTime();
+            CompletableFuture<T> future;
+            try {
+                future = calls.get(index).invocation.get();
+            } catch (RuntimeException e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+            futures.set(index, future);
+            future.whenComplete((value, e) -> this.onComplete(index, value, e));
+        }
+
+        private void onComplete(int index, T value, Throwable e) {
+            if (finished.get()) {
+                return;
+            }
+            FanOutCall<T> call = calls.get(index);
+            long elapsed = (System.nanoTime() - startTimes[index]) / 1_000_000;
+            if (e == null && value != null) {
+                results.set(index, new FanOutResult.TargetResult<>(call.serviceName, call.apiName, call.instance,
+                        FanOutResult.Status.SUCCESS, value, null, elapsed));
+                successes.incrementAndGet();
+            } else {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                results.set(index, new FanOutResult.TargetResult<>(call.serviceName, call.apiName, call.instance,
+                        FanOutResult.Status.FAILED, null, cause == null ? "调用失败" : cause.toString(), elapsed));
+            }
+            int minSuccesses = fanOutPolicy.getMinSuccesses();
+            if (completed.incrementAndGet() == calls.size() || minSuccesses > 0 && successes.get() >= minSuccesses) {
+                this.finish(false);
+            } else {
+                this.launchNext();
+            }
+        }
+
+        private void finish(boolean timedOut) {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            List<FanOutResult.TargetResult<T>> list = new ArrayList<>(calls.size());
+            for (int i = 0; i < calls.size(); i++) {
+                FanOutResult.TargetResult<T> targetResult = results.get(i);
+                if (targetResult == null) {
+                    FanOutCall<T> call = calls.get(i);
+                    CompletableFuture<T> future = futures.get(i);
+                    if (future == null) {
+                        targetResult = new FanOutResult.TargetResult<>(call.serviceName, call.apiName, call.instance,
+                                FanOutResult.Status.SKIPPED, null, null, 0);
+                    } else {
+                        future.cancel(true);
+                        targetResult = new FanOutResult.TargetResult<>(call.serviceName, call.apiName, call.instance,
+                                timedOut ? FanOutResult.Status.TIMEOUT : FanOutResult.Status.CANCELLED, null, null,
+                                (System.nanoTime() - startTimes[i]) / 1_000_000);
+                    }
+                }
+                list.add(targetResult);
+            }
+            result.complete(new FanOutResult<>(list, timedOut));
+        }
+    }
+
+    /**
+     * 单次异步调用
+     */
+    @FunctionalInterface
+    private interface AsyncInvocation<T> {
+        /**
+         * 调用指定地址
+         * @param url 完整地址
+         * @param timeout 本次尝试的超时时间,毫秒
+         * @return 调用结果
+         */
+        CompletableFuture<T> invoke(String url, int timeout);
+    }
+}
@@ -1,32 +1,66 @@
 package com.kuroha.service.impl;
 
 import com.alibaba.fastjson.JSON;
-import com.alibaba.nacos.api.annotation.NacosInjected;
-import com.alibaba.nacos.api.exception.NacosException;
-import com.alibaba.nacos.api.naming.NamingService;
-import com.alibaba.nacos.api.naming.pojo.Instance;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.kuroha.cache.ResponseCache;
+import com.kuroha.config.CloudSettings;
+import com.kuroha.config.CloudSettingsLoader;
+import com.kuroha.http.BodyCodec;
+import com.kuroha.http.ChunkHandler;
+import com.kuroha.http.CodecSelector;
+import com.kuroha.http.GzipRequestInterceptor;
+import com.kuroha.http.PooledClientHttpRequestFactory;
+import com.kuroha.http.StreamCallbackException;
+import com.kuroha.http.StreamConsumedException;
+import com.kuroha.http.StreamHandler;
+import com.kuroha.http.StreamWriter;
+import com.kuroha.metrics.CallMetrics;
+import com.kuroha.metrics.CallTracer;
+import com.kuroha.metrics.TracePhase;
+import com.kuroha.metrics.TraceRecorder;
+import com.kuroha.policy.BulkheadFullException;
+import com.kuroha.policy.BulkheadRegistry;
+import com.kuroha.policy.ConcurrencyLimiter;
+import com.kuroha.policy.LimitExceededException;
+import com.kuroha.policy.RetryBudget;
+import com.kuroha.policy.RetryPolicy;
+import com.kuroha.routing.InstanceState;
+import com.kuroha.routing.FailureKind;
+import com.kuroha.routing.ServiceInstance;
+import com.kuroha.routing.ServiceRouter;
 import com.kuroha.service.CloudService;
 import com.kuroha.utility.StringUtil;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.StreamingHttpOutputMessage;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.RequestCallback;
 import org.springframework.web.client.RestTemplate;
 
-import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentSkipListSet;
+import javax.annotation.PreDestroy;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 
 /**
  * 服务调用 集成自实现路由表
@@ -39,62 +73,115 @@ import java.util.stream.Collectors;
 public class CloudServiceImpl implements CloudService {
 
     /**
-     * 服务权重随机最大数
+     * 检查是否需要刷新路由表的间隔,刷新间隔本身可在运行中调整
      */
-    private static final int RAND_NUM = 100;
+    private static final int REFRESH_CHECK_INTERVAL = 1000;
     /**
-     * 服务数量(偏大即可)
+     * 单个服务的最大连接数,按权重占比分配给各实例
      */
-    private static final int SERVICE_NUM = 10;
+    static final int SERVICE_MAX_CONNECTIONS = 200;
     /**
-     * 服务不可调用最大次数,超过则从服务列表中去除
+     * 单个实例的最小连接数
      */
-    private static final int SERVICE_ERROR_THROW_NUM = 3;
+    static final int INSTANCE_MIN_CONNECTIONS = 10;
     /**
-     * 服务不可调用的时间范围,比如 SERVICE_ERROR_TIME_OUT分钟内 SERVICE_ERROR_THROW_NUM不可调用则去除该ip
+     * 空闲连接保留时间
      */
-    private static final int SERVICE_ERROR_TIME_OUT = 1;
+    static final int SERVICE_IDLE_TIME_OUT = 60000;
     /**
-     * 服务链接超时时间
+     * 流式调用的缓冲区大小
      */
-    private static final int SERVICE_CONNECT_TIME_OUT = 3000;
+    private static final int STREAM_BUFFER_SIZE = 8192;
     /**
-     * 服务回调读取数据时间
+     * 路由表接口中每个服务的uri列表长度
      */
-    private static final int SERVICE_READ_TIME_OUT = 30000;
+    private static final int NAMING_URI_NUM = 100;
     /**
-     * 服务初始化时间
+     * 对冲get请求在调用超时时间之外额外等待结果的时间,毫秒,超过后取消调用
      */
-    private static final int SERVICE_INIT_TIME = 3600000;
+    private static final long HEDGE_WAIT_MARGIN = 1000;
 
-    private final ConcurrentHashMap<String, List<String>> routingMap = new ConcurrentHashMap<>();
-    private final ConcurrentSkipListSet<String> serviceSubscribeSet = new ConcurrentSkipListSet<>();
-    private final RestTemplate restTemplate;
-    private final Random random = new Random();
-    private final ReentrantLock lock = new ReentrantLock();
-    private final ReentrantLock checkLock = new ReentrantLock();
-    private final LoadingCache<String, AtomicInteger> cache;
+    /**
+     * 各编码的RestTemplate,共用连接池
+     */
+    private final Map<BodyCodec, RestTemplate> restTemplateMap = new EnumMap<>(BodyCodec.class);
+    /**
+     * 不缓冲请求体,用于流式调用
+     */
+    private final RestTemplate streamingRestTemplate;
+    private final PooledClientHttpRequestFactory requestFactory;
 
-    private final NamingService namingService;
+    private final ServiceRouter serviceRouter;
+    private final AsyncCloudServiceImpl asyncCloudService;
+    private final RetryBudget retryBudget;
+    private final CallMetrics callMetrics;
+    private final ResponseCache responseCache;
+    private final CodecSelector codecSelector;
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private final CloudSettingsLoader cloudSettingsLoader;
+    private final CallTracer callTracer;
+    private final BulkheadRegistry bulkheadRegistry;
+    private final boolean hedgeEnabled;
+    /**
+     * 上次刷新路由表的时间
+     */
+    private volatile long lastRefreshTime;
 
     /**
      * 初始化
-     * cache 缓存
      * restTemplate调用方法
+     * @param serviceRouter 路由表
+     * @param asyncCloudService 非阻塞调用,get开启对冲时使用
+     * @param retryBudget 重试预算
+     * @param callMetrics 调用统计
+     * @param responseCache get请求响应缓存
+     * @param codecSelector 各服务的请求体编码
+     * @param concurrencyLimiter 各服务的并发上限
+     * @param cloudSettingsLoader 超时时间等可在运行中调整的参数
+     * @param callTracer 分阶段追踪
+     * @param bulkheadRegistry 各服务的隔离舱
+     * @param hedgeEnabled get请求是否开启对冲
      */
-    public CloudServiceImpl(NamingService namingService) {
-        cache = CacheBuilder.newBuilder().maximumSize(RAND_NUM * SERVICE_NUM * 2).expireAfterWrite(SERVICE_ERROR_TIME_OUT, TimeUnit.MINUTES)
-                .build(new CacheLoader<String, AtomicInteger>() {
-                    @Override
-                    public AtomicInteger load(String key) throws Exception {
-                        return new AtomicInteger();
-                    }
-                });
-        SimpleClientHttpRequestFactory factory = new SimpleClientHttpRequestFactory();
-        factory.setConnectTimeout(SERVICE_CONNECT_TIME_OUT);
-        factory.setReadTimeout(SERVICE_READ_TIME_OUT);
-        restTemplate = new RestTemplate(factory);
-        this.namingService = namingService;
+    public CloudServiceImpl(ServiceRouter serviceRouter, AsyncCloudServiceImpl asyncCloudService, RetryBudget retryBudget,
+                            CallMetrics callMetrics, ResponseCache responseCache, CodecSelector codecSelector,
+                            ConcurrencyLimiter concurrencyLimiter, CloudSettingsLoader cloudSettingsLoader, CallTracer callTracer,
+                            BulkheadRegistry bulkheadRegistry, @Value("${cloud.hedge.enabled:false}") boolean hedgeEnabled) {
+        CloudSettings settings = cloudSettingsLoader.get();
+        requestFactory = new PooledClientHttpRequestFactory(settings.getConnectTimeout(), settings.getReadTimeout(),
+                settings.getPoolWaitTimeout(), SERVICE_IDLE_TIME_OUT, SERVICE_MAX_CONNECTIONS, INSTANCE_MIN_CONNECTIONS);
+        for (BodyCodec codec : BodyCodec.values()) {
+            RestTemplate restTemplate = new RestTemplate(requestFactory);
+            restTemplate.setMessageConverters(codec.createMessageConverters());
+            if (codecSelector.getGzipThreshold() > 0) {
+                restTemplate.setInterceptors(Collections.singletonList(new GzipRequestInterceptor(codecSelector.getGzipThreshold())));
+            }
+            restTemplateMap.put(codec, restTemplate);
+        }
+        streamingRestTemplate = new RestTemplate(requestFactory.streaming());
+        this.serviceRouter = serviceRouter;
+        this.asyncCloudService = asyncCloudService;
+        this.retryBudget = retryBudget;
+        this.callMetrics = callMetrics;
+        this.responseCache = responseCache;
+        this.codecSelector = codecSelector;
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.cloudSettingsLoader = cloudSettingsLoader;
+        this.callTracer = callTracer;
+        this.bulkheadRegistry = bulkheadRegistry;
+        this.hedgeEnabled = hedgeEnabled;
+        serviceRouter.addListener(requestFactory);
+        serviceRouter.addListener(callMetrics);
+        cloudSettingsLoader.addListener(updated -> requestFactory.setTimeouts(updated.getConnectTimeout(),
+                updated.getReadTimeout(), updated.getPoolWaitTimeout()));
+        cloudSettingsLoader.addListener(updated -> serviceRouter.setBreakerSettings(updated.getBreakerSettings()));
+    }
+
+    /**
+     * 关闭连接池
+     */
+    @PreDestroy
+    public void destroy() {
+        requestFactory.close();
     }
 
     /**
@@ -126,29 +213,7 @@ public class CloudServiceImpl implements CloudService {
      */
     @Override
     public <T> T get(String serviceName, String apiName, Class<T> clazz) {
-        String uri = this.getUri(serviceName);
-        if (StringUtil.isBlank(uri)) {
-            return null;
-        }
-        try {
-            return restTemplate.getForObject(uri + apiName, clazz);
-        }catch (Exception e) {
-            log.error(e.getMessage(),e);
-            Set<String> uriSet = new HashSet<>();
-            uriSet.add(uri);
-            while (true) {
-                try {
-                    uri = checkServiceNameAndGetUri(serviceName,uri,uriSet);
-                    if (StringUtil.isBlank(uri)){
-                        return null;
-                    }
-                    return restTemplate.getForObject(uri + apiName, clazz);
-                }catch (Exception ex) {
-                    uriSet.add(uri);
-                    log.error(ex.getMessage(),ex);
-                }
-            }
-        }
+        return this.get(serviceName, apiName, clazz, RetryPolicy.DEFAULT);
     }
     /**
      * 服务调用post方法,返回传入的T类型
@@ -159,29 +224,7 @@ public class CloudServiceImpl implements CloudService {
      */
     @Override
     public <T> T post(String serviceName, String apiName, Object body, Class<T> clazz) {
-        String uri = this.getUri(serviceName);
-        if (StringUtil.isBlank(uri)) {
-            return null;
-        }
-        try {
-            return restTemplate.postForObject(uri + apiName,body,clazz);
-        } catch (Exception e) {
-            log.error(e.getMessage(),e);
-            Set<String> uriSet = new HashSet<>();
-            uriSet.add(uri);
-            while (true) {
-                try {
-                    uri = checkServiceNameAndGetUri(serviceName,uri,uriSet);
-                    if (StringUtil.isBlank(uri)){
-                        return null;
-                    }
-                    return restTemplate.postForObject(uri + apiName,body, clazz);
-                }catch (Exception ex) {
-                    uriSet.add(uri);
-                    log.error(ex.getMessage(),ex);
-                }
-            }
-        }
+        return this.post(serviceName, apiName, body, clazz, RetryPolicy.DEFAULT);
     }
     /**
      * 服务调用put方法,直接返回调用是否成功,不返回具体的值
@@ -191,31 +234,7 @@ public class CloudServiceImpl implements CloudService {
      */
     @Override
     public boolean put(String serviceName, String apiName, Object body) {
-        String uri = this.getUri(serviceName);
-        if (StringUtil.isBlank(uri)) {
-            return false;
-        }
-        try {
-            restTemplate.put(uri + apiName,body);
-            return true;
-        }catch (Exception e) {
-            log.error(e.getMessage(),e);
-            Set<String> uriSet = new HashSet<>();
-            uriSet.add(uri);
-            while (true) {
-                try {
-                    uri = checkServiceNameAndGetUri(serviceName,uri,uriSet);
-                    if (StringUtil.isBlank(uri)){
-                        return false;
-                    }
-                    restTemplate.put(uri + apiName,body);
-                    return true;
-                }catch (Exception ex) {
-                    uriSet.add(uri);
-                    log.error(ex.getMessage(),ex);
-                }
-            }
-        }
+        return this.put(serviceName, apiName, body, RetryPolicy.DEFAULT);
     }
     /**
      * 服务调用delete方法,直接返回调用是否成功,不返回具体的值
@@ -225,203 +244,669 @@ public class CloudServiceImpl implements CloudService {
      */
     @Override
     public boolean delete(String serviceName, String apiName) {
-        String uri = this.getUri(serviceName);
-        if (StringUtil.isBlank(uri)) {
-            return false;
+        return this.delete(serviceName, apiName, RetryPolicy.DEFAULT);
+    }
+    /**
+     * 服务调用get方法,按指定重试策略调用
+     * 配置了缓存的接口先从缓存获取
+     * 开启对冲时由非阻塞调用同时向两个实例发送请求,取先返回的结果
+     * @param serviceName 服务名
+     * @param apiName 服务接口名
+     * @param retryPolicy 重试策略
+     * @return
+     */
+    @Override
+    public <T> T get(String serviceName, String apiName, Class<T> clazz, RetryPolicy retryPolicy) {
+        return this.get(serviceName, apiName, clazz, retryPolicy, codecSelector.getCodec(serviceName));
+    }
+
+    private <T> T get(String serviceName, String apiName, Class<T> clazz, RetryPolicy retryPolicy, BodyCodec codec) {
+        ResponseCache.CacheRule cacheRule = responseCache.getRule(serviceName, apiName);
+        if (cacheRule != null) {
+            return responseCache.get(cacheRule, serviceName, apiName, clazz, () -> this.doGet(serviceName, apiName, clazz, retryPolicy, codec));
         }
+        return this.doGet(serviceName, apiName, clazz, retryPolicy, codec);
+    }
+
+    private <T> T doGet(String serviceName, String apiName, Class<T> clazz, RetryPolicy retryPolicy, BodyCodec codec) {
+        // 非阻塞调用按服务配置的编码调用
+        if (hedgeEnabled && codec == codecSelector.getCodec(serviceName)) {
+            return this.isolate(serviceName, () -> this.hedgedGet(serviceName, apiName, clazz, retryPolicy), null);
+        }
+        RestTemplate restTemplate = restTemplateMap.get(codec);
+        return this.execute(serviceName, apiName, HttpMethod.GET, retryPolicy,
+                url -> restTemplate.getForObject(url, clazz), null);
+    }
+
+    /**
+     * 通过非阻塞调用对冲的get请求
+     * 与其他同步调用一样在达到并发上限时排队等待,等到的许可交给非阻塞调用的第一次尝试使用
+     * 最多等待调用超时时间加HEDGE_WAIT_MARGIN,超过后取消调用并按失败返回null
+     */
+    private <T> T hedgedGet(String serviceName, String apiName, Class<T> clazz, RetryPolicy retryPolicy) {
+        TraceRecorder trace = callTracer.start(serviceName, apiName, HttpMethod.GET.name());
         try {
-            restTemplate.delete(uri + apiName);
+            long mark = trace.now();
+            try {
+                concurrencyLimiter.acquire(serviceName);
+            } catch (LimitExceededException e) {
+                trace.span(TracePhase.LIMIT, mark, "REJECTED");
+                log.warn(e.getMessage());
+                return null;
+            }
+            trace.span(TracePhase.LIMIT, mark);
+            mark = trace.now();
+            long timeout = cloudSettingsLoader.get().getService(serviceName).resolve(retryPolicy).getTimeout() + HEDGE_WAIT_MARGIN;
+            CompletableFuture<T> future = asyncCloudService.get(serviceName, apiName, clazz, retryPolicy, true);
+            T result;
+            try {
+                result = future.get(timeout, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                trace.span(TracePhase.FAILURE, mark, FailureKind.TIMEOUT.name());
+                log.error(serviceName + "/" + apiName + "超过" + timeout + "ms未返回,取消调用");
+                return null;
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                trace.span(TracePhase.FAILURE, mark, e.getCause().getClass().getSimpleName());
+                log.error(e.getCause().getMessage(), e.getCause());
+                return null;
+            }
+            trace.span(TracePhase.HEDGE, mark);
+            if (result != null) {
+                trace.succeed();
+            }
+            return result;
+        } finally {
+            callTracer.finish(trace);
+        }
+    }
+    /**
+     * 服务调用post方法,按指定重试策略调用
+     * @param serviceName 服务名
+     * @param apiName 服务接口名
+     * @param body 数据,HttpEntry或者String,Map都可
+     * @param retryPolicy 重试策略
+     * @return
+     */
+    @Override
+    public <T> T post(String serviceName, String apiName, Object body, Class<T> clazz, RetryPolicy retryPolicy) {
+        return this.post(serviceName, apiName, body, clazz, retryPolicy, codecSelector.getCodec(serviceName));
+    }
+
+    private <T> T post(String serviceName, String apiName, Object body, Class<T> clazz, RetryPolicy retryPolicy, BodyCodec codec) {
+        RestTemplate restTemplate = restTemplateMap.get(codec);
+        return this.execute(serviceName, apiName, HttpMethod.POST, retryPolicy,
+                url -> restTemplate.postForObject(url, body, clazz), null);
+    }
+    /**
+     * 服务调用put方法,按指定重试策略调用
+     * @param serviceName 服务名
+     * @param apiName 服务接口名
+     * @param retryPolicy 重试策略
+     * @return
+     */
+    @Override
+    public boolean put(String serviceName, String apiName, Object body, RetryPolicy retryPolicy) {
+        return this.put(serviceName, apiName, body, retryPolicy, codecSelector.getCodec(serviceName));
+    }
+
+    private boolean put(String serviceName, String apiName, Object body, RetryPolicy retryPolicy, BodyCodec codec) {
+        RestTemplate restTemplate = restTemplateMap.get(codec);
+        return this.execute(serviceName, apiName, HttpMethod.PUT, retryPolicy, url -> {
+            restTemplate.put(url, body);
+            return true;
+        }, false);
+    }
+    /**
+     * 服务调用delete方法,按指定重试策略调用
+     * @param serviceName 服务名
+     * @param apiName 服务接口名
+     * @param retryPolicy 重试策略
+     * @return
+     */
+    @Override
+    public boolean delete(String serviceName, String apiName, RetryPolicy retryPolicy) {
+        RestTemplate restTemplate = restTemplateMap.get(codecSelector.getCodec(serviceName));
+        return this.execute(serviceName, apiName, HttpMethod.DELETE, retryPolicy, url -> {
+            restTemplate.delete(url);
             return true;
-        }catch (Exception e) {
-            log.error(e.getMessage(),e);
-            Set<String> uriSet = new HashSet<>();
-            uriSet.add(uri);
-            while (true) {
+        }, false);
+    }
+    /**
+     * 服务调用get方法,相同路由键的调用优先发往同一实例
+     * @param serviceName 服务名
+     * @param apiName 服务接口名
+     * @param routingKey 路由键
+     * @return
+     */
+    @Override
+    public <T> T getByKey(String serviceName, String apiName, String routingKey, Class<T> clazz) {
+        return this.get(serviceName, apiName, clazz, this.keyPolicy(serviceName, routingKey));
+    }
+    /**
+     * 服务调用post方法,相同路由键的调用优先发往同一实例
+     * @param serviceName 服务名
+     * @param apiName 服务接口名
+     * @param routingKey 路由键
+     * @param body 数据,HttpEntry或者String,Map都可
+     * @return
+     */
+    @Override
+    public <T> T postByKey(String serviceName, String apiName, String routingKey, Object body, Class<T> clazz) {
+        return this.post(serviceName, apiName, body, clazz, this.keyPolicy(serviceName, routingKey));
+    }
+    /**
+     * 服务调用put方法,相同路由键的调用优先发往同一实例
+     * @param serviceName 服务名
+     * @param apiName 服务接口名
+     * @param routingKey 路由键
+     * @return
+     */
+    @Override
+    public boolean putByKey(String serviceName, String apiName, String routingKey, Object body) {
+        return this.put(serviceName, apiName, body, this.keyPolicy(serviceName, routingKey));
+    }
+    /**
+     * 服务调用delete方法,相同路由键的调用优先发往同一实例
+     * @param serviceName 服务名
+     * @param apiName 服务接口名
+     * @param routingKey 路由键
+     * @return
+     */
+    @Override
+    public boolean deleteByKey(String serviceName, String apiName, String routingKey) {
+        return this.delete(serviceName, apiName, this.keyPolicy(serviceName, routingKey));
+    }
+
+    /**
+     * 服务配置的重试策略加上路由键
+     * @param serviceName 服务名
+     * @param routingKey 路由键
+     * @return 重试策略
+     */
+    private RetryPolicy keyPolicy(String serviceName, String routingKey) {
+        return cloudSettingsLoader.get().getService(serviceName).resolve(RetryPolicy.DEFAULT).toBuilder()
+                .routingKey(routingKey)
+                .build();
+    }
+
+    /**
+     * 服务调用get方法,按指定编码解析响应,响应体直接从输入流解码
+     * @param serviceName 服务名
+     * @param apiName 服务接口名
+     * @param codec 编码
+     * @return
+     */
+    @Override
+    public <T> T get(String serviceName, String apiName, Class<T> clazz, BodyCodec codec) {
+        return this.get(serviceName, apiName, clazz, RetryPolicy.DEFAULT, codec);
+    }
+    /**
+     * 服务调用post方法,按指定编码写入请求体及解析响应
+     * @param serviceName 服务名
+     * @param apiName 服务接口名
+     * @param body 数据,HttpEntry或者String,Map都可
+     * @param codec 编码
+     * @return
+     */
+    @Override
+    public <T> T post(String serviceName, String apiName, Object body, Class<T> clazz, BodyCodec codec) {
+        return this.post(serviceName, apiName, body, clazz, RetryPolicy.DEFAULT, codec);
+    }
+    /**
+     * 服务调用put方法,按指定编码写入请求体
+     * @param serviceName 服务名
+     * @param apiName 服务接口名
+     * @param codec 编码
+     * @return
+     */
+    @Override
+    public boolean put(String serviceName, String apiName, Object body, BodyCodec codec) {
+        return this.put(serviceName, apiName, body, RetryPolicy.DEFAULT, codec);
+    }
+
+    /**
+     * 服务调用get方法,流式读取响应
+     * @param serviceName 服务名
+     * @param apiName 服务接口名
+     * @param handler 响应处理,开始读取后失败不再切换实例
+     * @return 处理结果,失败时返回null
+     */
+    @Override
+    public <T> T getStream(String serviceName, String apiName, StreamHandler<T> handler) {
+        return this.stream(serviceName, apiName, HttpMethod.GET, null, null, handler, RetryPolicy.DEFAULT);
+    }
+    /**
+     * 服务调用get方法,按固定大小的缓冲区分块读取响应
+     * @param serviceName 服务名
+     * @param apiName 服务接口名
+     * @param handler 分块处理
+     * @return 读取的字节数,失败时返回-1
+     */
+    @Override
+    public long getChunks(String serviceName, String apiName, ChunkHandler handler) {
+        Long length = this.getStream(serviceName, apiName, in -> {
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            long total = 0;
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                handler.onChunk(buffer, read);
+                total += read;
+            }
+            return total;
+        });
+        return length == null ? -1 : length;
+    }
+    /**
+     * 服务调用post方法,流式写入请求体并读取响应
+     * @param serviceName 服务名
+     * @param apiName 服务接口名
+     * @param writer 请求体写入,切换实例时会再次调用
+     * @param handler 响应处理
+     * @return 处理结果,失败时返回null
+     */
+    @Override
+    public <T> T postStream(String serviceName, String apiName, StreamWriter writer, StreamHandler<T> handler) {
+        return this.stream(serviceName, apiName, HttpMethod.POST, MediaType.APPLICATION_OCTET_STREAM, writer, handler, RetryPolicy.DEFAULT);
+    }
+    /**
+     * 服务调用post方法,将输入流作为请求体转发
+     * 输入流只能读取一次,开始读取后失败不再切换实例
+     * @param serviceName 服务名
+     * @param apiName 服务接口名
+     * @param body 请求体
+     * @param handler 响应处理
+     * @return 处理结果,失败时返回null
+     */
+    @Override
+    public <T> T postStream(String serviceName, String apiName, InputStream body, StreamHandler<T> handler) {
+        ConsumedInputStream in = new ConsumedInputStream(body);
+        return this.stream(serviceName, apiName, HttpMethod.POST, MediaType.APPLICATION_OCTET_STREAM, out -> {
+            if (in.consumed) {
+                throw new IllegalStateException("请求体已被读取");
+            }
+            StreamUtils.copy(in, out);
+        }, handler, RetryPolicy.DEFAULT, in);
+    }
+    /**
+     * 流式调用,请求体及响应体均不整体读入内存,路由及失败切换与其他方法相同,
+     * 但请求体或响应体开始读取后失败不再切换实例
+     * @param serviceName 服务名
+     * @param apiName 服务接口名
+     * @param method 请求方法
+     * @param contentType 请求体类型,无请求体时为null
+     * @param writer 请求体写入,无请求体时为null
+     * @param handler 响应处理
+     * @param retryPolicy 重试策略
+     * @return 处理结果,失败时返回null
+     */
+    @Override
+    public <T> T stream(String serviceName, String apiName, HttpMethod method, MediaType contentType,
+                        StreamWriter writer, StreamHandler<T> handler, RetryPolicy retryPolicy) {
+        return this.stream(serviceName, apiName, method, contentType, writer, handler, retryPolicy, null);
+    }
+
+    private <T> T stream(String serviceName, String apiName, HttpMethod method, MediaType contentType,
+                         StreamWriter writer, StreamHandler<T> handler, RetryPolicy retryPolicy, ConsumedInputStream requestBody) {
+        RequestCallback requestCallback = writer == null ? null : request -> {
+            if (contentType != null) {
+                request.getHeaders().setContentType(contentType);
+            }
+            // 写入连接本身未失败时,异常来自调用方的写入逻辑
+            ((StreamingHttpOutputMessage) request).setBody(out -> {
+                FailureTrackingOutputStream body = new FailureTrackingOutputStream(out);
                 try {
-                    uri = checkServiceNameAndGetUri(serviceName,uri,uriSet);
-                    if (StringUtil.isBlank(uri)){
-                        return false;
+                    writer.write(body);
+                } catch (IOException | RuntimeException e) {
+                    if (body.failed) {
+                        throw e;
+                    }
+                    throw new StreamCallbackException(e);
+                }
+            });
+        };
+        return this.execute(serviceName, apiName, method, retryPolicy, url -> {
+            ConsumedInputStream[] responseBody = new ConsumedInputStream[1];
+            try {
+                return streamingRestTemplate.execute(url, method, requestCallback, response -> {
+                    responseBody[0] = new ConsumedInputStream(response.getBody());
+                    try {
+                        return handler.handle(responseBody[0]);
+                    } catch (IOException | RuntimeException e) {
+                        if (responseBody[0].failed) {
+                            throw e;
+                        }
+                        throw new StreamCallbackException(e);
                     }
-                    restTemplate.delete(uri + apiName);
-                    return true;
-                }catch (Exception ex) {
-                    uriSet.add(uri);
-                    log.error(ex.getMessage(),ex);
+                });
+            } catch (RuntimeException e) {
+                if (responseBody[0] != null && responseBody[0].consumed || requestBody != null && requestBody.consumed) {
+                    throw new StreamConsumedException(e);
                 }
+                throw e;
             }
-        }
+        }, null, false);
     }
 
     /**
-     * 获取实际访问的uri
+     * 执行调用,记录实例响应时间,失败时记录到实例熔断器,按重试策略及重试预算切换到其他实例重试
      * @param serviceName 服务名
-     * @return uri
-     */
-    private String getUri(String serviceName) {
-        List<String> list = routingMap.get(serviceName);
-        // 判空
-        if (list == null || list.size() == 0) {
-            // 加锁
-            lock.lock();
+     * @param apiName 服务接口名
+     * @param method 请求方法
+     * @param retryPolicy 重试策略
+     * @param invocation 实际调用
+     * @param failValue 无可用实例或不再重试时的返回值
+     * @return 调用结果
+     */
+    private <T> T execute(String serviceName, String apiName, HttpMethod method, RetryPolicy retryPolicy,
+                          Invocation<T> invocation, T failValue) {
+        return this.execute(serviceName, apiName, method, retryPolicy, invocation, failValue, true);
+    }
+
+    /**
+     * 执行调用,未完成请求数达到服务并发上限时排队等待,仍无空位则不发送请求直接返回失败
+     * @param sampleLatency 响应时间是否用于调整并发上限,流式调用的耗时取决于数据量,不参与调整
+     */
+    private <T> T execute(String serviceName, String apiName, HttpMethod method, RetryPolicy retryPolicy,
+                          Invocation<T> invocation, T failValue, boolean sampleLatency) {
+        return this.isolate(serviceName, () -> {
+            TraceRecorder trace = callTracer.start(serviceName, apiName, method.name());
+            try {
+                return this.execute(serviceName, apiName, method, retryPolicy, invocation, failValue, sampleLatency, trace);
+            } finally {
+                callTracer.finish(trace);
+            }
+        }, failValue);
+    }
+
+    /**
+     * 在服务的隔离舱内执行调用(包括重试),隔离舱已满时不执行直接返回失败
+     * @param serviceName 服务名
+     * @param call 调用
+     * @param failValue 隔离舱已满时的返回值
+     * @return 调用结果
+     */
+    private <T> T isolate(String serviceName, Supplier<T> call, T failValue) {
+        try {
+            return bulkheadRegistry.execute(serviceName, call, failValue);
+        } catch (BulkheadFullException e) {
+            log.warn(e.getMessage());
+            return failValue;
+        }
+    }
+
+    private <T> T execute(String serviceName, String apiName, HttpMethod method, RetryPolicy retryPolicy,
+                          Invocation<T> invocation, T failValue, boolean sampleLatency, TraceRecorder trace) {
+        CloudSettings.ServiceSettings settings = cloudSettingsLoader.get().getService(serviceName);
+        retryPolicy = settings.resolve(retryPolicy);
+        long deadline = System.currentTimeMillis() + retryPolicy.getTimeout();
+        long mark = trace.now();
+        String uri = serviceRouter.getUri(serviceName, retryPolicy.getMetadata(), retryPolicy.getRoutingKey());
+        trace.span(TracePhase.ROUTE, mark);
+        if (StringUtil.isBlank(uri)) {
+            return failValue;
+        }
+        Set<String> uriSet = null;
+        int attempt = 1;
+        while (true) {
+            trace.attempt(uri);
+            InstanceState state = serviceRouter.getInstanceState(uri);
+            CallMetrics.CallStats stats = callMetrics.getStats(serviceName, apiName, uri);
+            mark = trace.now();
+            try {
+                concurrencyLimiter.acquire(serviceName);
+            } catch (LimitExceededException e) {
+                trace.span(TracePhase.LIMIT, mark, "REJECTED");
+                log.warn(e.getMessage());
+                state.onReject();
+                return failValue;
+            }
+            trace.span(TracePhase.LIMIT, mark);
+            if (attempt > 1) {
+                stats.onRetry();
+            }
+            long start = state.begin();
+            int timeout = (int) Math.max(Math.min(deadline - System.currentTimeMillis(), settings.getReadTimeout()), 1);
+            String url = uri + apiName;
             try {
-                list = routingMap.get(serviceName);
-                // 再次判空
-                if (list == null || list.size() == 0) {
-                    // 根据服务名从nacos获取uri列表
-                    list = this.getServiceList(serviceName);
-                    routingMap.put(serviceName, list);
+                T result = requestFactory.withAttemptTimeout(timeout, () -> invocation.invoke(url));
+                trace.span(TracePhase.READ, trace.getLastEnd());
+                trace.succeed();
+                state.onSuccess(start, sampleLatency);
+                stats.onSuccess(start);
+                if (sampleLatency) {
+                    concurrencyLimiter.onSuccess(serviceName, start);
+                } else {
+                    concurrencyLimiter.onCancel(serviceName);
                 }
-                // 检测服务是否进行监听
-                if (!serviceSubscribeSet.contains(serviceName)) {
+                retryBudget.deposit();
+                return result;
+            } catch (Exception e) {
+                log.error(e.getMessage(), e);
+                FailureKind kind = FailureKind.of(e);
+                trace.span(TracePhase.FAILURE, trace.getLastEnd(), kind == null ? e.getClass().getSimpleName() : kind.name());
+                state.onFailure(start, kind, sampleLatency);
+                stats.onFailure(start, kind);
+                if (sampleLatency) {
+                    concurrencyLimiter.onFailure(serviceName, start, kind);
+                } else {
+                    concurrencyLimiter.onCancel(serviceName);
+                }
+                long delay = retryPolicy.retryDelay(method, e, attempt, deadline);
+                if (delay < 0) {
+                    return failValue;
+                }
+                // 先确认有可重试的实例,没有时不消耗重试预算也不等待
+                if (uriSet == null) {
+                    uriSet = new HashSet<>();
+                }
+                uriSet.add(uri);
+                mark = trace.now();
+                String next = serviceRouter.getUriThrow(serviceName, uriSet, retryPolicy.getMetadata(), retryPolicy.getRoutingKey());
+                trace.span(TracePhase.ROUTE, mark);
+                if (StringUtil.isBlank(next)) {
+                    return failValue;
+                }
+                if (!retryBudget.tryWithdraw()) {
+                    serviceRouter.getInstanceState(next).onReject();
+                    return failValue;
+                }
+                if (delay > 0) {
+                    mark = trace.now();
                     try {
-                        //服务不在监听列表的话,加入监听列表
-                        namingService.subscribe(serviceName, event -> {
-                            log.debug(serviceName + "服务发生变化");
-                            List<String> serviceList = this.getServiceList(serviceName);
-                            routingMap.put(serviceName,serviceList);
-                        });
-                        serviceSubscribeSet.add(serviceName);
-                    } catch (NacosException e) {
-                        e.printStackTrace();
+                        Thread.sleep(delay);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        serviceRouter.getInstanceState(next).onReject();
+                        return failValue;
                     }
+                    trace.span(TracePhase.BACKOFF, mark);
                 }
-            }finally {
-                // 解锁
-                lock.unlock();
+                stats.onFailover();
+                uri = next;
+                attempt++;
             }
-        } else {
-            // 非空直接返回
-            return list.get(random.nextInt(list.size()));
         }
-        // 再次结束后判空名
-        if (list.size()==0) {
-            return null;
-        }
-        String uri = list.get(random.nextInt(list.size()));
-        log.debug("成功寻找倒uri:" + uri);
-        // 非空返回
-        return uri;
     }
+
     /**
-     * 获取除去uri的实际访问的uri
-     * @param serviceName 服务名
-     * @param uriSet 本次调用失败的ip地址
-     * @return uri
-     */
-    private String getUriThrow(String serviceName, Set<String> uriSet) {
-        List<String> list = routingMap.get(serviceName);
-        list = list.stream().filter(s -> !uriSet.contains(s)).collect(Collectors.toList());
-        if (list.size() == 0) {
-            return null;
+     * 定时初始化路由表,用于将不健康的实例下线,或者将健康的实例再次上线
+     * 间隔由cloud.refresh-interval配置,在定时任务线程上直接刷新
+     */
+    @Scheduled(fixedDelay = REFRESH_CHECK_INTERVAL)
+    public void scheduledRefresh() {
+        if (System.currentTimeMillis() - lastRefreshTime >= cloudSettingsLoader.get().getRefreshInterval()) {
+            this.refreshRoutingMap();
         }
-        return list.get(random.nextInt(list.size()));
     }
 
     /**
-     * 定时初始化路由表,用于将不健康的实例下线,或者将健康的实例再次上线
-     * 初始化路由表
+     * 初始化路由表,外部调用时异步执行
      */
     @Async
-    @Scheduled(fixedDelay = SERVICE_INIT_TIME)
     @Override
     public void initRoutingMap() {
+        this.refreshRoutingMap();
+    }
+
+    private void refreshRoutingMap() {
         log.debug("初始化路由表");
-        routingMap.forEach((key,value)->{
-            List<String> uriList = this.getServiceList(key);
-            if (uriList.size() == 0) {
-                routingMap.remove(key);
+        lastRefreshTime = System.currentTimeMillis();
+        serviceRouter.refresh();
+    }
+
+    /**
+     * 获取全部路由表,格式为 服务名 -> uri列表,多个实例时每个uri按权重占比重复出现,共约NAMING_URI_NUM个
+     * 权重、集群及熔断状态等见RoutingView
+     * @return
+     */
+    @Override
+    public String getAllUri() {
+        Map<String, List<String>> uriMap = new HashMap<>();
+        serviceRouter.getRoutingMap().forEach((serviceName, selector) -> {
+            List<String> uriList = new ArrayList<>();
+            List<ServiceInstance> instances = selector.getInstances();
+            if (instances.size() == 1) {
+                uriList.add(instances.get(0).getUri());
             } else {
-                routingMap.put(key, uriList);
+                for (ServiceInstance instance : instances) {
+                    int num = (int) Math.round(instance.getWeight() * NAMING_URI_NUM / selector.getTotalWeight());
+                    for (int i = 0; i < num; i++) {
+                        uriList.add(instance.getUri());
+                    }
+                }
             }
+            uriMap.put(serviceName, uriList);
         });
+        return JSON.toJSONString(uriMap);
     }
 
     /**
-     * 获取全部路由表
+     * 获取各服务实例的连接池状态
      * @return
      */
     @Override
-    public String getAllUri() {
-        return JSON.toJSONString(routingMap);
+    public String getPoolStats() {
+        return JSON.toJSONString(requestFactory.getPoolStats());
     }
 
     /**
-     * 检测服务不生效次数
-     * @param serviceName
-     * @param uri
-     * @param uriSet
+     * 获取调用统计,Prometheus文本格式
      * @return
-     * @throws ExecutionException
-     */
-    private String checkServiceNameAndGetUri(String serviceName, String uri, Set<String> uriSet) throws ExecutionException {
-        AtomicInteger num = cache.get(serviceName);
-        if (num == null) {
-            cache.put(serviceName, new AtomicInteger(1));
-        } else if(num.get() < SERVICE_ERROR_THROW_NUM) {
-            num.incrementAndGet();
-        } else {
-            checkLock.lock();
+     */
+    @Override
+    public String getMetrics() {
+        return callMetrics.export() + responseCache.export() + concurrencyLimiter.export() + bulkheadRegistry.export();
+    }
+
+    /**
+     * 记录是否已开始读取及读取是否失败的输入流
+     */
+    private static class ConsumedInputStream extends FilterInputStream {
+        private volatile boolean consumed;
+        private volatile boolean failed;
+
+        private ConsumedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
             try {
-                if (cache.get(serviceName).get() != 0) {
-                    cache.put(serviceName, new AtomicInteger(0));
-                    List<String> collect = routingMap.get(serviceName).stream().parallel().filter(s -> !s.equals(uri)).collect(Collectors.toList());
-                    routingMap.put(serviceName,collect);
-                }
-            }finally {
-                checkLock.unlock();
+                int read = super.read();
+                consumed |= read >= 0;
+                return read;
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                int read = super.read(b, off, len);
+                consumed |= read > 0;
+                return read;
+            } catch (IOException e) {
+                failed = true;
+                throw e;
             }
         }
-        return getUriThrow(serviceName, uriSet);
+
+        @Override
+        public long skip(long n) throws IOException {
+            try {
+                long skipped = super.skip(n);
+                consumed |= skipped > 0;
+                return skipped;
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() {
+            // 由调用方或RestTemplate关闭
+        }
     }
 
     /**
-     * 获取服务列表
-     * @param serviceName
-     * @return
+     * 记录写入是否失败的输出流
      */
-    private List<String> getServiceList(String serviceName) {
-        List<String> list = new ArrayList<>(0);
-        try {
-            // 获取指定serviceName的路由信息
-            List<Instance> instanceList = namingService.getAllInstances(serviceName);
-            double sum = 0;
-            // 对可能的情况进行处理
-            if (instanceList.size() == 0) {
-                return list;
-            } else if (instanceList.size() == 1) {
-                list = new ArrayList<>(1);
-                Instance instance = instanceList.get(0);
-                // 非启用或者非健康的跳过
-                if (!(instance.isHealthy() && instance.isEnabled())) {
-                    return list;
-                }
-                list.add(StringUtil.splicingString("http://",instance.getIp(),":",instance.getPort(),"/"));
-            } else {
-                list = new ArrayList<>((int)(RAND_NUM * 1.1));
-                for (Instance instance : instanceList) {
-                    // 非启用或者非健康的跳过
-                    if (!(instance.isHealthy() && instance.isEnabled())) {
-                        continue;
-                    }
-                    double weight = instance.getWeight();
-                    sum += weight;
-                }
-                for (Instance instance : instanceList) {
-                    // 非启用或者非健康的跳过
-                    if (!(instance.isHealthy() && instance.isEnabled())) {
-                        continue;
-                    }
-                    String uri = StringUtil.splicingString("http://",instance.getIp(),":",instance.getPort(),"/");
-                    double weight = instance.getWeight();
-                    int num = (int)Math.round(weight* RAND_NUM /sum);
-                    for (int i = 0; i < num; i++) {
-                        list.add(uri);
-                    }
-                }
+    private static class FailureTrackingOutputStream extends FilterOutputStream {
+        private volatile boolean failed;
+
+        private FailureTrackingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
             }
-        } catch (NacosException e) {
-            e.printStackTrace();
         }
-        return list;
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 单次调用
+     */
+    @FunctionalInterface
+    private interface Invocation<T> {
+        /**
+         * 调用指定地址
+         * @param url 完整地址
+         * @return 调用结果
+         */
+        T invoke(String url);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,98 @@
+package com.kuroha.http;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author kuroha
+ */
+public class PooledClientHttpRequestFactoryTest {
+
+    private static final String SERVICE_NAME = "test-service";
+    /**
+     * 服务端处理请求的最长时间,毫秒
+     */
+    private static final long SERVER_DELAY = 300;
+
+    private final CountDownLatch received = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private HttpServer server;
+    private PooledClientHttpRequestFactory requestFactory;
+    private String address;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            received.countDown();
+            try {
+                release.await(SERVER_DELAY, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = "ok".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        address = "127.0.0.1:" + server.getAddress().getPort();
+        requestFactory = new PooledClientHttpRequestFactory(1000, 5000, 1000, 60000, 10, 1);
+    }
+
+    @After
+    public void tearDown() {
+        requestFactory.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void removedInstanceKeepsInFlightRequest() throws Exception {
+        requestFactory.updateService(SERVICE_NAME, Collections.singletonMap(address, 2));
+        RestTemplate restTemplate = new RestTemplate(requestFactory);
+        CompletableFuture<String> result = CompletableFuture.supplyAsync(
+                () -> restTemplate.getForObject("http://" + address + "/slow", String.class));
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        // 实例下线时请求仍在进行中
+        requestFactory.removeService(SERVICE_NAME);
+        release.countDown();
+        assertEquals("ok", result.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void attemptTimeoutIsRestored() {
+        requestFactory.withAttemptTimeout(100, () -> requestFactory.withAttemptTimeout(50, () -> null));
+        // 超时设置只在调用范围内生效,调用结束后本线程的请求使用默认读取超时,不会在服务端处理期间超时
+        RestTemplate restTemplate = new RestTemplate(requestFactory);
+        assertEquals("ok", restTemplate.getForObject("http://" + address + "/", String.class));
+    }
+
+    @Test
+    public void sharedInstanceIsSizedByAllServices() {
+        requestFactory.updateService("service-a", Collections.singletonMap(address, 4));
+        requestFactory.updateService("service-b", Collections.singletonMap(address, 6));
+        assertEquals(10, requestFactory.getPoolStats().get("service-a").get(address).getMax());
+        // 后更新的服务不再覆盖其他服务分配的连接数
+        requestFactory.updateService("service-b", Collections.singletonMap(address, 2));
+        assertEquals(6, requestFactory.getPoolStats().get("service-a").get(address).getMax());
+        requestFactory.updateService("service-b", Collections.emptyMap());
+        assertEquals(4, requestFactory.getPoolStats().get("service-a").get(address).getMax());
+        requestFactory.removeService("service-a");
+        assertTrue(requestFactory.getPoolStats().get("service-b").isEmpty());
+    }
+}
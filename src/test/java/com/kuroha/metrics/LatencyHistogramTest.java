@@ -0,0 +1,65 @@
+package com.kuroha.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author kuroha
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverValues() {
+        for (long value = 0; value < 1 << 20; value += 7) {
+            int index = LatencyHistogram.bucketIndex(value);
+            long upper = LatencyHistogram.bucketUpperBound(index);
+            long lower = index == 0 ? 0 : LatencyHistogram.bucketUpperBound(index - 1) + 1;
+            assertTrue(value >= lower && value <= upper);
+            // 子桶宽度不超过下界的1/16
+            assertTrue(upper - lower <= lower / 16);
+        }
+    }
+
+    @Test
+    public void percentilesWithinRelativeError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10000L * 10001 / 2, histogram.getSum());
+        assertEquals(10000, histogram.getMax());
+        assertEquals(5000, histogram.getPercentile(50), 5000 / 16.0);
+        assertEquals(9500, histogram.getPercentile(95), 9500 / 16.0);
+        assertEquals(10000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void percentileDoesNotExceedMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+        assertEquals(1000, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void emptyAndReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(95));
+        histogram.recordNanos(5000000);
+        assertEquals(5000, histogram.getMax());
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(95));
+    }
+
+    @Test
+    public void negativeAndHugeValuesAreClamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-1);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(LatencyHistogram.bucketUpperBound(LatencyHistogram.BUCKET_COUNT - 1), histogram.getMax());
+    }
+}
@@ -0,0 +1,62 @@
+package com.kuroha.policy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author kuroha
+ */
+public class RetryBudgetTest {
+
+    @Test
+    public void startsFullAndDrains() {
+        RetryBudget budget = new RetryBudget(20);
+        assertEquals(100, budget.getBalance(), 0);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(budget.tryWithdraw());
+        }
+        assertFalse(budget.tryWithdraw());
+    }
+
+    @Test
+    public void depositsPercentOfSuccesses() {
+        RetryBudget budget = drained(20);
+        // 每5次成功请求积累1次重试
+        for (int i = 0; i < 4; i++) {
+            budget.deposit();
+        }
+        assertFalse(budget.tryWithdraw());
+        budget.deposit();
+        assertTrue(budget.tryWithdraw());
+        assertFalse(budget.tryWithdraw());
+    }
+
+    @Test
+    public void balanceIsCapped() {
+        RetryBudget budget = new RetryBudget(50);
+        for (int i = 0; i < 1000; i++) {
+            budget.deposit();
+        }
+        assertEquals(100, budget.getBalance(), 0);
+    }
+
+    @Test
+    public void zeroPercentDisablesRetryAfterInitialTokens() {
+        RetryBudget budget = drained(0);
+        for (int i = 0; i < 1000; i++) {
+            budget.deposit();
+        }
+        assertFalse(budget.tryWithdraw());
+    }
+
+    private static RetryBudget drained(double percent) {
+        RetryBudget budget = new RetryBudget(percent);
+        while (budget.tryWithdraw()) {
+            // 耗尽初始令牌
+        }
+        return budget;
+    }
+}
@@ -0,0 +1,117 @@
+package com.kuroha.routing;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author kuroha
+ */
+public class CircuitBreakerTest {
+
+    /**
+     * 最少4次调用,熔断50毫秒,半开放行2个探测,连续2次成功恢复
+     */
+    private static final BreakerSettings SETTINGS = new BreakerSettings(4, 0.5, 0.5, 0.5, 50, 2, 2);
+
+    private final CircuitBreaker breaker = new CircuitBreaker(() -> SETTINGS);
+
+    @Test
+    public void staysClosedBelowMinCalls() {
+        for (int i = 0; i < 3; i++) {
+            breaker.onFailure(FailureKind.CONNECT);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void tripsOnFailureRate() {
+        breaker.onSuccess();
+        breaker.onSuccess();
+        breaker.onFailure(FailureKind.TIMEOUT);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.onFailure(FailureKind.TIMEOUT);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void failureKindsAreCountedSeparately() {
+        breaker.onSuccess();
+        breaker.onSuccess();
+        breaker.onSuccess();
+        // 合计失败率达到0.5,但每类失败率都未达到阈值
+        breaker.onFailure(FailureKind.CONNECT);
+        breaker.onFailure(FailureKind.TIMEOUT);
+        breaker.onFailure(FailureKind.SERVER_ERROR);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void unrelatedFailureCountsAsSuccess() {
+        for (int i = 0; i < 10; i++) {
+            breaker.onFailure(null);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void halfOpenLimitsProbesAndRecovers() throws InterruptedException {
+        trip();
+        Thread.sleep(SETTINGS.getOpenTime() * 2);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void halfOpenFailureReopens() throws InterruptedException {
+        trip();
+        Thread.sleep(SETTINGS.getOpenTime() * 2);
+        assertTrue(breaker.allowRequest());
+        breaker.onFailure(FailureKind.SERVER_ERROR);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void cancelReturnsProbePermit() throws InterruptedException {
+        trip();
+        Thread.sleep(SETTINGS.getOpenTime() * 2);
+        assertTrue(breaker.allowRequest());
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        breaker.onCancel();
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void settingsAreReadOnEachDecision() {
+        BreakerSettings[] current = {SETTINGS};
+        CircuitBreaker adjustable = new CircuitBreaker(() -> current[0]);
+        for (int i = 0; i < 4; i++) {
+            adjustable.onSuccess();
+        }
+        current[0] = new BreakerSettings(4, 0.1, 0.5, 0.5, 50, 2, 2);
+        adjustable.onFailure(FailureKind.CONNECT);
+        assertEquals(CircuitBreaker.State.OPEN, adjustable.getState());
+    }
+
+    private void trip() {
+        for (int i = 0; i < SETTINGS.getMinCallNum(); i++) {
+            breaker.onFailure(FailureKind.CONNECT);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+}
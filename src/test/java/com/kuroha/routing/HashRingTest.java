@@ -0,0 +1,134 @@
+package com.kuroha.routing;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author kuroha
+ */
+public class HashRingTest {
+
+    private static final int KEY_NUM = 10000;
+    private static final Set<String> NONE = Collections.emptySet();
+
+    private final Map<String, InstanceState> stateMap = new HashMap<>();
+    private final Function<String, InstanceState> stateFunction = uri -> stateMap.computeIfAbsent(uri, k -> new InstanceState());
+
+    @Test
+    public void sameKeySameInstance() {
+        HashRing ring = HashRing.of(instances(5));
+        HashRing rebuilt = HashRing.of(instances(5));
+        for (int i = 0; i < KEY_NUM; i++) {
+            long hash = HashRing.hash("key-" + i);
+            assertEquals(ring.select(hash, NONE, stateFunction, 0).getUri(),
+                    rebuilt.select(hash, NONE, stateFunction, 0).getUri());
+        }
+    }
+
+    @Test
+    public void addingInstanceMovesFewKeys() {
+        HashRing ring = HashRing.of(instances(4));
+        HashRing grown = HashRing.of(instances(5));
+        int moved = 0;
+        for (int i = 0; i < KEY_NUM; i++) {
+            long hash = HashRing.hash("key-" + i);
+            String before = ring.select(hash, NONE, stateFunction, 0).getUri();
+            String after = grown.select(hash, NONE, stateFunction, 0).getUri();
+            if (!before.equals(after)) {
+                // 只会移动到新实例
+                assertEquals(uri(4), after);
+                moved++;
+            }
+        }
+        // 约1/5的键移动到新实例
+        assertEquals(0.2, moved / (double) KEY_NUM, 0.05);
+    }
+
+    @Test
+    public void keysSpreadByWeight() {
+        List<ServiceInstance> list = new ArrayList<>();
+        list.add(new ServiceInstance("10.0.0.1", 8080, 1));
+        list.add(new ServiceInstance("10.0.0.2", 8080, 3));
+        HashRing ring = HashRing.of(list);
+        int heavy = 0;
+        for (int i = 0; i < KEY_NUM; i++) {
+            if (ring.select(HashRing.hash("key-" + i), NONE, stateFunction, 0) == list.get(1)) {
+                heavy++;
+            }
+        }
+        assertEquals(0.75, heavy / (double) KEY_NUM, 0.05);
+    }
+
+    @Test
+    public void excludedInstanceFallsThroughToNext() {
+        List<ServiceInstance> list = instances(3);
+        HashRing ring = HashRing.of(list);
+        long hash = HashRing.hash("key");
+        ServiceInstance first = ring.select(hash, NONE, stateFunction, 0);
+        ServiceInstance next = ring.select(hash, Collections.singleton(first.getUri()), stateFunction, 0);
+        assertNotEquals(first, next);
+        Set<String> all = new HashSet<>();
+        list.forEach(instance -> all.add(instance.getUri()));
+        assertNull(ring.select(hash, all, stateFunction, 0));
+        assertNull(HashRing.EMPTY.select(hash, NONE, stateFunction, 0));
+    }
+
+    @Test
+    public void boundedLoadSkipsOverloadedInstance() {
+        HashRing ring = HashRing.of(instances(4));
+        long hash = HashRing.hash("hot-key");
+        ServiceInstance owner = ring.select(hash, NONE, stateFunction, 1.25);
+        // 热点键在目标实例上堆积请求,超过上限后由环上的下一个实例处理
+        for (int i = 0; i < 10; i++) {
+            stateFunction.apply(owner.getUri()).begin();
+        }
+        ServiceInstance next = ring.select(hash, NONE, stateFunction, 1.25);
+        assertNotEquals(owner, next);
+        assertSame(next, ring.select(hash, Collections.singleton(owner.getUri()), stateFunction, 0));
+        // 不限制负载时仍选择目标实例
+        assertSame(owner, ring.select(hash, NONE, stateFunction, 0));
+    }
+
+    @Test
+    public void allOverloadedReturnsFirstCandidate() {
+        List<ServiceInstance> list = instances(3);
+        HashRing ring = HashRing.of(list);
+        long hash = HashRing.hash("key");
+        ServiceInstance owner = ring.select(hash, NONE, stateFunction, 0);
+        ServiceInstance idle = list.get(list.indexOf(owner) == 0 ? 1 : 0);
+        // 空闲实例被排除后,其余实例都超过负载上限
+        for (ServiceInstance instance : list) {
+            if (instance != idle) {
+                for (int i = 0; i < 10; i++) {
+                    stateFunction.apply(instance.getUri()).begin();
+                }
+            }
+        }
+        assertSame(owner, ring.select(hash, Collections.singleton(idle.getUri()), stateFunction, 1.25));
+    }
+
+    private static List<ServiceInstance> instances(int n) {
+        List<ServiceInstance> list = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            list.add(new ServiceInstance("10.0.0." + (i + 1), 8080, 1));
+        }
+        return list;
+    }
+
+    private static String uri(int index) {
+        return new ServiceInstance("10.0.0." + (index + 1), 8080, 1).getUri();
+    }
+}
@@ -0,0 +1,96 @@
+package com.kuroha.routing;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author kuroha
+ */
+public class RoutingViewTest {
+
+    private final ServiceInstance a = new ServiceInstance("10.0.0.1", 8080, 1);
+    private final ServiceInstance b = new ServiceInstance("10.0.0.2", 8080, 2);
+
+    private ServiceRouter router;
+    private RoutingView view;
+
+    @Before
+    public void setUp() {
+        router = new ServiceRouter(new StubNamingService().getNamingService(), LoadBalanceStrategy.WEIGHTED_RANDOM,
+                ZoneAffinity.NONE, SlowStart.NONE);
+        view = new RoutingView(router);
+    }
+
+    @Test
+    public void versionChangesOnlyWhenRoutingChanges() {
+        long initial = view.getVersion();
+        assertEquals(initial, view.getVersion());
+        view.onUpdate("service-a", WeightedSelector.of(Collections.singletonList(a)));
+        long updated = view.getVersion();
+        assertTrue(updated > initial);
+        assertEquals(updated, view.getVersion());
+        view.onRemove("unknown");
+        assertEquals(updated, view.getVersion());
+    }
+
+    @Test
+    public void fullIsCachedUntilChange() {
+        view.onUpdate("service-a", WeightedSelector.of(Arrays.asList(a, b)));
+        String full = view.getFull();
+        assertSame(full, view.getFull());
+        JSONObject json = JSON.parseObject(full);
+        assertTrue(json.getBooleanValue("full"));
+        assertEquals(2, json.getJSONObject("services").getJSONObject("service-a").getJSONArray("instances").size());
+    }
+
+    @Test
+    public void deltaContainsChangedAndRemovedServices() {
+        view.onUpdate("service-a", WeightedSelector.of(Collections.singletonList(a)));
+        view.onUpdate("service-b", WeightedSelector.of(Collections.singletonList(b)));
+        long since = view.getVersion();
+        JSONObject unchanged = JSON.parseObject(view.getDelta(since));
+        assertFalse(unchanged.getBooleanValue("full"));
+        assertTrue(unchanged.getJSONObject("services").isEmpty());
+        assertTrue(unchanged.getJSONArray("removed").isEmpty());
+
+        view.onUpdate("service-a", WeightedSelector.of(Arrays.asList(a, b)));
+        view.onRemove("service-b");
+        JSONObject delta = JSON.parseObject(view.getDelta(since));
+        assertFalse(delta.getBooleanValue("full"));
+        assertEquals(Collections.singleton("service-a"), delta.getJSONObject("services").keySet());
+        assertEquals(Collections.singletonList("service-b"), delta.getJSONArray("removed"));
+        assertEquals(view.getVersion(), delta.getLongValue("version"));
+    }
+
+    @Test
+    public void unknownVersionReturnsFull() {
+        view.onUpdate("service-a", WeightedSelector.of(Collections.singletonList(a)));
+        assertTrue(JSON.parseObject(view.getDelta(0)).getBooleanValue("full"));
+        assertTrue(JSON.parseObject(view.getDelta(view.getVersion() + 1)).getBooleanValue("full"));
+    }
+
+    @Test
+    public void breakerStateChangeBumpsVersion() {
+        view.onUpdate("service-a", WeightedSelector.of(Arrays.asList(a, b)));
+        long since = view.getVersion();
+        CircuitBreaker breaker = router.getInstanceState(a.getUri()).getBreaker();
+        for (int i = 0; i < BreakerSettings.DEFAULT.getMinCallNum(); i++) {
+            breaker.onFailure(FailureKind.CONNECT);
+        }
+        assertTrue(view.getVersion() > since);
+        JSONObject delta = JSON.parseObject(view.getDelta(since));
+        JSONObject instance = delta.getJSONObject("services").getJSONObject("service-a").getJSONArray("instances").getJSONObject(0);
+        assertEquals(a.getUri(), instance.getString("uri"));
+        assertEquals(CircuitBreaker.State.OPEN.name(), instance.getString("state"));
+    }
+}
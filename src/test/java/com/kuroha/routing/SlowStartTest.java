@@ -0,0 +1,91 @@
+package com.kuroha.routing;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author kuroha
+ */
+public class SlowStartTest {
+
+    private static final String URI = "http://10.0.0.1:8080/";
+    private static final int SAMPLE_NUM = 20000;
+
+    @Test
+    public void disabledAdmitsEverything() {
+        SlowStart.NONE.onAdded(URI);
+        assertEquals(1, SlowStart.NONE.getFraction(URI), 0);
+        assertTrue(SlowStart.NONE.admit(URI));
+    }
+
+    @Test
+    public void admitsInitialPercent() {
+        SlowStart slowStart = new SlowStart(600000, 10, "", 0, 0);
+        slowStart.onAdded(URI);
+        assertEquals(0.1, slowStart.getFraction(URI), 0.01);
+        int admitted = 0;
+        for (int i = 0; i < SAMPLE_NUM; i++) {
+            if (slowStart.admit(URI)) {
+                admitted++;
+            }
+        }
+        assertEquals(0.1, admitted / (double) SAMPLE_NUM, 0.02);
+    }
+
+    @Test
+    public void rampsToFullWeight() throws InterruptedException {
+        SlowStart slowStart = new SlowStart(1000, 10, "", 0, 0);
+        slowStart.onAdded(URI);
+        double initial = slowStart.getFraction(URI);
+        Thread.sleep(100);
+        double fraction = slowStart.getFraction(URI);
+        assertTrue(fraction > initial && fraction < 1);
+        Thread.sleep(1000);
+        assertTrue(slowStart.admit(URI));
+        // 慢启动完成后不再跟踪
+        assertEquals(1, slowStart.getFraction(URI), 0);
+    }
+
+    @Test
+    public void removedInstanceIsNotTracked() {
+        SlowStart slowStart = new SlowStart(60000, 0, "", 0, 0);
+        slowStart.onAdded(URI);
+        assertFalse(slowStart.admit(URI));
+        slowStart.onRemoved(URI);
+        assertTrue(slowStart.admit(URI));
+    }
+
+    @Test
+    public void warmupHoldsTrafficUntilDone() throws Exception {
+        AtomicInteger warmupCount = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/health", exchange -> {
+            warmupCount.incrementAndGet();
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+        SlowStart slowStart = new SlowStart(60000, 50, "/health", 3, 5000);
+        try {
+            String uri = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+            slowStart.onAdded(uri);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (slowStart.getFraction(uri) == 0 && System.currentTimeMillis() < deadline) {
+                assertFalse(slowStart.admit(uri));
+                Thread.sleep(10);
+            }
+            assertEquals(3, warmupCount.get());
+            assertEquals(0.5, slowStart.getFraction(uri), 0.05);
+        } finally {
+            slowStart.destroy();
+            server.stop(0);
+        }
+    }
+}
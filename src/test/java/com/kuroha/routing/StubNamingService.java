@@ -0,0 +1,74 @@
+package com.kuroha.routing;
+
+import com.alibaba.nacos.api.naming.NamingService;
+import com.alibaba.nacos.api.naming.pojo.Instance;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 测试使用的naming服务,实例列表由测试直接设置,不推送变化
+ * @author kuroha
+ */
+public final class StubNamingService {
+
+    private final Map<String, List<Instance>> serviceMap = new ConcurrentHashMap<>();
+    private final NamingService namingService;
+
+    public StubNamingService() {
+        this.namingService = (NamingService) Proxy.newProxyInstance(NamingService.class.getClassLoader(),
+                new Class<?>[]{NamingService.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getAllInstances":
+                            return new ArrayList<>(serviceMap.getOrDefault((String) args[0], new ArrayList<>()));
+                        case "getServerStatus":
+                            return "UP";
+                        case "subscribe":
+                        case "unsubscribe":
+                            return null;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "StubNamingService";
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    public NamingService getNamingService() {
+        return namingService;
+    }
+
+    /**
+     * 设置服务的实例
+     * @param serviceName 服务名
+     * @param instances 实例
+     */
+    public void setInstances(String serviceName, Instance... instances) {
+        List<Instance> list = new ArrayList<>();
+        for (Instance instance : instances) {
+            list.add(instance);
+        }
+        serviceMap.put(serviceName, list);
+    }
+
+    /**
+     * @param ip 实例ip
+     * @param port 实例端口
+     * @param weight 权重
+     * @return 健康的实例
+     */
+    public static Instance instance(String ip, int port, double weight) {
+        Instance instance = new Instance();
+        instance.setIp(ip);
+        instance.setPort(port);
+        instance.setWeight(weight);
+        return instance;
+    }
+}
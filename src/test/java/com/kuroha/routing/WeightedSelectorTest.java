@@ -0,0 +1,102 @@
+package com.kuroha.routing;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author kuroha
+ */
+public class WeightedSelectorTest {
+
+    private static final int SAMPLE_NUM = 200000;
+    /**
+     * 选取比例与权重占比的最大偏差
+     */
+    private static final double TOLERANCE = 0.01;
+
+    private final ServiceInstance a = new ServiceInstance("10.0.0.1", 8080, 1);
+    private final ServiceInstance b = new ServiceInstance("10.0.0.2", 8080, 2.5);
+    private final ServiceInstance c = new ServiceInstance("10.0.0.3", 8080, 6.5);
+
+    @Test
+    public void selectsInProportionToWeight() {
+        WeightedSelector selector = WeightedSelector.of(Arrays.asList(a, b, c));
+        assertEquals(10, selector.getTotalWeight(), 0);
+        Map<ServiceInstance, Integer> counts = new HashMap<>();
+        for (int i = 0; i < SAMPLE_NUM; i++) {
+            counts.merge(selector.select(), 1, Integer::sum);
+        }
+        assertEquals(0.1, counts.get(a) / (double) SAMPLE_NUM, TOLERANCE);
+        assertEquals(0.25, counts.get(b) / (double) SAMPLE_NUM, TOLERANCE);
+        assertEquals(0.65, counts.get(c) / (double) SAMPLE_NUM, TOLERANCE);
+    }
+
+    @Test
+    public void excludedInstancesAreNeverSelected() {
+        WeightedSelector selector = WeightedSelector.of(Arrays.asList(a, b, c));
+        HashSet<String> excludeSet = new HashSet<>(Collections.singletonList(c.getUri()));
+        int countA = 0;
+        for (int i = 0; i < SAMPLE_NUM; i++) {
+            ServiceInstance instance = selector.select(excludeSet);
+            assertTrue(instance == a || instance == b);
+            if (instance == a) {
+                countA++;
+            }
+        }
+        // 排除后按剩余权重 1:2.5 选取
+        assertEquals(1 / 3.5, countA / (double) SAMPLE_NUM, TOLERANCE);
+        excludeSet.add(a.getUri());
+        excludeSet.add(b.getUri());
+        assertNull(selector.select(excludeSet));
+    }
+
+    @Test
+    public void zeroWeightInstancesAreSkipped() {
+        ServiceInstance zero = new ServiceInstance("10.0.0.4", 8080, 0);
+        WeightedSelector selector = WeightedSelector.of(Arrays.asList(zero, a));
+        assertEquals(1, selector.size());
+        for (int i = 0; i < 100; i++) {
+            assertSame(a, selector.select());
+        }
+        assertSame(WeightedSelector.EMPTY, WeightedSelector.of(Collections.singletonList(zero)));
+        assertNull(WeightedSelector.EMPTY.select());
+    }
+
+    @Test
+    public void withoutRemovesInstance() {
+        WeightedSelector selector = WeightedSelector.of(Arrays.asList(a, b));
+        WeightedSelector removed = selector.without(a.getUri());
+        assertEquals(Collections.singletonList(b), removed.getInstances());
+        assertSame(selector, selector.without(c.getUri()));
+    }
+
+    @Test
+    public void filterCacheIsBounded() {
+        Map<String, String> metadata = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            metadata.put("k" + i, "v");
+        }
+        ServiceInstance tagged = new ServiceInstance("10.0.0.4", 8080, 1, "DEFAULT", metadata);
+        WeightedSelector selector = WeightedSelector.of(Arrays.asList(tagged, a));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Collections.singletonList(tagged), selector.filter(Collections.singletonMap("k" + i, "v")).getInstances());
+        }
+        // 先出现的条件已缓存,超过上限的条件每次重新过滤
+        Map<String, String> first = Collections.singletonMap("k0", "v");
+        assertSame(selector.filter(first), selector.filter(first));
+        Map<String, String> last = Collections.singletonMap("k99", "v");
+        assertNotSame(selector.filter(last), selector.filter(last));
+        assertEquals(Collections.singletonList(tagged), selector.filter(last).getInstances());
+    }
+}
@@ -0,0 +1,110 @@
+package com.kuroha.service.impl;
+
+import com.kuroha.cache.ResponseCache;
+import com.kuroha.config.CloudSettingsLoader;
+import com.kuroha.http.BodyCodec;
+import com.kuroha.http.CodecSelector;
+import com.kuroha.metrics.CallMetrics;
+import com.kuroha.metrics.CallTracer;
+import com.kuroha.policy.BulkheadRegistry;
+import com.kuroha.policy.ConcurrencyLimiter;
+import com.kuroha.policy.RetryBudget;
+import com.kuroha.policy.RetryPolicy;
+import com.kuroha.routing.CircuitBreaker;
+import com.kuroha.routing.FailureKind;
+import com.kuroha.routing.LoadBalanceStrategy;
+import com.kuroha.routing.ServiceRouter;
+import com.kuroha.routing.SlowStart;
+import com.kuroha.routing.StubNamingService;
+import com.kuroha.routing.ZoneAffinity;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author kuroha
+ */
+public class CloudServiceImplTest {
+
+    private static final String SERVICE_NAME = "test-service";
+
+    private final StubNamingService naming = new StubNamingService();
+    private ServiceRouter router;
+    private RetryBudget retryBudget;
+    private ConcurrencyLimiter concurrencyLimiter;
+    private AsyncCloudServiceImpl asyncCloudService;
+    private CloudServiceImpl cloudService;
+
+    @Before
+    public void setUp() {
+        // 端口1上没有服务,测试中的请求都不会真正发出
+        naming.setInstances(SERVICE_NAME, StubNamingService.instance("127.0.0.1", 1, 1));
+        router = new ServiceRouter(naming.getNamingService(), LoadBalanceStrategy.WEIGHTED_RANDOM, ZoneAffinity.NONE, SlowStart.NONE);
+        retryBudget = new RetryBudget(20);
+        CallMetrics callMetrics = new CallMetrics();
+        CodecSelector codecSelector = new CodecSelector(BodyCodec.JSON, new String[0], 0);
+        concurrencyLimiter = new ConcurrencyLimiter(true, 1, 1, 1, 0, 0);
+        CloudSettingsLoader cloudSettingsLoader = new CloudSettingsLoader(null, "", "", 1000, 1000, 1000, 1000, 1, 3600000);
+        cloudSettingsLoader.apply("cloud.max-attempts=3\ncloud.breaker.min-calls=1\ncloud.breaker.open-time=50");
+        asyncCloudService = new AsyncCloudServiceImpl(router, retryBudget, callMetrics, codecSelector, concurrencyLimiter,
+                cloudSettingsLoader, false, 95, 10);
+        cloudService = new CloudServiceImpl(router, asyncCloudService, retryBudget, callMetrics,
+                new ResponseCache(false, 0, 0, new String[0]), codecSelector, concurrencyLimiter, cloudSettingsLoader,
+                new CallTracer(0, 0, 0), new BulkheadRegistry("", new String[0]), false);
+    }
+
+    @After
+    public void tearDown() {
+        cloudService.destroy();
+        asyncCloudService.destroy();
+    }
+
+    @Test
+    public void limiterRejectionReturnsProbePermit() throws InterruptedException {
+        String uri = router.getUri(SERVICE_NAME);
+        CircuitBreaker breaker = router.getInstanceState(uri).getBreaker();
+        breaker.onFailure(FailureKind.CONNECT);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        // 占满并发上限后等待熔断结束,半开状态下的调用都在选中实例后被并发上限拒绝
+        concurrencyLimiter.tryAcquire(SERVICE_NAME);
+        Thread.sleep(100);
+        for (int i = 0; i < 3; i++) {
+            assertNull(cloudService.get(SERVICE_NAME, "ping"));
+            assertNull(asyncCloudService.get(SERVICE_NAME, "ping").join());
+        }
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        concurrencyLimiter.onCancel(SERVICE_NAME);
+        // 并发上限空出后探测请求仍可发往该实例
+        assertEquals(uri, router.getUri(SERVICE_NAME));
+        assertEquals(uri, router.getUri(SERVICE_NAME));
+    }
+
+    @Test
+    public void failoverWithoutOtherInstanceKeepsBudget() {
+        double balance = retryBudget.getBalance();
+        assertNull(cloudService.get(SERVICE_NAME, "ping"));
+        // 只有一个实例时没有可重试的实例,不消耗重试预算
+        assertEquals(balance, retryBudget.getBalance(), 0);
+    }
+
+    @Test
+    public void asyncFailoverWithoutOtherInstanceKeepsBudget() {
+        double balance = retryBudget.getBalance();
+        assertNull(asyncCloudService.get(SERVICE_NAME, "ping").join());
+        assertEquals(balance, retryBudget.getBalance(), 0);
+    }
+
+    @Test
+    public void acquiredPermitIsUsedByFirstAttempt() {
+        // 调用方已占用唯一的并发许可,第一次尝试直接使用该许可发出请求
+        concurrencyLimiter.acquire(SERVICE_NAME);
+        String uri = router.getUri(SERVICE_NAME);
+        assertNull(asyncCloudService.get(SERVICE_NAME, "ping", String.class, RetryPolicy.DEFAULT, true).join());
+        assertEquals(CircuitBreaker.State.OPEN, router.getInstanceState(uri).getBreaker().getState());
+        // 调用结束后许可已归还
+        concurrencyLimiter.tryAcquire(SERVICE_NAME);
+    }
+}